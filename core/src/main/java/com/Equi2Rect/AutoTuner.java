@@ -0,0 +1,388 @@
+/*
+Copyright 2020 Alessandro Bruno
+
+This file is part of EquirectangulartoCubic.java.
+EquirectangulartoCubic is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+EquirectangulartoCubic is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+You should have received a copy of the GNU General Public License along with EquirectangulartoCubic. If not, see http://www.gnu.org/licenses/.
+*/
+
+package com.Equi2Rect;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Settings of the projection measured on this machine: the fastest ones vary a
+ * lot between a 4-core kiosk and a 64-core server. Enabled with
+ * -Dequi2rect.autoTune=true, the shared {@link ConversionEngine} is created with
+ * the profile saved for this machine, or, on the first run, after timing the
+ * conversion of a synthetic panorama with the candidate settings, one setting
+ * at a time. The panorama is larger on machines with more cores, 2048 pixels wide
+ * up to 4 cores and 8192 from 64 cores, so that every thread has work:
+ * <ol>
+ *   <li>rows of the tasks each face is split into, see {@link ConversionEngine#setBandRows};</li>
+ *   <li>threads of the fork/join pool, and virtual threads on JDK 21+;</li>
+ *   <li>storage of the panorama: int, packed or off-heap;</li>
+ *   <li>maximum interpolation error of the adaptive projection, see
+ *   {@link ConversionEngine#setMaxInterpolationError}: kept only while the faces stay
+ *   within MAX_MEAN_ERROR levels of those of the default settings.</li>
+ * </ol>
+ * A setting replaces the current one if it is at least MIN_GAIN faster. The
+ * profile is saved in ~/.equi2rect/tuning.properties (-Dequi2rect.tuningProfile)
+ * with the hardware and JVM it was measured on, and measured again when they
+ * change, or with -Dequi2rect.autoTune=force. Settings given as system
+ * properties take precedence over the profile.
+ */
+public final class AutoTuner {
+
+    static final int WORKLOAD_WIDTH = 2048;
+    static final int MAX_WORKLOAD_WIDTH = 8192;
+    static final int RUNS = 2;
+    static final double MIN_GAIN = 0.05;
+    static final double MAX_MEAN_ERROR = 0.5;
+    static final int[] BAND_ROWS = {0, 256, 128, 64};
+    static final double[] INTERPOLATION_ERRORS = {0.25, 0.5, 1, 2};
+
+    /**
+     * Settings chosen for a machine
+     */
+    public static final class Profile {
+        private final String executor;
+        private final int threads;
+        private final int bandRows;
+        private final EquiSource.Storage storage;
+        private final double maxInterpolationError;
+        private final long millis;
+
+        Profile(String executor, int threads, int bandRows, EquiSource.Storage storage,
+                double maxInterpolationError, long millis) {
+            this.executor = executor;
+            this.threads = threads;
+            this.bandRows = bandRows;
+            this.storage = storage;
+            this.maxInterpolationError = maxInterpolationError;
+            this.millis = millis;
+        }
+
+        /** "forkjoin" or "virtual" */
+        public String getExecutor() {
+            return executor;
+        }
+
+        public int getThreads() {
+            return threads;
+        }
+
+        public int getBandRows() {
+            return bandRows;
+        }
+
+        public EquiSource.Storage getStorage() {
+            return storage;
+        }
+
+        public double getMaxInterpolationError() {
+            return maxInterpolationError;
+        }
+
+        /**
+         * Returns the time measured for the synthetic panorama
+         */
+        public long getMillis() {
+            return millis;
+        }
+
+        Profile with(String executor, int threads) {
+            return new Profile(executor, threads, bandRows, storage, maxInterpolationError, millis);
+        }
+
+        Profile withBandRows(int bandRows) {
+            return new Profile(executor, threads, bandRows, storage, maxInterpolationError, millis);
+        }
+
+        Profile withStorage(EquiSource.Storage storage) {
+            return new Profile(executor, threads, bandRows, storage, maxInterpolationError, millis);
+        }
+
+        Profile withMaxInterpolationError(double maxInterpolationError) {
+            return new Profile(executor, threads, bandRows, storage, maxInterpolationError, millis);
+        }
+
+        Profile withMillis(long millis) {
+            return new Profile(executor, threads, bandRows, storage, maxInterpolationError, millis);
+        }
+
+        boolean hasSettingsOf(Profile other) {
+            return executor.equals(other.executor) && threads == other.threads && bandRows == other.bandRows &&
+                    storage == other.storage && maxInterpolationError == other.maxInterpolationError;
+        }
+
+        @Override
+        public String toString() {
+            return "Tuning profile: " + (executor.equals("virtual") ? "virtual threads" : threads + " threads") +
+                    ", " + (bandRows == 0 ? "one task per face" : bandRows + " rows per task") + ", " +
+                    storage + " storage, interpolation error " + maxInterpolationError + " px (" + millis + " ms)";
+        }
+    }
+
+    private AutoTuner() {
+    }
+
+    static boolean isEnabled() {
+        String mode = System.getProperty("equi2rect.autoTune", "false").trim().toLowerCase();
+        return mode.equals("true") || mode.equals("force");
+    }
+
+    /**
+     * Returns the profile saved for this machine, measuring and saving it first if
+     * there is none, it was measured on other hardware or JVM, or re-tuning is forced
+     */
+    public static synchronized Profile loadOrTune() throws IOException {
+        File file = new File(System.getProperty("equi2rect.tuningProfile",
+                new File(System.getProperty("user.home"), ".equi2rect/tuning.properties").getPath()));
+        String fingerprint = fingerprint();
+        boolean force = System.getProperty("equi2rect.autoTune", "").trim().equalsIgnoreCase("force");
+        if (!force && file.isFile()) {
+            Profile profile = load(file, fingerprint);
+            if (profile != null) {
+                return profile;
+            }
+        }
+        System.out.println("Tuning the projection for this machine...");
+        Profile profile = tune();
+        System.out.println(profile);
+        save(profile, file, fingerprint);
+        return profile;
+    }
+
+    /**
+     * Measures the settings on a synthetic panorama, see above
+     */
+    public static Profile tune() throws IOException {
+        double defaultError = Equi2Rect.getMaxInterpolationError();
+        int cores = Runtime.getRuntime().availableProcessors();
+        BufferedImage workload = workload(workloadWidth(cores, Runtime.getRuntime().maxMemory()));
+        Profile best = new Profile("forkjoin", cores, 0, EquiSource.Storage.INT_ARGB, defaultError, 0);
+        BufferedImage[] reference;
+        try (ConversionEngine engine = engine(best)) {
+            reference = engine.convert(workload);
+            // warms up the JIT compiler for all the candidates
+            time(engine, workload);
+            best = best.withMillis(time(engine, workload));
+        }
+
+        List<Profile> candidates = new ArrayList<>();
+        for (int rows : BAND_ROWS) {
+            candidates.add(best.withBandRows(rows));
+        }
+        best = fastest(best, candidates, workload, reference);
+
+        candidates.clear();
+        for (int threads = 1; threads < cores; threads *= 2) {
+            candidates.add(best.with("forkjoin", threads));
+        }
+        if (Runtime.version().feature() >= 21) {
+            candidates.add(best.with("virtual", cores));
+        }
+        best = fastest(best, candidates, workload, reference);
+
+        candidates.clear();
+        for (EquiSource.Storage storage : EquiSource.Storage.values()) {
+            candidates.add(best.withStorage(storage));
+        }
+        best = fastest(best, candidates, workload, reference);
+
+        candidates.clear();
+        for (double error : INTERPOLATION_ERRORS) {
+            candidates.add(best.withMaxInterpolationError(error));
+        }
+        return fastest(best, candidates, workload, reference);
+    }
+
+    /**
+     * Creates an engine with the settings of the profile not given as system properties
+     */
+    static ConversionEngine createEngine(Profile profile) {
+        ConversionEngine engine = System.getProperty("equi2rect.executor") != null ? new ConversionEngine() :
+                engine(profile);
+        engine.setBandRows(System.getProperty("equi2rect.bandRows") != null ?
+                ConversionEngine.bandRowsFromProperty() : profile.getBandRows());
+        engine.setSourceStorage(System.getProperty("equi2rect.sourceStorage") != null ?
+                ConversionEngine.storageFromProperty() : profile.getStorage());
+        engine.setMaxInterpolationError(profile.getMaxInterpolationError());
+        return engine;
+    }
+
+    // engine with all the settings of the profile
+    private static ConversionEngine engine(Profile profile) {
+        ConversionEngine engine = profile.getExecutor().equals("virtual") ?
+                new ConversionEngine(ConversionEngine.ExecutorKind.VIRTUAL_THREADS,
+                        ConversionEngine.DEFAULT_MAX_CONCURRENT_CONVERSIONS) :
+                new ConversionEngine(new ForkJoinPool(profile.getThreads()),
+                        ConversionEngine.DEFAULT_MAX_CONCURRENT_CONVERSIONS, true);
+        engine.setVerboseMode(false);
+        engine.setBandRows(profile.getBandRows());
+        engine.setSourceStorage(profile.getStorage());
+        engine.setMaxInterpolationError(profile.getMaxInterpolationError());
+        return engine;
+    }
+
+    // the candidate at least MIN_GAIN faster than the best, whose faces are close enough to the reference
+    private static Profile fastest(Profile best, List<Profile> candidates, BufferedImage workload,
+                                   BufferedImage[] reference) throws IOException {
+        Profile fastest = best;
+        for (Profile candidate : candidates) {
+            if (candidate.hasSettingsOf(best)) {
+                continue;
+            }
+            try (ConversionEngine engine = engine(candidate)) {
+                BufferedImage[] faces = engine.convert(workload);
+                if (meanError(faces, reference) > MAX_MEAN_ERROR) {
+                    continue;
+                }
+                long millis = time(engine, workload);
+                if (millis < fastest.getMillis() * (1 - MIN_GAIN)) {
+                    fastest = candidate.withMillis(millis);
+                }
+            }
+        }
+        return fastest;
+    }
+
+    // fastest of RUNS conversions, after the one warming up the engine
+    private static long time(ConversionEngine engine, BufferedImage workload) throws IOException {
+        long fastest = Long.MAX_VALUE;
+        for (int run = 0; run < RUNS; run++) {
+            long start = System.nanoTime();
+            BufferedImage[] faces = engine.convert(workload);
+            fastest = Math.min(fastest, System.nanoTime() - start);
+            for (BufferedImage face : faces) {
+                engine.getBufferPool().release(face);
+            }
+        }
+        return Math.max(1, fastest / 1000000L);
+    }
+
+    // mean absolute difference of the channels
+    static double meanError(BufferedImage[] faces, BufferedImage[] reference) {
+        long sum = 0;
+        long count = 0;
+        for (int i = 0; i < faces.length; i++) {
+            int[] a = ((DataBufferInt) faces[i].getRaster().getDataBuffer()).getData();
+            int[] b = ((DataBufferInt) reference[i].getRaster().getDataBuffer()).getData();
+            int pixels = faces[i].getWidth() * faces[i].getHeight();
+            for (int p = 0; p < pixels; p++) {
+                for (int shift = 0; shift < 24; shift += 8) {
+                    sum += Math.abs((a[p] >> shift & 0xff) - (b[p] >> shift & 0xff));
+                }
+            }
+            count += 3L * pixels;
+        }
+        return (double) sum / count;
+    }
+
+    // about the same pixels per core: twice the width for 4 times the cores, in steps
+    // of 256 pixels, within a quarter of the heap for the panorama and its faces
+    static int workloadWidth(int cores, long maxMemory) {
+        int width = (int) (WORKLOAD_WIDTH * Math.sqrt(cores / 4.0)) & ~255;
+        width = Math.min(Math.max(width, WORKLOAD_WIDTH), MAX_WORKLOAD_WIDTH);
+        while (width > WORKLOAD_WIDTH && 8L * width * width > maxMemory / 4) {
+            width -= 256;
+        }
+        return width;
+    }
+
+    // smooth gradients with sharp edges, where a coarser interpolation shows
+    static BufferedImage workload(int width) {
+        int height = width / 2;
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int checker = ((x >> 4) + (y >> 4) & 1) == 0 ? 0 : 0x606060;
+                pixels[y * width + x] = ((int) (255L * x / width) << 16 | (int) (255L * y / height) << 8 | 128)
+                        ^ checker;
+            }
+        }
+        return image;
+    }
+
+    // hardware and JVM the profile is valid for
+    static String fingerprint() {
+        String cpu = System.getenv("PROCESSOR_IDENTIFIER");
+        File cpuInfo = new File("/proc/cpuinfo");
+        if (cpu == null && cpuInfo.isFile()) {
+            try {
+                for (String line : Files.readAllLines(cpuInfo.toPath(), StandardCharsets.UTF_8)) {
+                    if (line.startsWith("model name")) {
+                        cpu = line.substring(line.indexOf(':') + 1).trim();
+                        break;
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                // left out of the fingerprint
+            }
+        }
+        return Runtime.getRuntime().availableProcessors() + " cores, " + (cpu == null ? "" : cpu + ", ") +
+                System.getProperty("os.name") + " " + System.getProperty("os.arch") + ", " +
+                System.getProperty("java.vm.name") + " " + System.getProperty("java.vm.version") + ", " +
+                (Runtime.getRuntime().maxMemory() >> 20) + " MB heap";
+    }
+
+    // null if the profile is for another machine or cannot be read
+    private static Profile load(File file, String fingerprint) {
+        Properties properties = new Properties();
+        try (InputStream in = new FileInputStream(file)) {
+            properties.load(in);
+            if (!fingerprint.equals(properties.getProperty("fingerprint"))) {
+                return null;
+            }
+            return new Profile(properties.getProperty("executor"),
+                    Integer.parseInt(properties.getProperty("threads")),
+                    Integer.parseInt(properties.getProperty("bandRows")),
+                    EquiSource.Storage.valueOf(properties.getProperty("storage")),
+                    Double.parseDouble(properties.getProperty("maxInterpolationError")),
+                    Long.parseLong(properties.getProperty("millis")));
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Cannot read the tuning profile " + file + ": " + e);
+            return null;
+        }
+    }
+
+    private static void save(Profile profile, File file, String fingerprint) {
+        Properties properties = new Properties();
+        properties.setProperty("fingerprint", fingerprint);
+        properties.setProperty("executor", profile.getExecutor());
+        properties.setProperty("threads", String.valueOf(profile.getThreads()));
+        properties.setProperty("bandRows", String.valueOf(profile.getBandRows()));
+        properties.setProperty("storage", profile.getStorage().name());
+        properties.setProperty("maxInterpolationError", String.valueOf(profile.getMaxInterpolationError()));
+        properties.setProperty("millis", String.valueOf(profile.getMillis()));
+        try {
+            File directory = file.getAbsoluteFile().getParentFile();
+            directory.mkdirs();
+            File temporary = File.createTempFile("tuning", ".tmp", directory);
+            try (OutputStream out = new FileOutputStream(temporary)) {
+                properties.store(out, "Projection settings measured by com.Equi2Rect.AutoTuner");
+            }
+            Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            // measured again at the next start
+            System.out.println("Cannot save the tuning profile " + file + ": " + e);
+        }
+    }
+}
@@ -0,0 +1,1098 @@
+/*
+Copyright 2020 Alessandro Bruno
+
+This file is part of EquirectangulartoCubic.java.
+EquirectangulartoCubic is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+EquirectangulartoCubic is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+You should have received a copy of the GNU General Public License along with EquirectangulartoCubic. If not, see http://www.gnu.org/licenses/.
+*/
+
+package com.Equi2Rect;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.reflect.Method;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Long-lived engine converting equirectangular panoramas into the six cubemap
+ * faces described in {@link EquirectangularToCubic}.
+ * The executor is created once and reused by every conversion, so that opening
+ * an image does not pay thread startup again. At most maxConcurrentConversions
+ * conversions run at the same time: further callers block until one finishes.
+ * The GUI and headless callers share the engine returned by {@link #getShared()}.
+ */
+public class ConversionEngine implements AutoCloseable {
+
+    /** Executor used by the engine */
+    public enum ExecutorKind {
+        /** Virtual threads when running on JDK 21+, fork/join pool otherwise */
+        AUTO,
+        /** Work-stealing fork/join pool with one worker per core */
+        FORK_JOIN,
+        /** One virtual thread per task (JDK 21+ only) */
+        VIRTUAL_THREADS
+    }
+
+    static final int DEFAULT_MAX_CONCURRENT_CONVERSIONS = 2;
+
+    private static ConversionEngine sharedEngine;
+
+    private final ExecutorService executor;
+    private final boolean ownsExecutor;
+    private final Semaphore conversionPermits;
+    private final int parallelism;
+    private volatile boolean verboseMode = true;
+    // null when the faces are projected from scratch for every image
+    private volatile FaceMappingCache mappingCache;
+    private volatile EquiSource.Storage sourceStorage = storageFromProperty();
+    private volatile boolean streaming = Boolean.getBoolean("equi2rect.streaming");
+    private volatile boolean leveling = Boolean.parseBoolean(System.getProperty("equi2rect.level", "true"));
+    // 0 for one task per face
+    private volatile int bandRows = bandRowsFromProperty();
+    // NaN for the one of Equi2Rect.setMaxInterpolationError
+    private volatile double maxInterpolationError = Double.NaN;
+    private final ThreadLocal<ConversionTimings> lastTimings = new ThreadLocal<>();
+    private volatile PixelBufferPool bufferPool = new PixelBufferPool(
+            Long.getLong("equi2rect.bufferPoolMB", Runtime.getRuntime().maxMemory() >> 23) << 20, 30000);
+
+    /**
+     * Creates an engine with the executor selected by the system property
+     * "equi2rect.executor" (auto, forkjoin or virtual)
+     */
+    public ConversionEngine() {
+        this(executorKindFromProperty(), DEFAULT_MAX_CONCURRENT_CONVERSIONS);
+    }
+
+    /**
+     * Creates an engine owning its executor
+     * @param kind The kind of executor to create
+     * @param maxConcurrentConversions Number of conversions allowed to run at the same time
+     */
+    public ConversionEngine(ExecutorKind kind, int maxConcurrentConversions) {
+        this(createExecutor(kind), maxConcurrentConversions, true);
+    }
+
+    /**
+     * Creates an engine running its tasks on an executor owned by the caller
+     * @param executor The executor, it is not shut down by {@link #close()}
+     * @param maxConcurrentConversions Number of conversions allowed to run at the same time
+     */
+    public ConversionEngine(ExecutorService executor, int maxConcurrentConversions) {
+        this(executor, maxConcurrentConversions, false);
+    }
+
+    ConversionEngine(ExecutorService executor, int maxConcurrentConversions, boolean ownsExecutor) {
+        if (maxConcurrentConversions < 1) {
+            throw new IllegalArgumentException("maxConcurrentConversions must be at least 1");
+        }
+        this.executor = executor;
+        this.ownsExecutor = ownsExecutor;
+        this.conversionPermits = new Semaphore(maxConcurrentConversions, true);
+        this.parallelism = executor instanceof ForkJoinPool ?
+                ((ForkJoinPool) executor).getParallelism() : Runtime.getRuntime().availableProcessors();
+        if (Boolean.getBoolean("equi2rect.mappingTables")) {
+            setMappingTables(true, Boolean.getBoolean("equi2rect.mappingTablesOffHeap"),
+                    Long.getLong("equi2rect.mappingCacheMB", 1024L) << 20);
+        }
+    }
+
+    /**
+     * Returns the engine shared by the whole application, creating it on first use,
+     * with the settings measured for this machine if -Dequi2rect.autoTune=true, see {@link AutoTuner}.
+     * It prints its timings, unless a caller turns verbose mode off.
+     */
+    public static synchronized ConversionEngine getShared() {
+        if (sharedEngine == null) {
+            sharedEngine = AutoTuner.isEnabled() ? createTuned() : new ConversionEngine();
+            sharedEngine.setVerboseMode(true);
+        }
+        return sharedEngine;
+    }
+
+    private static ConversionEngine createTuned() {
+        try {
+            return AutoTuner.createEngine(AutoTuner.loadOrTune());
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Cannot tune the projection: " + e);
+            return new ConversionEngine();
+        }
+    }
+
+    /**
+     * Computes the lookup tables and starts the worker threads in the background,
+     * so that the first conversion does not wait for them. Returns immediately.
+     */
+    public void warmUp() {
+        for (int i = 0; i < parallelism; i++) {
+            executor.execute(Equi2Rect::initLookUp);
+        }
+    }
+
+    public void setVerboseMode(boolean verboseMode) {
+        this.verboseMode = verboseMode;
+    }
+
+    public ExecutorService getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Enables or disables the reuse of precomputed face mapping tables. With tables
+     * enabled, the projection of a geometry (source size, face size, orientation)
+     * is computed once and each further image only gathers and interpolates pixels.
+     * Can also be enabled with -Dequi2rect.mappingTables=true,
+     * -Dequi2rect.mappingTablesOffHeap and -Dequi2rect.mappingCacheMB.
+     * @param enabled Use the mapping tables
+     * @param offHeap Keep the tables in direct buffers instead of the Java heap
+     * @param maxBytes Memory the cached tables may use
+     */
+    public void setMappingTables(boolean enabled, boolean offHeap, long maxBytes) {
+        mappingCache = enabled ? new FaceMappingCache(maxBytes, offHeap) : null;
+    }
+
+    /**
+     * Selects how the decoded panorama is stored while it is projected.
+     * PACKED_RGB and PACKED_RGB_OFF_HEAP use 3 bytes per pixel instead of 4.
+     * Can also be set with -Dequi2rect.sourceStorage=int|packed|offheap.
+     */
+    public void setSourceStorage(EquiSource.Storage sourceStorage) {
+        this.sourceStorage = sourceStorage;
+    }
+
+    public EquiSource.Storage getSourceStorage() {
+        return sourceStorage;
+    }
+
+    /**
+     * Splits the projection of each face into tasks of bandRows rows, so that more
+     * than six threads work on one panorama; 0, the default, projects each face
+     * in one task. The faces are the same either way.
+     * Can also be set with -Dequi2rect.bandRows, see also {@link AutoTuner}.
+     * @param bandRows 0 or a multiple of 64
+     */
+    public void setBandRows(int bandRows) {
+        if (bandRows < 0 || bandRows % Equi2Rect.QT_CELL_SIZE != 0) {
+            throw new IllegalArgumentException("Band rows must be 0 or a multiple of " + Equi2Rect.QT_CELL_SIZE);
+        }
+        this.bandRows = bandRows;
+    }
+
+    /**
+     * Sets the maximum interpolation error of the projections of this engine, in
+     * source pixels, see {@link Equi2Rect#setMaxInterpolationError}: the engines
+     * that do not set it use the one set there. See also {@link AutoTuner}.
+     */
+    public void setMaxInterpolationError(double pixels) {
+        if (!(pixels > 0)) {
+            throw new IllegalArgumentException("Interpolation error must be positive: " + pixels);
+        }
+        maxInterpolationError = pixels;
+    }
+
+    public double getMaxInterpolationError() {
+        double pixels = maxInterpolationError;
+        return Double.isNaN(pixels) ? Equi2Rect.getMaxInterpolationError() : pixels;
+    }
+
+    public int getBandRows() {
+        return bandRows;
+    }
+
+    /**
+     * Returns the number of threads running the tasks of the conversions
+     */
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Enables the conversion of files while they are decoded by {@link #convert(File)}.
+     * The faces are split in bands of rows, each band is projected as soon as
+     * the rows of the panorama it needs are decoded, and the decoded rows are
+     * released once no pending band needs them: the decoder waits while they use
+     * more than a quarter of a decoded frame, so a full frame is never held in memory. Can also be enabled with -Dequi2rect.streaming=true.
+     */
+    public void setStreaming(boolean streaming) {
+        this.streaming = streaming;
+    }
+
+    public boolean isStreaming() {
+        return streaming;
+    }
+
+    /**
+     * Enables the leveling of the panoramas converted from files whose GPano XMP
+     * metadata give the pitch and roll of the camera, see {@link #orientationOf(File)}.
+     * Enabled by default, can be disabled with -Dequi2rect.level=false.
+     */
+    public void setLeveling(boolean leveling) {
+        this.leveling = leveling;
+    }
+
+    public boolean isLeveling() {
+        return leveling;
+    }
+
+    /**
+     * Returns the orientation corrected when converting a file: the pitch and roll
+     * of its GPano metadata if leveling is enabled, otherwise Orientation.NONE.
+     * The heading is left out, so that the first face still faces the center of the image.
+     */
+    public Orientation orientationOf(File file) {
+        if (!leveling) {
+            return Orientation.NONE;
+        }
+        try {
+            return Orientation.fromGPano(file).withoutHeading();
+        } catch (IOException e) {
+            // reported when the image is decoded
+            return Orientation.NONE;
+        }
+    }
+
+    /**
+     * Returns the time spent in each stage by the last conversion made by the
+     * calling thread, null if it has not converted anything
+     */
+    public ConversionTimings getLastTimings() {
+        return lastTimings.get();
+    }
+
+    /**
+     * Returns the cache of mapping tables, null if they are disabled
+     */
+    public FaceMappingCache getMappingCache() {
+        return mappingCache;
+    }
+
+    /**
+     * Returns the pool of the faces and of the rows of the panoramas stored as
+     * INT_ARGB. The faces returned by the conversions can be given back with
+     * {@link PixelBufferPool#release(BufferedImage)} once they are no longer used,
+     * e.g. after their upload as textures, so that the next conversion reuses them.
+     * Limited to an eighth of the heap, or -Dequi2rect.bufferPoolMB.
+     */
+    public PixelBufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    /**
+     * Takes the faces and rows from the pool of another engine, e.g. the shared one
+     * whose pool receives the faces given back by {@link EquirectangularToCubic#releaseImages},
+     * so that the buffers of both engines are bounded together. To be called before
+     * the first conversion.
+     */
+    public void setBufferPool(PixelBufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+    }
+
+    /**
+     * Converts an equirectangular image into six cube faces.
+     * Blocks while the maximum number of concurrent conversions is running.
+     * @param equi The BufferedImage containing a cylindrical equidistant projection of a spherical panorama
+     * @throws IOException if the image is not equirectangular or the conversion fails
+     * @throws InterruptedIOException if the calling thread is interrupted while waiting
+     */
+    public BufferedImage[] convert(BufferedImage equi) throws IOException {
+        return convert(equi, Orientation.NONE, new ConversionTimings());
+    }
+
+    private BufferedImage[] convert(BufferedImage equi, Orientation orientation, ConversionTimings timings)
+            throws IOException {
+        int equiWidth = equi.getWidth();
+        int equiHeight = equi.getHeight();
+
+        if (equiWidth != equiHeight * 2) {
+            String errorMessage = "Image is not equirectangular (" + equiWidth + " x " + equiHeight + ")";
+            System.out.println(errorMessage);
+            throw new IOException(errorMessage);
+        }
+
+        acquirePermit();
+        try {
+            return convertWithPermit(extract(equi, sourceStorage, orientation, timings), faceSize(equiWidth), timings);
+        } finally {
+            releasePermit();
+        }
+    }
+
+    /**
+     * Converts the frame of a dual-fisheye camera into six cube faces directly,
+     * without stitching an equirectangular image first, see {@link DualFisheyeSource}.
+     * The faces have the size of those of the equirectangular panorama of the same
+     * resolution, and are interpolated bilinearly.
+     * Blocks while the maximum number of concurrent conversions is running.
+     * @throws IOException if the conversion fails
+     * @throws InterruptedIOException if the calling thread is interrupted while waiting
+     */
+    public BufferedImage[] convert(DualFisheyeSource fisheye) throws IOException {
+        int rectWidth = faceSize(fisheye.getWidth());
+        double fov = faceFov(fisheye.getWidth());
+        double maxError = getMaxInterpolationError();
+        ConversionTimings timings = new ConversionTimings();
+        acquirePermit();
+        try {
+            long startTime = System.nanoTime();
+            BufferedImage[] outputArray = new BufferedImage[6];
+            List<Future<?>> faces = new ArrayList<>(6);
+            for (int i = 0; i < 6; i++) {
+                outputArray[i] = bufferPool.acquireImage(rectWidth, rectWidth);
+                int face = i;
+                faces.add(executor.submit(() -> {
+                    long faceStart = System.nanoTime();
+                    Equi2Rect.extractRectilinear(FACE_YAW[face], FACE_PITCH[face], fov, fisheye,
+                            pixels(outputArray[face]), rectWidth, rectWidth, true, maxError);
+                    timings.faceNanos[face] = System.nanoTime() - faceStart;
+                }));
+            }
+            for (Future<?> face : faces) {
+                await(face, faces);
+            }
+            timings.projectNanos = System.nanoTime() - startTime;
+            timings.faceSize = rectWidth;
+            lastTimings.set(timings);
+            if(verboseMode) System.out.println("It took " + timings.projectNanos / 1000000L +
+                    " ms to project the dual fisheye frame to " + rectWidth + " x " + rectWidth + " faces");
+            return outputArray;
+        } finally {
+            releasePermit();
+        }
+    }
+
+    /**
+     * Returns a publisher of the tiles of the six cube faces, emitted as they are
+     * completed with back-pressure, see {@link FaceTilePublisher}
+     * @param equiData The pixels of a cylindrical equidistant projection, see {@link EquiSource#fromImage}
+     * @param tileRows Rows of each tile, a multiple of 64
+     * @throws IOException if the panorama is not equirectangular
+     */
+    public FaceTilePublisher publishTiles(EquiSource equiData, int tileRows) throws IOException {
+        if (equiData.getWidth() != equiData.getHeight() * 2) {
+            throw new IOException("Image is not equirectangular (" + equiData.getWidth() + " x " +
+                    equiData.getHeight() + ")");
+        }
+        int rectWidth = faceSize(equiData.getWidth());
+        return new FaceTilePublisher(executor, equiData, rectWidth, tileRows, parallelism);
+    }
+
+    /**
+     * Converts a panorama whose pixels were already extracted into six cube faces
+     * @param equiData The pixels of a cylindrical equidistant projection, see {@link EquiSource#fromImage}
+     * @throws IOException if the panorama is not equirectangular or the conversion fails
+     * @throws InterruptedIOException if the calling thread is interrupted while waiting
+     */
+    public BufferedImage[] convert(EquiSource equiData) throws IOException {
+        if (equiData.getWidth() != equiData.getHeight() * 2) {
+            String errorMessage = "Image is not equirectangular (" + equiData.getWidth() + " x " +
+                    equiData.getHeight() + ")";
+            System.out.println(errorMessage);
+            throw new IOException(errorMessage);
+        }
+
+        acquirePermit();
+        try {
+            return convertWithPermit(equiData, faceSize(equiData.getWidth()), new ConversionTimings());
+        } finally {
+            releasePermit();
+        }
+    }
+
+    /**
+     * Converts an equirectangular image file into six cube faces, while it is
+     * decoded if streaming is enabled (see {@link #setStreaming(boolean)}).
+     * The faces of a cube map file are sliced without projection, see {@link CubemapInput},
+     * the others are leveled, see {@link #setLeveling(boolean)}.
+     * @param file The file containing a cylindrical equidistant projection of a spherical panorama
+     * @throws IOException if the file cannot be read, the image is not equirectangular or the conversion fails
+     * @throws InterruptedIOException if the calling thread is interrupted
+     */
+    public BufferedImage[] convert(File file) throws IOException {
+        ConversionTimings timings = new ConversionTimings();
+        if (CubemapInput.detect(file) != null) {
+            long startTime = System.nanoTime();
+            BufferedImage[] faces = CubemapInput.load(file);
+            timings.decodeNanos = System.nanoTime() - startTime;
+            timings.faceSize = faces[0].getWidth();
+            timings.cubemap = true;
+            lastTimings.set(timings);
+            return faces;
+        }
+        Orientation orientation = orientationOf(file);
+        if (!streaming) {
+            return convert(decode(file, 1, timings), orientation, timings);
+        }
+        Dimension size = EquirectangularToCubic.readImageSize(file);
+        if (size.width != size.height * 2) {
+            String errorMessage = "Image is not equirectangular (" + size.width + " x " + size.height + ")";
+            System.out.println(errorMessage);
+            throw new IOException(errorMessage);
+        }
+
+        acquirePermit();
+        try {
+            BufferedImage[] faces = convertStreaming(file, size.width, size.height, faceSize(size.width),
+                    orientation, timings);
+            if (faces == null) {
+                // not decodable by the streaming decoder
+                return convertWithPermit(extract(decode(file, 1, timings), sourceStorage, orientation, timings),
+                        faceSize(size.width), timings);
+            }
+            return faces;
+        } finally {
+            releasePermit();
+        }
+    }
+
+    /**
+     * Converts an image file with the settings chosen by a memory budget: storage,
+     * streaming, subsampling and size of the faces. The panorama is leveled as by {@link #convert(File)}.
+     * @param file The file containing a cylindrical equidistant projection of a spherical panorama
+     * @param budget The settings returned by {@link MemoryBudget#plan(File, long, int)} for this file
+     * @throws IOException if the file cannot be read or the conversion fails
+     * @throws InterruptedIOException if the calling thread is interrupted
+     */
+    public BufferedImage[] convert(File file, MemoryBudget budget) throws IOException {
+        if(verboseMode) System.out.println(budget);
+        ConversionTimings timings = new ConversionTimings();
+        Orientation orientation = orientationOf(file);
+        acquirePermit();
+        try {
+            if (budget.isStreaming()) {
+                BufferedImage[] faces = convertStreaming(file, budget.getEquiWidth(), budget.getEquiHeight(),
+                        budget.getFaceSize(), orientation, timings);
+                if (faces != null) {
+                    return faces;
+                }
+            }
+            // the decoded image is only referenced by the source, released with it
+            return convertWithPermit(extract(decode(file, budget.getSubsampling(), timings), budget.getStorage(),
+                    orientation, timings), budget.getFaceSize(), timings);
+        } finally {
+            releasePermit();
+        }
+    }
+
+    // horizontal field of view of a face, wider than 90 degrees by the overlap
+    static double faceFov(int equiWidth) {
+        double r = equiWidth / (2D * Math.PI);
+        double y = (Math.tan( Math.PI/4D ) * r + EquirectangularToCubic.overlap);
+        return Math.atan( y / r ) * 180 / Math.PI * 2;
+    }
+
+    /**
+     * Returns the size in pixels of the faces of a panorama equiWidth pixels wide
+     */
+    public static int faceSize(int equiWidth) {
+        double r = equiWidth / (2D * Math.PI);
+        double y = (Math.tan( Math.PI/4D ) * r + EquirectangularToCubic.overlap);
+        return (int) (y * 2);
+    }
+
+    // field of view of a face of rectWidth pixels, possibly smaller than the full resolution one
+    static double faceFov(int equiWidth, int rectWidth) {
+        if (rectWidth == faceSize(equiWidth)) {
+            return faceFov(equiWidth);
+        }
+        double y = rectWidth / 2D;
+        return Math.atan( y / (y - EquirectangularToCubic.overlap) ) * 180 / Math.PI * 2;
+    }
+
+    /**
+     * Writes a rectilinear view of any size, e.g. for printing, to a JPEG, PNG or
+     * TIFF file chosen by its extension. The view is rendered in bands of rows in
+     * parallel, see {@link RectilinearView}: PNG and TIFF files are written band by
+     * band in bounded memory, while the JPEG writer of ImageIO reads the whole
+     * image at once, which then takes 3 bytes per pixel.
+     * @param equiData The pixels of a cylindrical equidistant projection, see {@link EquiSource#fromImage}
+     * @param yaw Yaw of the center of the view in degrees
+     * @param pitch Pitch of the center of the view in degrees, positive towards the zenith
+     * @param fov Horizontal field of view in degrees
+     * @param width Width of the view in pixels
+     * @param height Height of the view in pixels
+     * @throws IOException if the format is not supported or the file cannot be written
+     */
+    public void exportView(EquiSource equiData, double yaw, double pitch, double fov, int width, int height,
+                           File file) throws IOException {
+        String name = file.getName().toLowerCase();
+        String format = name.endsWith(".png") ? "png" : name.endsWith(".tif") || name.endsWith(".tiff") ? "tiff" :
+                name.endsWith(".jpg") || name.endsWith(".jpeg") ? "jpeg" : null;
+        if (format == null) {
+            throw new IOException("Unsupported format, use .jpg, .png or .tif: " + file);
+        }
+        ImageWriter writer = ImageIO.getImageWritersByFormatName(format).next();
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        if (format.equals("jpeg")) {
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(0.95f);
+        } else if (format.equals("tiff")) {
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionType("LZW");
+        }
+        long startTime = System.nanoTime();
+        acquirePermit();
+        Path target = file.getAbsoluteFile().toPath();
+        // written next to the file and renamed over it once complete: a failed export keeps the previous file
+        Path temporary = target.resolveSibling(".tmp-" + file.getName() + "-" + System.nanoTime());
+        RectilinearView view = null;
+        try {
+            view = new RectilinearView(equiData, yaw, pitch, fov, width, height, executor, parallelism);
+            try (ImageOutputStream out = ImageIO.createImageOutputStream(temporary.toFile())) {
+                if (out == null) {
+                    throw new IOException("Cannot write " + file);
+                }
+                writer.setOutput(out);
+                writer.write(null, new IIOImage(view, null, null), param);
+            }
+            try {
+                Files.move(temporary, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (CancellationException e) {
+            InterruptedIOException interrupted = new InterruptedIOException("Export interrupted");
+            interrupted.initCause(e);
+            throw interrupted;
+        } finally {
+            writer.dispose();
+            if (view != null) {
+                view.dispose();
+            }
+            releasePermit();
+            Files.deleteIfExists(temporary);
+        }
+        if(verboseMode) System.out.println("It took " + (System.nanoTime() - startTime) / 1000000L +
+                " ms to export a " + width + " x " + height + " view to " + file);
+    }
+
+    /**
+     * Renders many views of one panorama in parallel on the pool of the engine,
+     * sharing the interpolation weights of the views of the same scale, and returns
+     * them as they complete, see {@link ViewBatch}. The views are upright, as those
+     * exported by {@link #exportView}.
+     * @param equiData The pixels of a cylindrical equidistant projection, see {@link EquiSource#fromImage}
+     * @param views The views to render
+     */
+    public ViewBatch renderViews(EquiSource equiData, List<ViewSpec> views) {
+        return new ViewBatch(executor, equiData, views, getMaxInterpolationError());
+    }
+
+    /**
+     * Renders one view into the given pixels, in bands of rows in parallel on the
+     * pool of the engine, and waits for it: for views shown live, redrawn into the
+     * same buffer while the user drags, see {@link Projection}.
+     * @param equiData The pixels of a cylindrical equidistant projection, see {@link EquiSource#fromImage}
+     * @param view The view to render
+     * @param pixels At least width x height RGB pixels, row by row
+     * @throws IOException if the projection failed or the caller was interrupted
+     */
+    public void renderView(EquiSource equiData, ViewSpec view, int[] pixels) throws IOException {
+        checkViewPixels(view, pixels);
+        drawBands(Equi2Rect.prepareView(view.getProjection(), view.getYaw(), view.getPitch(), view.getRoll(),
+                view.getFov(), equiData, pixels, view.getWidth(), view.getHeight(),
+                view.getInterpolation() == ViewSpec.Interpolation.BILINEAR,
+                view.getInterpolation() == ViewSpec.Interpolation.LANCZOS2, getMaxInterpolationError()),
+                view.getHeight());
+    }
+
+    /**
+     * Same as {@link #renderViews(EquiSource, List)} from the frame of a dual-fisheye
+     * camera, without stitching it first: LANCZOS2 views are interpolated bilinearly
+     */
+    public ViewBatch renderViews(DualFisheyeSource fisheye, List<ViewSpec> views) {
+        return new ViewBatch(executor, fisheye, views, getMaxInterpolationError());
+    }
+
+    /**
+     * Same as {@link #renderView(EquiSource, ViewSpec, int[])} from the frame of a
+     * dual-fisheye camera: LANCZOS2 views are interpolated bilinearly
+     */
+    public void renderView(DualFisheyeSource fisheye, ViewSpec view, int[] pixels) throws IOException {
+        checkViewPixels(view, pixels);
+        drawBands(Equi2Rect.prepareView(view.getProjection(), view.getYaw(), view.getPitch(), view.getRoll(),
+                view.getFov(), fisheye, pixels, view.getWidth(), view.getHeight(),
+                view.getInterpolation() == ViewSpec.Interpolation.NEAREST, getMaxInterpolationError()),
+                view.getHeight());
+    }
+
+    private static void checkViewPixels(ViewSpec view, int[] pixels) {
+        if (pixels.length < view.getWidth() * view.getHeight()) {
+            throw new IllegalArgumentException("The pixels are fewer than those of the view: " + pixels.length);
+        }
+    }
+
+    // draws the bands of rows of a view on the pool and waits for them
+    private void drawBands(Equi2Rect.PreparedView prepared, int height) throws IOException {
+        int bandRows = Equi2Rect.QT_CELL_SIZE;
+        List<Future<?>> bands = new ArrayList<>();
+        for (int firstRow = 0; firstRow < height; firstRow += bandRows) {
+            int band = firstRow;
+            bands.add(executor.submit(() -> prepared.draw(band, band + bandRows)));
+        }
+        for (Future<?> band : bands) {
+            await(band, bands);
+        }
+    }
+
+    /**
+     * Projects the rows [firstRow, lastRow) of a cube face of faceSize pixels, numbered
+     * as in the array returned by {@link #convert(BufferedImage)}, into a new array
+     * holding only these rows. firstRow and lastRow must be multiples of 64, except
+     * the last row of the face; the pixels are those of the whole face.
+     * Faces reduced more than 4 times, like the low levels of the tiles, are projected
+     * at a multiple of their size and averaged, within the range of the Lanczos2 weights.
+     */
+    public static int[] extractFaceRows(EquiSource equiData, int face, int faceSize, int firstRow, int lastRow) {
+        return extractFaceRows(equiData, face, faceSize, firstRow, lastRow, Equi2Rect.getMaxInterpolationError());
+    }
+
+    /**
+     * Same as {@link #extractFaceRows} with the interpolation error of this engine,
+     * within its conversion permits: blocks while the maximum number of concurrent
+     * conversions is running. The rows are projected by the calling thread.
+     * @throws InterruptedIOException if the calling thread is interrupted while waiting
+     */
+    public int[] renderFaceRows(EquiSource equiData, int face, int faceSize, int firstRow, int lastRow)
+            throws InterruptedIOException {
+        acquirePermit();
+        try {
+            return extractFaceRows(equiData, face, faceSize, firstRow, lastRow, getMaxInterpolationError());
+        } finally {
+            releasePermit();
+        }
+    }
+
+    private static int[] extractFaceRows(EquiSource equiData, int face, int faceSize, int firstRow, int lastRow,
+                                         double maxError) {
+        lastRow = Math.min(lastRow, faceSize);
+        double fov = faceFov(equiData.getWidth(), faceSize);
+        int[] pixels = new int[(lastRow - firstRow) * faceSize];
+        int factor = Equi2Rect.lanczos2_supersampling(
+                Equi2Rect.lanczos2_compute_view_scale(equiData.getWidth(), faceSize, fov));
+        if (factor == 1) {
+            Equi2Rect.extractRectilinearTile(FACE_YAW[face], FACE_PITCH[face], fov, equiData, pixels, faceSize,
+                    faceSize, firstRow, lastRow, false, true, false, maxError);
+            return pixels;
+        }
+        int size = faceSize * factor;
+        int[] large = new int[(lastRow - firstRow) * factor * size];
+        Equi2Rect.extractRectilinearTile(FACE_YAW[face], FACE_PITCH[face], fov, equiData, large, size, size,
+                firstRow * factor, lastRow * factor, false, true, false, maxError);
+        Equi2Rect.box_reduce(large, 0, size, (lastRow - firstRow) * factor, factor, pixels, 0);
+        return pixels;
+    }
+
+    // pixels of a TYPE_INT_RGB face, written in place by the projection
+    static int[] pixels(BufferedImage face) {
+        return ((DataBufferInt) face.getRaster().getDataBuffer()).getData();
+    }
+
+    // the decoded rows kept by a streaming conversion are limited to this fraction of the image
+    static final int STREAMING_BUFFER_FRACTION = 4;
+
+    static final double[] FACE_YAW = {0.0, 90.0, 180.0, 270.0, 0.0, 0.0};
+    static final double[] FACE_PITCH = {0.0, 0.0, 0.0, 0.0, 90.0, -90.0};
+
+    private BufferedImage decode(File file, int subsampling, ConversionTimings timings) throws IOException {
+        long startTime = System.nanoTime();
+        BufferedImage image = EquirectangularToCubic.loadImage(file, subsampling);
+        timings.decodeNanos = System.nanoTime() - startTime;
+        return image;
+    }
+
+    // the rows of INT_ARGB sources come from the pool, returned once the faces are projected
+    private EquiSource extract(BufferedImage image, EquiSource.Storage storage, Orientation orientation,
+                               ConversionTimings timings) {
+        long startTime = System.nanoTime();
+        EquiSource source = EquiSource.fromImage(image, storage, bufferPool);
+        source.setOrientation(orientation);
+        timings.extractNanos = System.nanoTime() - startTime;
+        return source;
+    }
+
+    private BufferedImage[] convertWithPermit(EquiSource equiData, int rectWidth, ConversionTimings timings)
+            throws IOException {
+        double fov = faceFov(equiData.getWidth(), rectWidth); // horizontal field of view
+        int rectHeight = rectWidth;
+        double maxError = getMaxInterpolationError();
+
+        BufferedImage[] outputArray = new BufferedImage[6];
+
+        FaceMappingCache cache = mappingCache;
+        // the mapping tables are gathered by face
+        int rows = cache == null && bandRows > 0 ? Math.min(bandRows, rectHeight) : rectHeight;
+        int bands = (rectHeight + rows - 1) / rows;
+
+        long startTime = System.nanoTime();
+        if(verboseMode) System.out.println("There are " + Runtime.getRuntime().availableProcessors() +
+                " cores. Using " + Math.min(6 * bands, parallelism) + " threads.");
+
+        List<Future<?>> rectData = new ArrayList<>(6 * bands);
+        AtomicLongArray faceNanos = new AtomicLongArray(6);
+
+        // Allocate memory for results, the tasks write directly into the faces
+        for(int i = 0; i < 6; i++) {
+            outputArray[i] = bufferPool.acquireImage(rectWidth, rectHeight);
+        }
+
+        // Start tasks
+        for(int i = 0; i < 6; i++){
+            int face = i;
+            if (bands == 1) {
+                callableProcessor processor = new callableProcessor(FACE_YAW[i],FACE_PITCH[i],fov,equiData,
+                        pixels(outputArray[i]),rectWidth,rectHeight,cache,maxError);
+                rectData.add(executor.submit(() -> {
+                    long faceStart = System.nanoTime();
+                    processor.call();
+                    faceNanos.addAndGet(face, System.nanoTime() - faceStart);
+                }));
+                continue;
+            }
+            for (int firstRow = 0; firstRow < rectHeight; firstRow += rows) {
+                int first = firstRow;
+                rectData.add(executor.submit(() -> {
+                    long bandStart = System.nanoTime();
+                    Equi2Rect.extractRectilinearRows(FACE_YAW[face], FACE_PITCH[face], fov, equiData,
+                            pixels(outputArray[face]), rectWidth, rectHeight, first,
+                            Math.min(first + rows, rectHeight), false, true, maxError);
+                    faceNanos.addAndGet(face, System.nanoTime() - bandStart);
+                }));
+            }
+        }
+
+        // Wait for tasks to finish computation
+        for (Future<?> task : rectData) {
+            await(task, rectData);
+        }
+        for (int i = 0; i < 6; i++) {
+            timings.faceNanos[i] = faceNanos.get(i);
+        }
+
+        if(verboseMode) System.out.println("Image processed.");
+        // not after a failure: cancelled tasks may still read the rows
+        equiData.release();
+
+        long endTime = System.nanoTime();
+        long duration = (endTime - startTime) / 1000000L;  //divide by 1000000 to get milliseconds.
+        timings.projectNanos = endTime - startTime;
+        timings.faceSize = rectWidth;
+        lastTimings.set(timings);
+        if(verboseMode)  System.out.println("It took " + duration + " ms to generate the skybox.");
+        if(verboseMode && cache != null) System.out.println(cache);
+
+        return outputArray;
+    }
+
+    /**
+     * Projects the bands of the faces while the file is decoded, returns null if
+     * the streaming decoder cannot read the file
+     */
+    private BufferedImage[] convertStreaming(File file, int equiWidth, int equiHeight, int rectWidth,
+                                             Orientation orientation, ConversionTimings timings) throws IOException {
+        double fov = faceFov(equiWidth, rectWidth);
+        int rectHeight = rectWidth;
+        int bandRows = Equi2Rect.QT_CELL_SIZE;
+        // the rows required by the bands are those read with this error
+        double maxError = getMaxInterpolationError();
+        long startTime = System.nanoTime();
+
+        // plan the bands of the faces, in the order their rows are decoded
+        StreamingEquiSource source = new StreamingEquiSource(equiWidth, equiHeight,
+                3L * equiWidth * equiHeight / STREAMING_BUFFER_FRACTION);
+        source.setOrientation(orientation);
+        BufferedImage[] outputArray = new BufferedImage[6];
+        int[][] faces = new int[6][];
+        for (int i = 0; i < 6; i++) {
+            outputArray[i] = bufferPool.acquireImage(rectWidth, rectHeight);
+            faces[i] = pixels(outputArray[i]);
+        }
+        List<FaceBand> plan = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            int[][] rows = Equi2Rect.sourceRowsOfBands(FACE_YAW[i], FACE_PITCH[i], fov, equiWidth, equiHeight,
+                    rectWidth, rectHeight, bandRows, false, true, orientation, maxError);
+            for (int b = 0; b < rows.length; b++) {
+                // bottom-up source rows to top-down image rows
+                FaceBand band = new FaceBand(i, b * bandRows, equiHeight - 1 - rows[b][1],
+                        equiHeight - 1 - rows[b][0]);
+                source.require(band.firstImageRow, band.lastImageRow);
+                plan.add(band);
+            }
+        }
+        plan.sort(Comparator.comparingInt(band -> band.lastImageRow));
+
+        List<Future<?>> tasks = new ArrayList<>(plan.size());
+        BandTasks running = new BandTasks();
+        AtomicLongArray faceNanos = new AtomicLongArray(6);
+        try {
+            source.start(file);
+            int next = 0;
+            int rowsDone = 0;
+            while (next < plan.size()) {
+                try {
+                    rowsDone = source.awaitRows(rowsDone);
+                } catch (InterruptedIOException e) {
+                    throw e;
+                } catch (IOException e) {
+                    if (next == 0) {
+                        for (BufferedImage face : outputArray) {
+                            bufferPool.release(face);
+                        }
+                        return null;
+                    }
+                    throw new IOException("Cannot decode image file: " + file, e);
+                }
+                for (; next < plan.size() && plan.get(next).lastImageRow < rowsDone; next++) {
+                    FaceBand band = plan.get(next);
+                    tasks.add(executor.submit(() -> {
+                        if (!running.enter()) {
+                            return;
+                        }
+                        long bandStart = System.nanoTime();
+                        try {
+                            Equi2Rect.extractRectilinearRows(FACE_YAW[band.face], FACE_PITCH[band.face], fov,
+                                    source, faces[band.face], rectWidth, rectHeight,
+                                    band.firstRow, band.firstRow + bandRows, false, true, maxError);
+                        } finally {
+                            source.release(band.firstImageRow, band.lastImageRow);
+                            faceNanos.addAndGet(band.face, System.nanoTime() - bandStart);
+                            running.exit();
+                        }
+                    }));
+                }
+            }
+            for (Future<?> task : tasks) {
+                await(task, tasks);
+            }
+        } finally {
+            cancelAll(tasks);
+            // the bands being projected still read the rows that stop frees
+            running.close();
+            source.stop();
+        }
+
+        timings.projectNanos = System.nanoTime() - startTime;
+        for (int i = 0; i < 6; i++) {
+            timings.faceNanos[i] = faceNanos.get(i);
+        }
+        timings.faceSize = rectWidth;
+        timings.streaming = true;
+        lastTimings.set(timings);
+        long duration = timings.projectNanos / 1000000L;
+        if(verboseMode) System.out.println("It took " + duration + " ms to decode and generate the skybox " +
+                (source.isStreaming() ? "while streaming" : "after decoding") + ", peak " +
+                (source.getPeakBytes() >> 20) + " MB of decoded rows out of " +
+                (3L * equiWidth * equiHeight >> 20) + " MB.");
+        return outputArray;
+    }
+
+    // a band of rows of a face and the rows of the image it reads
+    private static final class FaceBand {
+        final int face;
+        final int firstRow;
+        final int firstImageRow;
+        final int lastImageRow;
+
+        FaceBand(int face, int firstRow, int firstImageRow, int lastImageRow) {
+            this.face = face;
+            this.firstRow = firstRow;
+            this.firstImageRow = firstImageRow;
+            this.lastImageRow = lastImageRow;
+        }
+    }
+
+    /**
+     * Waits for a task submitted by a conversion. If the task failed or the
+     * caller is interrupted, the other tasks of the conversion are cancelled
+     * and the failure is rethrown to the caller.
+     */
+    <T> T await(Future<T> task, List<? extends Future<?>> siblings) throws IOException {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            cancelAll(siblings);
+            Thread.currentThread().interrupt();
+            InterruptedIOException interrupted = new InterruptedIOException("Conversion interrupted");
+            interrupted.initCause(e);
+            throw interrupted;
+        } catch (ExecutionException e) {
+            cancelAll(siblings);
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw new IOException("Conversion failed: " + cause, cause);
+        }
+    }
+
+    // band tasks of a streaming conversion: once closed, those not started yet do
+    // nothing, and close waits for those running
+    private static final class BandTasks {
+        private int running;
+        private boolean closed;
+
+        synchronized boolean enter() {
+            if (closed) {
+                return false;
+            }
+            running++;
+            return true;
+        }
+
+        synchronized void exit() {
+            running--;
+            notifyAll();
+        }
+
+        synchronized void close() {
+            closed = true;
+            boolean interrupted = false;
+            while (running > 0) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static void cancelAll(List<? extends Future<?>> tasks) {
+        for (Future<?> task : tasks) {
+            task.cancel(true);
+        }
+    }
+
+    void acquirePermit() throws InterruptedIOException {
+        try {
+            conversionPermits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a conversion slot");
+        }
+    }
+
+    void releasePermit() {
+        conversionPermits.release();
+    }
+
+    /**
+     * Shuts down the executor if it is owned by the engine
+     */
+    @Override
+    public void close() {
+        if (ownsExecutor) {
+            executor.shutdown();
+        }
+    }
+
+    static ExecutorKind executorKindFromProperty() {
+        switch (System.getProperty("equi2rect.executor", "auto").trim().toLowerCase()) {
+            case "forkjoin":
+                return ExecutorKind.FORK_JOIN;
+            case "virtual":
+                return ExecutorKind.VIRTUAL_THREADS;
+            default:
+                return ExecutorKind.AUTO;
+        }
+    }
+
+    static EquiSource.Storage storageFromProperty() {
+        switch (System.getProperty("equi2rect.sourceStorage", "int").trim().toLowerCase()) {
+            case "packed":
+                return EquiSource.Storage.PACKED_RGB;
+            case "offheap":
+                return EquiSource.Storage.PACKED_RGB_OFF_HEAP;
+            default:
+                return EquiSource.Storage.INT_ARGB;
+        }
+    }
+
+    static int bandRowsFromProperty() {
+        int rows = Integer.getInteger("equi2rect.bandRows", 0);
+        return rows > 0 ? (rows + Equi2Rect.QT_CELL_SIZE - 1) / Equi2Rect.QT_CELL_SIZE * Equi2Rect.QT_CELL_SIZE : 0;
+    }
+
+    static ExecutorService createExecutor(ExecutorKind kind) {
+        if (kind != ExecutorKind.FORK_JOIN) {
+            ExecutorService virtualExecutor = createVirtualThreadExecutor();
+            if (virtualExecutor != null) {
+                return virtualExecutor;
+            }
+            if (kind == ExecutorKind.VIRTUAL_THREADS) {
+                System.err.println("Virtual threads need JDK 21+, using a fork/join pool.");
+            }
+        }
+        return new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+    }
+
+    // Looked up by reflection: the project is compiled for JDK 11
+    private static ExecutorService createVirtualThreadExecutor() {
+        if (Runtime.version().feature() < 21) {
+            return null;
+        }
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+}
+
+class callableProcessor implements Callable<int[]> {
+    /**
+     * Callable to compute a gnomonic projection
+     */
+    public callableProcessor(double yaw, double pitch, double fov, EquiSource equiData, int[] rectData,
+                             int rectWidth, int rectHeight, FaceMappingCache cache, double maxError) {
+        this.yaw = yaw;
+        this.pitch = pitch;
+        this.fov = fov;
+        this.equiData = equiData;
+        this.rectData = rectData;
+        this.rectWidth = rectWidth;
+        this.rectHeight = rectHeight;
+        this.cache = cache;
+        this.maxError = maxError;
+    }
+
+    private double yaw;
+    private double pitch;
+    private double fov;
+    private EquiSource equiData;
+    private int[] rectData;
+    private int rectWidth;
+    private int rectHeight;
+    private FaceMappingCache cache;
+    private double maxError;
+
+    public int[] call() {
+        if (cache != null) {
+            FaceMappingTable table = cache.getTable(yaw, pitch, fov, equiData.getWidth(), equiData.getHeight(),
+                    rectWidth, rectHeight, equiData.getOrientation(), maxError);
+            Equi2Rect.extractRectilinear(table, equiData, rectData, false, true);
+        } else {
+            Equi2Rect.extractRectilinear(yaw,pitch,fov,equiData,rectData,rectWidth,rectHeight,false,true,maxError);
+        }
+        return rectData;
+    }
+}
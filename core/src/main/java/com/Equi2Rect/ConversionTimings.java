@@ -0,0 +1,79 @@
+/*
+Copyright 2020 Alessandro Bruno
+
+This file is part of EquirectangulartoCubic.java.
+EquirectangulartoCubic is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+EquirectangulartoCubic is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+You should have received a copy of the GNU General Public License along with EquirectangulartoCubic. If not, see http://www.gnu.org/licenses/.
+*/
+
+package com.Equi2Rect;
+
+/**
+ * Time spent in the stages of a conversion, see {@link ConversionEngine#getLastTimings()}:
+ * decoding the file, extracting its pixels into an {@link EquiSource} and
+ * projecting the six faces in parallel, with the time of each face. When
+ * streaming, decoding and projection overlap and are measured together as the
+ * projection.
+ */
+public final class ConversionTimings {
+
+    long decodeNanos;
+    long extractNanos;
+    long projectNanos;
+    final long[] faceNanos = new long[6];
+    int faceSize;
+    boolean streaming;
+    boolean cubemap;
+
+    public long getDecodeNanos() {
+        return decodeNanos;
+    }
+
+    public long getExtractNanos() {
+        return extractNanos;
+    }
+
+    /**
+     * Returns the wall time of the projection of the six faces
+     */
+    public long getProjectNanos() {
+        return projectNanos;
+    }
+
+    /**
+     * Returns the time spent projecting a face, summed over its bands when streaming
+     */
+    public long getFaceNanos(int face) {
+        return faceNanos[face];
+    }
+
+    public int getFaceSize() {
+        return faceSize;
+    }
+
+    /**
+     * Returns true if the faces were projected while the file was decoded
+     */
+    public boolean isStreaming() {
+        return streaming;
+    }
+
+    /**
+     * Returns true if the faces were read from a cube map, without projection
+     */
+    public boolean isCubemap() {
+        return cubemap;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder faces = new StringBuilder();
+        for (long nanos : faceNanos) {
+            faces.append(faces.length() == 0 ? "" : " ").append(nanos / 1000000L);
+        }
+        return String.format("decode %d ms, extract %d ms, %s %d ms (faces %s ms), face size %d",
+                decodeNanos / 1000000L, extractNanos / 1000000L,
+                streaming ? "decode and project" : "project", projectNanos / 1000000L, faces, faceSize);
+    }
+}
@@ -0,0 +1,231 @@
+/*
+Copyright 2020 Alessandro Bruno
+
+This file is part of EquirectangulartoCubic.java.
+EquirectangulartoCubic is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+EquirectangulartoCubic is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+You should have received a copy of the GNU General Public License along with EquirectangulartoCubic. If not, see http://www.gnu.org/licenses/.
+*/
+
+package com.Equi2Rect;
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Panoramas already stored as cube faces, which are sliced out of the decoded
+ * image without any projection. The faces are returned as those of
+ * {@link EquirectangularToCubic}: 0 to 3 around the horizon (front, right, back,
+ * left), 4 down and 5 up, mirrored vertically with the nadir at the top.
+ * Supported layouts, detected from the image size:
+ * <pre>
+ *   six files      name_0 ... name_5, as written by EquirectangularToCubic, or upright faces
+ *                  name_front/right/back/left/up/down (or top/bottom), name_f/r/b/l/u/d
+ *   6:1 and 1:6    strips of the upright faces front, right, back, left, up, down
+ *   4:3 cross      the layout of EquirectangularToCubic (4 above 0, 5 below 0), or the
+ *                  usual horizontal cross of upright faces: left front right back, with up
+ *                  above and down below the front
+ *   3:4 cross      up above left front right, down below the front, then back upside down
+ * </pre>
+ * The upright faces of the other tools, with the sky at the top, are mirrored
+ * and their up and down faces swapped, the faces of EquirectangularToCubic are
+ * used as stored. The image is decoded once and the faces sliced from it share
+ * its pixels, unless they are mirrored. Reading the faces one by one with a
+ * source region would not save work: the JPEG reader decodes every row above a
+ * region, up to the whole image for each face of a strip.
+ */
+public final class CubemapInput {
+
+    /** Arrangement of the faces */
+    public enum Layout {
+        SIX_FILES,
+        HORIZONTAL_STRIP,
+        VERTICAL_STRIP,
+        HORIZONTAL_CROSS,
+        VERTICAL_CROSS
+    }
+
+    // names of the faces 0 to 5 in the file names of the six files layouts
+    private static final String[][] FACE_NAMES = {
+            {"0", "1", "2", "3", "4", "5"},
+            {"front", "right", "back", "left", "up", "down"},
+            {"front", "right", "back", "left", "top", "bottom"},
+            {"f", "r", "b", "l", "u", "d"}};
+    private static final Pattern FACE_FILE = Pattern.compile(
+            "(.*?)([0-5]|front|right|back|left|up|down|top|bottom|[frblud])(\\.[a-z]+)", Pattern.CASE_INSENSITIVE);
+
+    // cells of the faces 0 to 5 of EquirectangularToCubic, then of the upright faces front,
+    // right, back, left, up and down of the usual crosses: {column, row}
+    private static final int[][] DOCUMENTED_CROSS = {{0, 1}, {1, 1}, {2, 1}, {3, 1}, {0, 0}, {0, 2}};
+    private static final int[][] HORIZONTAL_CROSS = {{1, 1}, {2, 1}, {3, 1}, {0, 1}, {1, 0}, {1, 2}};
+    private static final int[][] VERTICAL_CROSS = {{1, 1}, {2, 1}, {1, 3}, {0, 1}, {1, 0}, {1, 2}};
+
+    private CubemapInput() {
+    }
+
+    /**
+     * Returns the layout of a cube map file, or null if it is not one (e.g. an
+     * equirectangular panorama). Only the header of the image is read.
+     */
+    public static Layout detect(File file) throws IOException {
+        Dimension size = EquirectangularToCubic.readImageSize(file);
+        int w = size.width;
+        int h = size.height;
+        if (w == 6 * h) return Layout.HORIZONTAL_STRIP;
+        if (h == 6 * w) return Layout.VERTICAL_STRIP;
+        if (w % 4 == 0 && 3 * w == 4 * h) return Layout.HORIZONTAL_CROSS;
+        if (w % 3 == 0 && 4 * w == 3 * h) return Layout.VERTICAL_CROSS;
+        if (w == h && faceFiles(file) != null) return Layout.SIX_FILES;
+        return null;
+    }
+
+    /**
+     * Returns the six files of the faces 0 to 5 of the cube map a file belongs to,
+     * or null if the file is not one of six files named after their faces
+     */
+    public static File[] faceFiles(File file) {
+        Matcher matcher = FACE_FILE.matcher(file.getName());
+        File directory = file.getAbsoluteFile().getParentFile();
+        String[] names = directory == null ? null : directory.list();
+        if (!matcher.matches() || names == null) {
+            return null;
+        }
+        Map<String, String> siblings = new HashMap<>();
+        for (String name : names) {
+            siblings.put(name.toLowerCase(Locale.ROOT), name);
+        }
+        String prefix = matcher.group(1);
+        String extension = matcher.group(3);
+        for (String[] faceNames : FACE_NAMES) {
+            File[] files = new File[6];
+            for (int i = 0; i < 6; i++) {
+                String name = siblings.get((prefix + faceNames[i] + extension).toLowerCase(Locale.ROOT));
+                if (name == null) {
+                    files = null;
+                    break;
+                }
+                files[i] = new File(directory, name);
+            }
+            if (files != null) {
+                return files;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Loads the six faces of a cube map file, numbered and oriented as in {@link EquirectangularToCubic}
+     * @throws IOException if the file is not a cube map or cannot be decoded
+     */
+    public static BufferedImage[] load(File file) throws IOException {
+        Layout layout = detect(file);
+        if (layout == null) {
+            throw new IOException("Not a cube map: " + file);
+        }
+        BufferedImage[] faces = new BufferedImage[6];
+        if (layout == Layout.SIX_FILES) {
+            File[] files = faceFiles(file);
+            for (int i = 0; i < 6; i++) {
+                faces[i] = EquirectangularToCubic.loadImage(files[i]);
+                if (faces[i] == null || faces[i].getWidth() != faces[i].getHeight()
+                        || (i > 0 && faces[i].getWidth() != faces[0].getWidth())) {
+                    throw new IOException("The faces of a cube map must be squares of the same size: " + files[i]);
+                }
+            }
+            // name_0 to name_5 are the faces of EquirectangularToCubic
+            Matcher matcher = FACE_FILE.matcher(files[0].getName());
+            return matcher.matches() && matcher.group(2).equals("0") ? faces : fromUpright(faces);
+        }
+        BufferedImage image = EquirectangularToCubic.loadImage(file);
+        if (image == null) {
+            throw new IOException("Cannot read image file: " + file);
+        }
+        switch (layout) {
+            case HORIZONTAL_STRIP:
+                return fromUpright(slice(image, image.getHeight(),
+                        new int[][] {{0, 0}, {1, 0}, {2, 0}, {3, 0}, {4, 0}, {5, 0}}));
+            case VERTICAL_STRIP:
+                return fromUpright(slice(image, image.getWidth(),
+                        new int[][] {{0, 0}, {0, 1}, {0, 2}, {0, 3}, {0, 4}, {0, 5}}));
+            case HORIZONTAL_CROSS: {
+                int size = image.getWidth() / 4;
+                // the empty cells tell the two 4:3 crosses apart
+                return isEmpty(image, 0, 0, size) && !isEmpty(image, 1, 0, size) ?
+                        fromUpright(slice(image, size, HORIZONTAL_CROSS)) : slice(image, size, DOCUMENTED_CROSS);
+            }
+            default: {
+                faces = slice(image, image.getWidth() / 3, VERTICAL_CROSS);
+                faces[2] = rotate180(faces[2]);
+                return fromUpright(faces);
+            }
+        }
+    }
+
+    // faces sharing the pixels of the image, cells given as {column, row}
+    private static BufferedImage[] slice(BufferedImage image, int size, int[][] cells) {
+        BufferedImage[] faces = new BufferedImage[6];
+        for (int i = 0; i < 6; i++) {
+            faces[i] = image.getSubimage(cells[i][0] * size, cells[i][1] * size, size, size);
+        }
+        return faces;
+    }
+
+    // true if the cell has a single color, compared on a grid of 16 x 16 pixels
+    private static boolean isEmpty(BufferedImage image, int column, int row, int size) {
+        int first = image.getRGB(column * size, row * size);
+        for (int j = 0; j < 16; j++) {
+            for (int i = 0; i < 16; i++) {
+                int rgb = image.getRGB(column * size + i * (size - 1) / 15, row * size + j * (size - 1) / 15);
+                for (int shift = 0; shift < 24; shift += 8) {
+                    if (Math.abs((rgb >> shift & 0xff) - (first >> shift & 0xff)) > 8) {
+                        return false;
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    // faces front, right, back, left, up and down with the sky at the top to the faces of
+    // EquirectangularToCubic: mirrored vertically, the nadir in 4 and the zenith in 5
+    static BufferedImage[] fromUpright(BufferedImage[] upright) {
+        BufferedImage[] faces = new BufferedImage[6];
+        for (int i = 0; i < 6; i++) {
+            faces[i < 4 ? i : 9 - i] = flipVertically(upright[i]);
+        }
+        return faces;
+    }
+
+    private static BufferedImage flipVertically(BufferedImage face) {
+        int size = face.getWidth();
+        BufferedImage flipped = new BufferedImage(size, size, BufferedImage.TYPE_INT_RGB);
+        int[] row = new int[size];
+        for (int y = 0; y < size; y++) {
+            face.getRGB(0, y, size, 1, row, 0, size);
+            flipped.setRGB(0, size - 1 - y, size, 1, row, 0, size);
+        }
+        return flipped;
+    }
+
+    private static BufferedImage rotate180(BufferedImage face) {
+        int size = face.getWidth();
+        BufferedImage rotated = new BufferedImage(size, size, BufferedImage.TYPE_INT_RGB);
+        int[] row = new int[size];
+        for (int y = 0; y < size; y++) {
+            face.getRGB(0, y, size, 1, row, 0, size);
+            for (int x = 0; x < size / 2; x++) {
+                int tmp = row[x];
+                row[x] = row[size - 1 - x];
+                row[size - 1 - x] = tmp;
+            }
+            rotated.setRGB(0, size - 1 - y, size, 1, row, 0, size);
+        }
+        return rotated;
+    }
+}
@@ -0,0 +1,263 @@
+/*
+Copyright 2020 Alessandro Bruno
+
+This file is part of EquirectangulartoCubic.java.
+EquirectangulartoCubic is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+EquirectangulartoCubic is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+You should have received a copy of the GNU General Public License along with EquirectangulartoCubic. If not, see http://www.gnu.org/licenses/.
+*/
+
+package com.Equi2Rect;
+import java.awt.image.BufferedImage;
+
+/**
+ * Frame of a 360 camera with two opposite fisheye lenses, projected directly to
+ * cube faces and views without stitching an equirectangular image first.
+ * <p>
+ * The projection works as for an equirectangular panorama of the same
+ * resolution: the adaptive sampling gives the longitude and latitude of each
+ * output pixel, and the sampler turns them into a direction, then into the
+ * position in the image of each lens that sees it. Where both lenses see the
+ * direction, their pixels are blended linearly across the overlap band. The
+ * lens images are interpolated bilinearly or with the nearest pixel: the
+ * equirectangular image is never built, the frame is resampled only once.
+ */
+public final class DualFisheyeSource {
+
+    /**
+     * Equidistant fisheye lens: the distance from the center of its circle in the
+     * image is proportional to the angle from its axis
+     */
+    public static final class Lens {
+        private final double centerX;
+        private final double centerY;
+        private final double radius;
+        private final double fov;
+        private final double yaw;
+        private final double roll;
+
+        /**
+         * @param centerX Center of the circle of the lens in the image, in pixels from the left edge
+         * @param centerY Center of the circle of the lens in the image, in pixels from the top edge
+         * @param radius Radius of the circle in pixels
+         * @param fov Field of view of the whole circle in degrees, e.g. 190
+         * @param yaw Direction of the axis of the lens in degrees, 0 for the front, 180 for the back
+         * @param roll Rotation of the image of the lens in degrees, clockwise
+         */
+        public Lens(double centerX, double centerY, double radius, double fov, double yaw, double roll) {
+            if (!(radius > 0) || !(fov > 0 && fov <= 360)) {
+                throw new IllegalArgumentException("Invalid lens: radius " + radius + ", fov " + fov);
+            }
+            this.centerX = centerX;
+            this.centerY = centerY;
+            this.radius = radius;
+            this.fov = fov;
+            this.yaw = yaw;
+            this.roll = roll;
+        }
+
+        public double getCenterX() {
+            return centerX;
+        }
+
+        public double getCenterY() {
+            return centerY;
+        }
+
+        public double getRadius() {
+            return radius;
+        }
+
+        public double getFov() {
+            return fov;
+        }
+
+        public double getYaw() {
+            return yaw;
+        }
+
+        public double getRoll() {
+            return roll;
+        }
+
+        // pixels per radian of the lens
+        double scale() {
+            return radius / Math.toRadians(fov / 2);
+        }
+    }
+
+    private final EquiSource pixels;
+    private final Lens front;
+    private final Lens back;
+    private final int width;
+
+    /**
+     * @param pixels The pixels of the frame, see {@link EquiSource#fromImage}
+     * @param front The lens facing the center of the panorama
+     * @param back The other lens
+     */
+    public DualFisheyeSource(EquiSource pixels, Lens front, Lens back) {
+        this.pixels = pixels;
+        this.front = front;
+        this.back = back;
+        // the equirectangular image with the resolution of the sharpest lens
+        double scale = Math.max(front.scale(), back.scale());
+        width = 2 * (int) Math.round(Math.PI * scale);
+    }
+
+    /**
+     * Frame with the circles of the two lenses side by side, each filling its half
+     * of the image, the front lens on the left, as recorded by most dual-fisheye cameras
+     * @param fov Field of view of each lens in degrees, e.g. 190
+     */
+    public static DualFisheyeSource sideBySide(BufferedImage image, double fov) {
+        double radius = Math.min(image.getWidth() / 4D, image.getHeight() / 2D);
+        double centerY = image.getHeight() / 2D;
+        return new DualFisheyeSource(EquiSource.fromImage(image, ConversionEngine.getShared().getSourceStorage()),
+                new Lens(image.getWidth() / 4D, centerY, radius, fov, 0, 0),
+                new Lens(image.getWidth() * 3 / 4D, centerY, radius, fov, 180, 0));
+    }
+
+    public Lens getFront() {
+        return front;
+    }
+
+    public Lens getBack() {
+        return back;
+    }
+
+    /**
+     * Returns the width of the equirectangular panorama of the same resolution,
+     * which sets the size of the faces
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return width / 2;
+    }
+
+    /**
+     * Returns a sampler of this frame, not shared between threads
+     */
+    Equi2Rect.Sampler newSampler(boolean bilinear) {
+        return new Sampler(bilinear);
+    }
+
+    // reads the pixel at a position of the equirectangular panorama from the lenses that see it
+    private final class Sampler implements Equi2Rect.Sampler {
+        final boolean bilinear;
+        final int pw = width, ph = width / 2;
+        // sine and cosine of the longitude of each column and of the latitude of each row,
+        // linearly interpolated inside the pixel
+        final double[] lon_cos = new double[pw + 1], lon_sin = new double[pw + 1];
+        final double[] lat_cos = new double[ph + 1], lat_sin = new double[ph + 1];
+        final LensSampler front_lens = new LensSampler(front), back_lens = new LensSampler(back);
+        final double axes_angle = Math.toRadians(180 - Math.abs(Math.abs(front.yaw - back.yaw) % 360 - 180));
+
+        Sampler(boolean bilinear) {
+            this.bilinear = bilinear;
+            for (int i = 0; i <= pw; i++) {
+                double lon = (i - (pw >> 1)) * 2 * Math.PI / pw;
+                lon_cos[i] = Math.cos(lon);
+                lon_sin[i] = Math.sin(lon);
+            }
+            for (int j = 0; j <= ph; j++) {
+                double lat = (j - (ph >> 1)) * Math.PI / ph;
+                lat_cos[j] = Math.cos(lat);
+                lat_sin[j] = Math.sin(lat);
+            }
+        }
+
+        @Override
+        public int sample(int xs, int ys, int dx, int dy) {
+            double fx = dx / 256D, fy = dy / 256D;
+            int i = xs < 0 ? xs + pw : xs >= pw ? xs - pw : xs;
+            int j = ys < 0 ? 0 : ys >= ph ? ph - 1 : ys;
+            double cos_lon = lon_cos[i] + (lon_cos[i + 1] - lon_cos[i]) * fx;
+            double sin_lon = lon_sin[i] + (lon_sin[i + 1] - lon_sin[i]) * fx;
+            double cos_lat = lat_cos[j] + (lat_cos[j + 1] - lat_cos[j]) * fy;
+            double sin_lat = lat_sin[j] + (lat_sin[j + 1] - lat_sin[j]) * fy;
+            // direction with x right, y down, z towards the center of the panorama
+            double x = cos_lat * sin_lon, y = sin_lat, z = cos_lat * cos_lon;
+            // the lens whose axis is closer first: outside the overlap band the other one is not needed
+            boolean front_first = front_lens.axis(x, z) >= back_lens.axis(x, z);
+            LensSampler first = front_first ? front_lens : back_lens, second = front_first ? back_lens : front_lens;
+            double first_weight = first.locate(x, y, z);
+            // the angle from the axis of the second lens is at least that between the axes minus the first one
+            if (first_weight > 0 && axes_angle - (first.half_fov - first_weight) >= second.half_fov) {
+                return first.sample();
+            }
+            double second_weight = second.locate(x, y, z);
+            if (first_weight <= 0 || second_weight <= 0) {
+                return first_weight >= second_weight ? first.sample() : second.sample();
+            }
+            // overlap band: the weights decrease linearly to 0 at the edge of each circle
+            int t = (int) (256 * second_weight / (first_weight + second_weight));
+            return blend(first.sample(), second.sample(), t);
+        }
+
+        // position of a direction in the image of one lens
+        final class LensSampler {
+            final double cos_yaw, sin_yaw, cos_roll, sin_roll;
+            final double cx, cy, scale, half_fov;
+            double u, v;
+
+            LensSampler(Lens lens) {
+                cos_yaw = Math.cos(Math.toRadians(lens.yaw));
+                sin_yaw = Math.sin(Math.toRadians(lens.yaw));
+                cos_roll = Math.cos(Math.toRadians(lens.roll));
+                sin_roll = Math.sin(Math.toRadians(lens.roll));
+                // pixel centers at integer coordinates
+                cx = lens.centerX - 0.5;
+                cy = lens.centerY - 0.5;
+                scale = lens.scale();
+                half_fov = Math.toRadians(lens.fov / 2);
+            }
+
+            // cosine of the angle between the direction (x, y, z) and the axis
+            double axis(double x, double z) {
+                return x * sin_yaw + z * cos_yaw;
+            }
+
+            // sets (u, v) to the position of the direction in the image, returns the angle
+            // between the direction and the edge of the circle, negative outside
+            double locate(double x, double y, double z) {
+                double lx = x * cos_yaw - z * sin_yaw;
+                double lz = x * sin_yaw + z * cos_yaw;
+                double r = Math.sqrt(lx * lx + y * y);
+                double theta = Math.atan2(r, lz);
+                double s = r == 0 ? 0 : theta * scale / r;
+                double px = lx * s, py = y * s;
+                u = cx + px * cos_roll - py * sin_roll;
+                v = cy + px * sin_roll + py * cos_roll;
+                return half_fov - theta;
+            }
+
+            int sample() {
+                int mx = pixels.getWidth() - 1, my = pixels.getHeight() - 1;
+                if (!bilinear) {
+                    int col = (int) Math.round(u), row = (int) Math.round(v);
+                    return pixels.getRGB(row < 0 ? 0 : row > my ? my : row, col < 0 ? 0 : col > mx ? mx : col)
+                            | 0xff000000;
+                }
+                int col = (int) Math.floor(u), row = (int) Math.floor(v);
+                int du = (int) ((u - col) * 256), dv = (int) ((v - row) * 256);
+                int c0 = col < 0 ? 0 : col > mx ? mx : col, c1 = col + 1 < 0 ? 0 : col + 1 > mx ? mx : col + 1;
+                int r0 = row < 0 ? 0 : row > my ? my : row, r1 = row + 1 < 0 ? 0 : row + 1 > my ? my : row + 1;
+                return Equi2Rect.bilinear_interp_pixel(pixels.getRGB(r0, c0), pixels.getRGB(r0, c1),
+                        pixels.getRGB(r1, c0), pixels.getRGB(r1, c1), du, dv);
+            }
+        }
+    }
+
+    // a + (b - a) * t / 256 on each channel
+    private static int blend(int a, int b, int t) {
+        int s = 256 - t;
+        int r = ((a >> 16 & 0xff) * s + (b >> 16 & 0xff) * t) >> 8;
+        int g = ((a >> 8 & 0xff) * s + (b >> 8 & 0xff) * t) >> 8;
+        int bl = ((a & 0xff) * s + (b & 0xff) * t) >> 8;
+        return 0xff000000 | r << 16 | g << 8 | bl;
+    }
+}
@@ -0,0 +1,1659 @@
+/* This program is free software; you can redistribute it and/or modify
+   it under the terms of the GNU General Public License as published by
+   the Free Software Foundation; either version 2, or (at your option)
+   any later version.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program; if not, write to the Free Software
+   Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.  */
+
+package com.Equi2Rect;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+public class Equi2Rect {
+
+	static private double mt[][];
+    static private long mi[][];
+    static final int MI_MULT = 4096;
+    static final int MI_SHIFT = 12;
+    static final int NATAN = 65536;
+    static final int NSQRT = 65536;
+	static final int NSQRT_SHIFT = 16;
+	
+	static int sqrt_LU[];
+	static volatile double atan_LU[];
+
+	// high resolution atan tables depend on the panorama width: keep one per width
+	// so that panoramas of different sizes can be converted at the same time
+	static final ConcurrentHashMap<Integer, AtanLookUpHR> atan_LU_HR_cache = new ConcurrentHashMap<>();
+	
+	////////// Lanczos vars
+	// number of subdivisions of the x-axis unity
+	//  static int UNIT_XSAMPLES = 1024;
+	static int UNIT_XSAMPLES = 256;
+	// number of subdivisions of the y-axis unity
+	static int UNIT_YSAMPLES = 1024;
+	// number of bits to shift to return to the 0-255 range
+	// corresponds to the division by (UNIT_YSAMPLES*UNIT_YSAMPLES)
+	static int SHIFT_Y = 20;
+
+	// maximum number of weights used to interpolate one pixel
+	static int MAX_WEIGHTS = 20;
+
+	// smallest view scale of the Lanczos2 weights, whose kernel then spans MAX_WEIGHTS
+	// pixels: the views reduced further are interpolated with the same weights
+	static final double LANCZOS2_MIN_SCALE = 4.0 / MAX_WEIGHTS;
+	// views reduced more than this are projected larger and averaged, see lanczos2_supersampling
+	static final double LANCZOS2_SUPERSAMPLED_SCALE = 0.25;
+
+	// maximum value for the quality parameter
+	static int MAX_QUALITY = 6;
+
+	// lookup table
+	static int lanczos2_LU[];
+	// the kernel, and the interpolation weights of each view scale, shared by the views
+	// of the same scale: the faces of a cube, the views of a batch
+	private static volatile int lanczos2_kernel_LU[];
+	static final ConcurrentHashMap<Double, Lanczos2Weights> lanczos2_weights_cache = new ConcurrentHashMap<>();
+	static final int LANCZOS2_WEIGHTS_CACHE_SIZE = 64;
+	// lookup table for the interpolation weights
+	static int lanczos2_weights_LU[][];
+
+	// number of points on each side for an enlarged image
+	static int lanczos2_n_points_base = 2;
+
+	// number of points actually used on each side, changes with view_scale
+	static int lanczos2_n_points;
+
+	// temporary arrays used during interpolation
+	static int aR[], aG[], aB[];
+
+	// current wiewing scale:
+	// < 1: pano image is reduced
+	// > 1: pano image is enlarged
+	static double view_scale;
+	/////// end lanczos vars
+
+	// size in pixels of the cells of the initial grid of the adaptive sampling
+	static final int QT_CELL_SIZE = 64;
+	// unit directions of the views not rectilinear in the fixed-point lookups
+	private static final int DIR_SCALE = 1 << 20;
+
+	// maximum error of the linearly interpolated source coordinates, in source pixels
+	static volatile double max_interp_error = 0.25;
+	
+	
+	private Equi2Rect() {
+	}
+
+	static public void initForIntArray2D( int intArray2D[][] ) {
+		math_setLookUp(intArray2D);
+	}
+
+	/**
+	 * Computes the sqrt and atan lookup tables, which are otherwise computed by
+	 * the first projection. Can be called from a background thread at startup.
+	 */
+	static public void initLookUp() {
+		if (atan_LU == null)
+			math_initLookUp();
+	}
+
+	/**
+	 * Sets the maximum error, in source pixels, allowed when the source coordinates
+	 * are interpolated between exactly computed points. Lower values are slower
+	 * but more accurate.
+	 */
+	static public void setMaxInterpolationError(double pixels) {
+		if (!(pixels > 0))
+			throw new IllegalArgumentException("Interpolation error must be positive: " + pixels);
+		max_interp_error = pixels;
+	}
+
+	static public double getMaxInterpolationError() {
+		return max_interp_error;
+	}
+	
+	static public int[] extractRectilinear(
+    	double yaw,
+    	double pitch,
+    	double fov,
+    	int equiData[][],
+    	int rectWidth,
+    	int rectHeight,
+    	int equiWidth,
+    	Boolean bilinear,
+    	Boolean lanczos2 )
+    {
+		return extractRectilinear(yaw, pitch, fov, EquiSource.wrap(equiData), rectWidth, rectHeight,
+				bilinear, lanczos2);
+    }
+
+	static public int[] extractRectilinear(
+		double yaw,
+		double pitch,
+		double fov,
+		EquiSource source,
+		int rectWidth,
+		int rectHeight,
+		Boolean bilinear,
+		Boolean lanczos2 )
+	{
+		int returnRectData[] = new int[rectWidth * rectHeight];
+		extractRectilinear(yaw, pitch, fov, source, returnRectData, rectWidth, rectHeight, bilinear, lanczos2);
+		return returnRectData;
+    }
+
+	/**
+	 * Extracts a view into rectData, e.g. the pixels of a TYPE_INT_RGB BufferedImage,
+	 * whose length is rectWidth * rectHeight
+	 */
+	static public void extractRectilinear(
+		double yaw,
+		double pitch,
+		double fov,
+		EquiSource source,
+		int rectData[],
+		int rectWidth,
+		boolean bilinear,
+		boolean lanczos2 )
+	{
+		extractRectilinear(yaw, pitch, fov, source, rectData, rectWidth, rectData.length / rectWidth,
+				bilinear, lanczos2);
+	}
+
+	/**
+	 * Same as above into the first rectWidth * rectHeight pixels of rectData,
+	 * e.g. a pooled array, see {@link PixelBufferPool}
+	 */
+	static public void extractRectilinear(
+		double yaw,
+		double pitch,
+		double fov,
+		EquiSource source,
+		int rectData[],
+		int rectWidth,
+		int rectHeight,
+		boolean bilinear,
+		boolean lanczos2 )
+	{
+		extractRectilinear(yaw, pitch, fov, source, rectData, rectWidth, rectHeight, bilinear, lanczos2,
+				max_interp_error);
+	}
+
+	/**
+	 * Same as above with the maximum interpolation error given in source pixels
+	 * instead of the one set by {@link #setMaxInterpolationError}, e.g. the one of
+	 * a {@link ConversionEngine}. The other methods taking a maxError do the same.
+	 */
+	static void extractRectilinear(
+		double yaw,
+		double pitch,
+		double fov,
+		EquiSource source,
+		int rectData[],
+		int rectWidth,
+		int rectHeight,
+		boolean bilinear,
+		boolean lanczos2,
+		double maxError)
+	{
+		math_extractview(
+			source, //ai1,
+			rectData, //vdata,
+			rectWidth, //vwidth,
+			rectHeight, //vheight,
+			source.getWidth(),
+			fov, //hfov,
+			yaw, //yaw,
+			pitch, //pitch,
+			bilinear,
+			lanczos2,
+			maxError
+			);
+	}
+
+	/**
+	 * Same as above for the frame of a dual-fisheye camera, sampled directly at the
+	 * coordinates of the equirectangular panorama of the same resolution.
+	 * Lanczos2 is not available, the lenses are interpolated bilinearly.
+	 */
+	static public void extractRectilinear(
+		double yaw,
+		double pitch,
+		double fov,
+		DualFisheyeSource source,
+		int rectData[],
+		int rectWidth,
+		int rectHeight,
+		boolean bilinear)
+	{
+		extractRectilinear(yaw, pitch, fov, source, rectData, rectWidth, rectHeight, bilinear, max_interp_error);
+	}
+
+	static void extractRectilinear(
+		double yaw,
+		double pitch,
+		double fov,
+		DualFisheyeSource source,
+		int rectData[],
+		int rectWidth,
+		int rectHeight,
+		boolean bilinear,
+		double maxError)
+	{
+		double[][] mt = new double[3][3];
+		long[][] mi = new long[3][3];
+		math_set_int_matrix(fov, yaw, pitch, 0, rectWidth, mt, mi, Orientation.NONE, false);
+		new QuadTreeTransform(source.newSampler(bilinear), null, source.getWidth(), source.getHeight(), rectData,
+				rectWidth, rectHeight, mi).withMaxError(maxError).transform();
+	}
+
+	/**
+	 * Computes once the source coordinates of every pixel of a view. The table can
+	 * then be applied to any panorama of size equiWidth x equiHeight with
+	 * extractRectilinear(FaceMappingTable, ...), skipping the projection.
+	 * @param offHeap store the table in direct buffers instead of the Java heap
+	 */
+	static public FaceMappingTable computeMappingTable(
+		double yaw,
+		double pitch,
+		double fov,
+		int equiWidth,
+		int equiHeight,
+		int rectWidth,
+		int rectHeight,
+		boolean offHeap)
+	{
+		return computeMappingTable(yaw, pitch, fov, equiWidth, equiHeight, rectWidth, rectHeight, offHeap,
+				Orientation.NONE);
+	}
+
+	/**
+	 * As above, for panoramas taken with the given orientation, see {@link EquiSource#setOrientation}
+	 */
+	static public FaceMappingTable computeMappingTable(
+		double yaw,
+		double pitch,
+		double fov,
+		int equiWidth,
+		int equiHeight,
+		int rectWidth,
+		int rectHeight,
+		boolean offHeap,
+		Orientation orientation)
+	{
+		return computeMappingTable(yaw, pitch, fov, equiWidth, equiHeight, rectWidth, rectHeight, offHeap,
+				orientation, max_interp_error);
+	}
+
+	static FaceMappingTable computeMappingTable(
+		double yaw,
+		double pitch,
+		double fov,
+		int equiWidth,
+		int equiHeight,
+		int rectWidth,
+		int rectHeight,
+		boolean offHeap,
+		Orientation orientation,
+		double maxError)
+	{
+		double[][] mt = new double[3][3];
+		long[][] mi = new long[3][3];
+		FaceMappingTable table = new FaceMappingTable(equiWidth, equiHeight, rectWidth, rectHeight, fov, offHeap);
+		math_set_int_matrix(fov, yaw, pitch, 0, rectWidth, mt, mi, orientation, false);
+		new QuadTreeTransform(null, table, equiWidth, equiHeight, null, rectWidth, rectHeight, mi)
+				.withMaxError(maxError).transform();
+		return table;
+	}
+
+	/**
+	 * Extracts a view whose source coordinates were precomputed by computeMappingTable
+	 */
+	static public int[] extractRectilinear(
+		FaceMappingTable table,
+		int equiData[][],
+		Boolean bilinear,
+		Boolean lanczos2)
+	{
+		return extractRectilinear(table, EquiSource.wrap(equiData), bilinear, lanczos2);
+	}
+
+	static public int[] extractRectilinear(
+		FaceMappingTable table,
+		EquiSource equiData,
+		Boolean bilinear,
+		Boolean lanczos2)
+	{
+		int returnRectData[] = new int[table.getWidth() * table.getHeight()];
+		extractRectilinear(table, equiData, returnRectData, bilinear, lanczos2);
+		return returnRectData;
+	}
+
+	static public void extractRectilinear(
+		FaceMappingTable table,
+		EquiSource equiData,
+		int rectData[],
+		boolean bilinear,
+		boolean lanczos2)
+	{
+		if (equiData.getWidth() != table.getEquiWidth() || equiData.getHeight() != table.getEquiHeight())
+			throw new IllegalArgumentException("Mapping table computed for a " + table.getEquiWidth() +
+					" x " + table.getEquiHeight() + " panorama");
+		PixelSampler sampler = math_sampler(equiData, table.getWidth(), table.getEquiWidth(),
+				table.getFov(), bilinear, lanczos2);
+		table.gather(sampler, rectData);
+	}
+
+	/**
+	 * Returns the rows of the panorama read to extract each band of bandRows rows
+	 * of a view: {first, last} for every band, with row 0 at the bottom of the
+	 * panorama as in {@link EquiSource}. Used to extract a view while the
+	 * panorama is still being decoded.
+	 */
+	static public int[][] sourceRowsOfBands(
+		double yaw,
+		double pitch,
+		double fov,
+		int equiWidth,
+		int equiHeight,
+		int rectWidth,
+		int rectHeight,
+		int bandRows,
+		boolean bilinear,
+		boolean lanczos2)
+	{
+		return sourceRowsOfBands(yaw, pitch, fov, equiWidth, equiHeight, rectWidth, rectHeight, bandRows,
+				bilinear, lanczos2, Orientation.NONE);
+	}
+
+	/**
+	 * As above, for panoramas taken with the given orientation, see {@link EquiSource#setOrientation}
+	 */
+	static public int[][] sourceRowsOfBands(
+		double yaw,
+		double pitch,
+		double fov,
+		int equiWidth,
+		int equiHeight,
+		int rectWidth,
+		int rectHeight,
+		int bandRows,
+		boolean bilinear,
+		boolean lanczos2,
+		Orientation orientation)
+	{
+		return sourceRowsOfBands(yaw, pitch, fov, equiWidth, equiHeight, rectWidth, rectHeight, bandRows,
+				bilinear, lanczos2, orientation, max_interp_error);
+	}
+
+	static int[][] sourceRowsOfBands(
+		double yaw,
+		double pitch,
+		double fov,
+		int equiWidth,
+		int equiHeight,
+		int rectWidth,
+		int rectHeight,
+		int bandRows,
+		boolean bilinear,
+		boolean lanczos2,
+		Orientation orientation,
+		double maxError)
+	{
+		double[][] mt = new double[3][3];
+		long[][] mi = new long[3][3];
+		math_set_int_matrix(fov, yaw, pitch, 0, rectWidth, mt, mi, orientation, false);
+		int[][] rows = new QuadTreeTransform(null, null, equiWidth, equiHeight, null, rectWidth, rectHeight, mi)
+				.withMaxError(maxError).source_rows(bandRows);
+		// rows reached by the interpolation kernel and by the interpolated coordinates
+		int below = 0, above = 1;
+		if (lanczos2) {
+			int n = lanczos2_n_points(lanczos2_compute_view_scale(equiWidth, rectWidth, fov));
+			below = n - 1;
+			above = n;
+		}
+		int margin = (int) Math.ceil(maxError) + 1;
+		for (int[] band : rows) {
+			band[0] = Math.max(0, band[0] - below - margin);
+			band[1] = Math.min(equiHeight - 1, band[1] + above + margin);
+		}
+		return rows;
+	}
+
+	/**
+	 * Extracts the rows [firstRow, lastRow) of a view into rectData, which holds the
+	 * whole view. firstRow must be a multiple of 64: the pixels are then the same as
+	 * when the whole view is extracted. Several bands of the same view can be
+	 * extracted in parallel.
+	 */
+	static public void extractRectilinearRows(
+		double yaw,
+		double pitch,
+		double fov,
+		EquiSource source,
+		int rectData[],
+		int rectWidth,
+		int rectHeight,
+		int firstRow,
+		int lastRow,
+		boolean bilinear,
+		boolean lanczos2)
+	{
+		extractRectilinearRows(yaw, pitch, fov, source, rectData, rectWidth, rectHeight, firstRow, lastRow,
+				bilinear, lanczos2, max_interp_error);
+	}
+
+	static void extractRectilinearRows(
+		double yaw,
+		double pitch,
+		double fov,
+		EquiSource source,
+		int rectData[],
+		int rectWidth,
+		int rectHeight,
+		int firstRow,
+		int lastRow,
+		boolean bilinear,
+		boolean lanczos2,
+		double maxError)
+	{
+		if (firstRow % QT_CELL_SIZE != 0)
+			throw new IllegalArgumentException("The first row must be a multiple of " + QT_CELL_SIZE);
+		double[][] mt = new double[3][3];
+		long[][] mi = new long[3][3];
+		PixelSampler sampler = math_sampler(source, rectWidth, source.getWidth(), fov, bilinear, lanczos2);
+		math_set_int_matrix(fov, yaw, pitch, 0, rectWidth, mt, mi, source.getOrientation(), false);
+		new QuadTreeTransform(sampler, null, source.getWidth(), source.getHeight(), rectData,
+				rectWidth, rectHeight, mi).withMaxError(maxError).transform(firstRow, Math.min(lastRow, rectHeight));
+	}
+
+	/**
+	 * Extracts the rows [firstRow, lastRow) of a view into tileData, which holds
+	 * only these rows. firstRow must be a multiple of 64, as for
+	 * {@link #extractRectilinearRows}, and so must lastRow unless it is the last
+	 * row of the view: whole cells of 64 rows are drawn.
+	 */
+	static public void extractRectilinearTile(
+		double yaw,
+		double pitch,
+		double fov,
+		EquiSource source,
+		int tileData[],
+		int rectWidth,
+		int rectHeight,
+		int firstRow,
+		int lastRow,
+		boolean bilinear,
+		boolean lanczos2)
+	{
+		extractRectilinearTile(yaw, pitch, fov, source, tileData, rectWidth, rectHeight, firstRow, lastRow,
+				bilinear, lanczos2, false);
+	}
+
+	/**
+	 * As above; if upright is true the view is mirrored vertically, with the sky
+	 * at the top as in a photo, while the views extracted otherwise, like the faces
+	 * of EquirectangularToCubic, have the nadir at the top. The pitch is unchanged:
+	 * positive towards the nadir.
+	 */
+	static public void extractRectilinearTile(
+		double yaw,
+		double pitch,
+		double fov,
+		EquiSource source,
+		int tileData[],
+		int rectWidth,
+		int rectHeight,
+		int firstRow,
+		int lastRow,
+		boolean bilinear,
+		boolean lanczos2,
+		boolean upright)
+	{
+		extractRectilinearTile(yaw, pitch, fov, source, tileData, rectWidth, rectHeight, firstRow, lastRow,
+				bilinear, lanczos2, upright, max_interp_error);
+	}
+
+	static void extractRectilinearTile(
+		double yaw,
+		double pitch,
+		double fov,
+		EquiSource source,
+		int tileData[],
+		int rectWidth,
+		int rectHeight,
+		int firstRow,
+		int lastRow,
+		boolean bilinear,
+		boolean lanczos2,
+		boolean upright,
+		double maxError)
+	{
+		if (firstRow % QT_CELL_SIZE != 0)
+			throw new IllegalArgumentException("The first row must be a multiple of " + QT_CELL_SIZE);
+		lastRow = Math.min(lastRow, rectHeight);
+		if (lastRow % QT_CELL_SIZE != 0 && lastRow != rectHeight)
+			throw new IllegalArgumentException("The last row must be a multiple of " + QT_CELL_SIZE);
+		if (tileData.length < (lastRow - firstRow) * rectWidth)
+			throw new IllegalArgumentException("The tile holds less than " + (lastRow - firstRow) + " rows");
+		double[][] mt = new double[3][3];
+		long[][] mi = new long[3][3];
+		PixelSampler sampler = math_sampler(source, rectWidth, source.getWidth(), fov, bilinear, lanczos2);
+		math_set_int_matrix(fov, yaw, pitch, 0, rectWidth, mt, mi, source.getOrientation(), upright);
+		QuadTreeTransform transform = new QuadTreeTransform(sampler, null, source.getWidth(), source.getHeight(),
+				tileData, rectWidth, rectHeight, mi).withMaxError(maxError);
+		transform.v_origin = firstRow * rectWidth;
+		transform.transform(firstRow, lastRow);
+	}
+
+	/**
+	 * Prepares once the projection of a view (matrix and interpolation weights),
+	 * whose bands of 64 rows can then be drawn in parallel with {@link PreparedView#draw}.
+	 * The view is upright, with the sky at the top, and the pitch positive towards
+	 * the zenith, as in {@link RectilinearView}.
+	 * @param roll Rotation of the view about its axis in degrees, clockwise: the horizon
+	 * turns counterclockwise in the view as it increases
+	 */
+	static PreparedView prepareView(
+		double yaw,
+		double pitch,
+		double roll,
+		double fov,
+		EquiSource source,
+		int rectData[],
+		int rectWidth,
+		int rectHeight,
+		boolean bilinear,
+		boolean lanczos2)
+	{
+		return prepareView(Projection.RECTILINEAR, yaw, pitch, roll, fov, source, rectData, rectWidth, rectHeight,
+				bilinear, lanczos2);
+	}
+
+	/**
+	 * Same as above in any projection, fov being the horizontal field of view.
+	 * The rectilinear views keep the fixed-point matrix of the faces; the others
+	 * compute the direction of the corners of the cells in floating point, the
+	 * cells being split at first down to the size for the curvature of the projection.
+	 */
+	static PreparedView prepareView(
+		Projection projection,
+		double yaw,
+		double pitch,
+		double roll,
+		double fov,
+		EquiSource source,
+		int rectData[],
+		int rectWidth,
+		int rectHeight,
+		boolean bilinear,
+		boolean lanczos2)
+	{
+		return prepareView(projection, yaw, pitch, roll, fov, source, rectData, rectWidth, rectHeight, bilinear,
+				lanczos2, max_interp_error);
+	}
+
+	static PreparedView prepareView(
+		Projection projection,
+		double yaw,
+		double pitch,
+		double roll,
+		double fov,
+		EquiSource source,
+		int rectData[],
+		int rectWidth,
+		int rectHeight,
+		boolean bilinear,
+		boolean lanczos2,
+		double maxError)
+	{
+		// all the projections have focal pixels per radian at the center of the view: the
+		// weights are those of the rectilinear view with the same scale at its center
+		Lanczos2Weights weights = lanczos2 ?
+				lanczos2_weights(view_center_scale(projection, fov, source.getWidth(), rectWidth)) : null;
+		return prepareView(projection, yaw, pitch, roll, fov, source.getOrientation(), source.getWidth(),
+				source.getHeight(), () -> new PixelSampler(source, bilinear, weights != null,
+						weights != null ? weights.n_points : 0, weights != null ? weights.weights_LU : null),
+				rectData, rectWidth, rectHeight, maxError);
+	}
+
+	/**
+	 * Same as above for the frame of a dual-fisheye camera, interpolated bilinearly
+	 * unless nearest is true
+	 */
+	static PreparedView prepareView(
+		Projection projection,
+		double yaw,
+		double pitch,
+		double roll,
+		double fov,
+		DualFisheyeSource source,
+		int rectData[],
+		int rectWidth,
+		int rectHeight,
+		boolean nearest)
+	{
+		return prepareView(projection, yaw, pitch, roll, fov, source, rectData, rectWidth, rectHeight, nearest,
+				max_interp_error);
+	}
+
+	static PreparedView prepareView(
+		Projection projection,
+		double yaw,
+		double pitch,
+		double roll,
+		double fov,
+		DualFisheyeSource source,
+		int rectData[],
+		int rectWidth,
+		int rectHeight,
+		boolean nearest,
+		double maxError)
+	{
+		return prepareView(projection, yaw, pitch, roll, fov, Orientation.NONE, source.getWidth(),
+				source.getHeight(), () -> source.newSampler(!nearest), rectData, rectWidth, rectHeight, maxError);
+	}
+
+	private static PreparedView prepareView(Projection projection, double yaw, double pitch, double roll,
+			double fov, Orientation orientation, int pw, int ph, Supplier<Sampler> samplers, int rectData[],
+			int rectWidth, int rectHeight, double maxError)
+	{
+		double[][] mt = new double[3][3];
+		long[][] mi = new long[3][3];
+		if (projection == Projection.RECTILINEAR) {
+			math_set_int_matrix(fov, yaw, -pitch, roll, rectWidth, mt, mi, orientation, true);
+			return new PreparedView(samplers, pw, ph, rectData, rectWidth, rectHeight, mi, null, null, 0,
+					maxError);
+		}
+		math_set_rotation(yaw, -pitch, roll, mt, orientation, true);
+		return new PreparedView(samplers, pw, ph, rectData, rectWidth, rectHeight, null, projection, mt,
+				projection.focal(rectWidth, Math.toRadians(fov)), maxError);
+	}
+
+	static final class PreparedView {
+		final Supplier<Sampler> samplers;
+		// size of the equirectangular panorama
+		final int pw, ph;
+		final int rectData[];
+		final int rectWidth, rectHeight;
+		final long[][] mi;
+		// rotation and focal of the views not rectilinear, mi is then null
+		final Projection projection;
+		final double[][] rotation;
+		final double focal;
+		final double maxError;
+
+		PreparedView(Supplier<Sampler> samplers, int pw, int ph, int rectData[], int rectWidth, int rectHeight,
+				long[][] mi, Projection projection, double[][] rotation, double focal, double maxError) {
+			this.samplers = samplers;
+			this.pw = pw;
+			this.ph = ph;
+			this.rectData = rectData;
+			this.rectWidth = rectWidth;
+			this.rectHeight = rectHeight;
+			this.mi = mi;
+			this.projection = projection;
+			this.rotation = rotation;
+			this.focal = focal;
+			this.maxError = maxError;
+		}
+
+		// draws the rows [firstRow, lastRow) of the view, firstRow a multiple of QT_CELL_SIZE;
+		// a sampler per call, its buffers are not shared between threads
+		void draw(int firstRow, int lastRow) {
+			draw(firstRow, lastRow, rectData, 0);
+		}
+
+		// same as above into rows, which holds only the rows of the view from firstRow
+		void draw(int firstRow, int lastRow, int rows[]) {
+			draw(firstRow, lastRow, rows, firstRow * rectWidth);
+		}
+
+		private void draw(int firstRow, int lastRow, int v[], int v_origin) {
+			Sampler sampler = samplers.get();
+			QuadTreeTransform transform = mi != null ?
+					new QuadTreeTransform(sampler, null, pw, ph, v, rectWidth, rectHeight, mi) :
+					new QuadTreeTransform(sampler, pw, ph, v, rectWidth, rectHeight, projection, rotation,
+							focal);
+			transform.withMaxError(maxError);
+			transform.v_origin = v_origin;
+			transform.transform(firstRow, Math.min(lastRow, rectHeight));
+		}
+	}
+
+	private static void math_setLookUp(int ai[][]) {
+		if (ai != null) {
+			math_getLookUp(ai[0].length);
+		}
+	}
+
+	private static synchronized void math_initLookUp() {
+		if (atan_LU == null) {
+			double atan_tmp[] = new double[NATAN + 1];
+			sqrt_LU = new int[NSQRT + 1];
+//			double d1 = 0.000244140625D;
+			double d1 = 1.0 / (double) NSQRT;
+			double d = 0.0D;
+			for (int i = 0; i < NSQRT;) {
+				sqrt_LU[i] = (int) (Math.sqrt(1.0D + d * d) * NSQRT);
+				i++;
+				d += d1;
+			}
+
+			sqrt_LU[NSQRT] = (int) (Math.sqrt(2D) * NSQRT);
+//			d1 = 0.000244140625D;
+			d1 = 1.0 / (double) NATAN;
+			d = 0.0D;
+			for (int j = 0; j < NATAN + 1;) {
+				if (j < NATAN)
+					atan_tmp[j] = Math.atan(d / (1.0D - d)) * 256D;
+				else
+					atan_tmp[j] = 402.12385965949352D;
+				j++;
+				d += d1;
+			}
+			// published last: math_getLookUp() checks it without locking
+			atan_LU = atan_tmp;
+		}
+	}
+
+	// returns the high resolution atan table for a panorama of width i
+	static AtanLookUpHR math_getLookUp(int i) {
+		if (atan_LU == null)
+			math_initLookUp();
+		AtanLookUpHR lu = atan_LU_HR_cache.get(i);
+		if (lu == null)
+			lu = atan_LU_HR_cache.computeIfAbsent(i, AtanLookUpHR::new);
+		return lu;
+	}
+
+	static final class AtanLookUpHR {
+		final int atan_LU_HR[];
+		final int PV_atan0_HR;
+		final int PV_pi_HR;
+
+		AtanLookUpHR(int i) {
+			double dist_e = (double) i / 6.2831853071795862D;
+			PV_atan0_HR = i << 6;
+			PV_pi_HR = 128 * i;
+			atan_LU_HR = new int[NATAN + 1];
+			for (int k = 0; k < NATAN + 1; k++)
+				atan_LU_HR[k] = (int) (dist_e * atan_LU[k] + 0.5D);
+		}
+
+		int PV_atan2_HR(int pi, int pj)
+		{
+				long i = pi;
+				long j = pj;
+				int index;
+				if(j > 0)
+						if(i > 0)
+								return atan_LU_HR[(int)((NATAN * i) / (j + i))];
+						else
+								return -atan_LU_HR[(int) ((NATAN * -i) / (j - i))];
+				if(j == 0)
+						if(i > 0)
+								return PV_atan0_HR;
+						else
+								return -PV_atan0_HR;
+				if(i < 0) {
+					index = (int) ((NATAN * i) / (j + i));
+					return atan_LU_HR[index] - PV_pi_HR;
+//					return atan_LU_HR[(int) ((NATAN * i) / (j + i))] - PV_pi_HR;
+				}
+				else
+						return -atan_LU_HR[(int) ((NATAN * -i) / (j - i))] + PV_pi_HR;
+		}
+	}
+
+	
+	private static void math_extractview(
+		EquiSource pd,
+		int v[],
+		//byte hv[],
+		int rectWidth,
+		int rectHeight,
+		int equiWidth,
+		double fov,
+		double pan,
+		double tilt,
+		boolean bilinear,
+		boolean lanczos2,
+		double maxError)
+	{
+		double[][] mt = new double[3][3];
+		long[][] mi = new long[3][3];
+
+		PixelSampler sampler = math_sampler(pd, rectWidth, equiWidth, fov, bilinear, lanczos2);
+
+ 		math_set_int_matrix(fov, pan, tilt, 0, rectWidth, mt, mi, pd.getOrientation(), false);
+		new QuadTreeTransform(
+			sampler,
+			null,
+			pd.getWidth(),
+			pd.getHeight(), //pd.length + deltaYHorizonPosition,
+			v,
+			//hv,
+			rectWidth,
+			rectHeight,
+			mi).withMaxError(maxError).transform();
+	}
+
+	// sets up the lookup tables for the interpolation
+	private static PixelSampler math_sampler(
+		EquiSource pd,
+		int rectWidth,
+		int equiWidth,
+		double fov,
+		boolean bilinear,
+		boolean lanczos2)
+	{
+		int[][] lanczos2_weights_LU = null;
+		int lanczos2_n_points = 0;
+
+		if (lanczos2) {
+			Lanczos2Weights weights = lanczos2_weights(lanczos2_compute_view_scale(equiWidth, rectWidth, fov));
+			lanczos2_n_points = weights.n_points;
+			lanczos2_weights_LU = weights.weights_LU;
+		}
+		return new PixelSampler(pd, bilinear, lanczos2, lanczos2_n_points, lanczos2_weights_LU);
+	}
+
+	// sets up the lookup table of the kernel, the same for every view
+	private static int[] lanczos2_kernel() {
+		int[] kernel = lanczos2_kernel_LU;
+		if (kernel == null) {
+			kernel = new int[UNIT_XSAMPLES * 2 + 1];
+			double x = 0.0;
+			double dx = 1.0 / UNIT_XSAMPLES;
+			for (int k = 0; k <= UNIT_XSAMPLES * 2; k++) {
+				kernel[k] =
+						(int) (sinc(x) * sinc(x / 2.0) * UNIT_YSAMPLES + 0.5);
+				x += dx;
+			}
+			lanczos2_kernel_LU = kernel;
+		}
+		return kernel;
+	}
+
+	// returns the interpolation weights of a view scale, computed once for all the views
+	// of this scale; the weights are the same for all the enlarged views
+	static Lanczos2Weights lanczos2_weights(double view_scale) {
+		Double key = Math.max(Math.min(view_scale, 1.0), LANCZOS2_MIN_SCALE);
+		Lanczos2Weights weights = lanczos2_weights_cache.get(key);
+		if (weights == null) {
+			if (lanczos2_weights_cache.size() >= LANCZOS2_WEIGHTS_CACHE_SIZE)
+				lanczos2_weights_cache.clear();
+			weights = lanczos2_weights_cache.computeIfAbsent(key, Lanczos2Weights::new);
+		}
+		return weights;
+	}
+
+	static final class Lanczos2Weights {
+		final int n_points;
+		final int weights_LU[][];
+
+		Lanczos2Weights(double pscale) {
+			weights_LU = new int[UNIT_XSAMPLES + 1][MAX_WEIGHTS];
+			n_points = lanczos2_compute_weights(pscale, lanczos2_kernel(), weights_LU);
+		}
+	}
+// 
+	// rotation from the directions of the view (x right, y down the rows, z forward)
+	// to those of the panorama, the row vectors multiplied on the left
+	private static void math_set_rotation(double pan, double tilt, double roll, double[][] mt,
+			Orientation orientation, boolean upright) {
+		SetMatrix(
+			(tilt * 2D * 3.1415926535897931D) / 360D,
+			(pan * 2D * 3.1415926535897931D) / 360D,
+			mt,
+			1);
+		if (!orientation.isIdentity()) {
+			double[][] view = new double[3][3];
+			for (int j = 0; j < 3; j++)
+				System.arraycopy(mt[j], 0, view[j], 0, 3);
+			matrix_matrix_mult(view, orientation.matrix(), mt);
+		}
+		if (roll != 0) {
+			double r = Math.toRadians(roll);
+			double[][] rz = {{Math.cos(r), -Math.sin(r), 0}, {Math.sin(r), Math.cos(r), 0}, {0, 0, 1}};
+			double[][] view = new double[3][3];
+			for (int j = 0; j < 3; j++)
+				System.arraycopy(mt[j], 0, view[j], 0, 3);
+			matrix_matrix_mult(rz, view, mt);
+		}
+		if (upright) {
+			mt[1][0] = -mt[1][0];
+			mt[1][1] = -mt[1][1];
+			mt[1][2] = -mt[1][2];
+		}
+	}
+
+	// roll: rotation of the view about its axis, applied before the pan and tilt
+	// orientation: of the camera, combined with the pan and tilt of the view into the same matrix
+	// upright: the y axis of the view is reversed, a vertical mirror that costs nothing
+	private static void math_set_int_matrix(double fov, double pan, double tilt, double roll, int vw, double[][] mt,
+			long[][] mi, Orientation orientation, boolean upright) {
+		double a = (fov * 2D * 3.1415926535897931D) / 360D; // field of view in rad
+		double p = (double) vw / (2D * Math.tan(a / 2D));
+		math_set_rotation(pan, tilt, roll, mt, orientation, upright);
+		mt[0][0] /= p;
+		mt[0][1] /= p;
+		mt[0][2] /= p;
+		mt[1][0] /= p;
+		mt[1][1] /= p;
+		mt[1][2] /= p;
+		double ta =
+			a <= 0.29999999999999999D ? 436906.66666666669D : 131072D / a;
+		for (int j = 0; j < 3; j++) {
+			for (int k = 0; k < 3; k++) 
+				mi[j][k] = (long) (ta * mt[j][k] * MI_MULT + 0.5D);
+//			mi[j][k] = (int) (ta * mt[j][k] * MI_MULT + 0.5D);
+//			mi[j][k] = (int) (ta * mt[j][k] + 0.5D);
+
+		}
+
+	}
+// 
+// 	/*
+// 	 * if bilinear == true use bilinear interpolation
+// 	 * if lanczos2 == true use lanczos2 interpolation
+// 	 * if bilinear == false && lanczos2 == false use nearest neighbour interpolation
+// 	 */
+	///////////////////////////////////////////////////
+	// adaptive sampling of the projection
+	//
+	// the exact source coordinates are computed only at the corners of the cells of
+	// a quadtree over the view and linearly interpolated inside each cell.
+	// A cell is split in four when the interpolation error, measured at the center
+	// and at the middle of the edges, exceeds max_interp_error. Cells containing
+	// a pole, where the longitude wraps around, are always split down to single
+	// pixels, so zenith and nadir are computed exactly.
+	///////////////////////////////////////////////////
+	static final class QuadTreeTransform {
+		final Sampler sampler;
+		// when not null the source coordinates are stored here instead of being sampled
+		final FaceMappingTable table;
+		final int pw, ph, vw, vh;
+		final int v[];
+		final AtanLookUpHR lu;
+		final long mi_00, mi_01, mi_02, mi_10, mi_11, mi_12, mi_20, mi_21, mi_22;
+		final int x_min, y_min;
+		final int sw2, sh2;
+		// shifted width of the panorama
+		final int pw_shifted, pw_shifted_2, pw_shifted_4;
+		// maximum interpolation error, in 1/256 of source pixel
+		int max_err;
+		// source coordinates returned by map()
+		int map_x, map_y;
+		// index of the view pixel stored at v[0], not 0 when v holds only some rows
+		int v_origin;
+		// projection of the views not rectilinear, null for the fixed-point matrix mi
+		final Projection projection;
+		final double r_00, r_01, r_02, r_10, r_11, r_12, r_20, r_21, r_22;
+		final double focal;
+		// larger cells are always split, smaller for the projections that bend more
+		final int max_cell;
+		final double[] dir = new double[3];
+
+		QuadTreeTransform(Sampler sampler, FaceMappingTable table, int pw, int ph,
+				int v[], int vw, int vh, long[][] mi) {
+			this(sampler, table, pw, ph, v, vw, vh, mi, null, new double[3][3], 0);
+		}
+
+		// a view in any projection, rotation from its directions to those of the panorama
+		QuadTreeTransform(Sampler sampler, int pw, int ph, int v[], int vw, int vh,
+				Projection projection, double[][] rotation, double focal) {
+			this(sampler, null, pw, ph, v, vw, vh, new long[3][3], projection, rotation, focal);
+		}
+
+		private QuadTreeTransform(Sampler sampler, FaceMappingTable table, int pw, int ph,
+				int v[], int vw, int vh, long[][] mi, Projection projection, double[][] rotation, double focal) {
+			this.sampler = sampler;
+			this.table = table;
+			this.pw = pw;
+			this.ph = ph;
+			this.v = v;
+			this.vw = vw;
+			this.vh = vh;
+			lu = math_getLookUp(pw);
+			mi_00 = mi[0][0]; mi_01 = mi[0][1]; mi_02 = mi[0][2];
+			mi_10 = mi[1][0]; mi_11 = mi[1][1]; mi_12 = mi[1][2];
+			mi_20 = mi[2][0]; mi_21 = mi[2][1]; mi_22 = mi[2][2];
+			x_min = -(vw - 1 >> 1);
+			y_min = -(vh >> 1);
+			sw2 = pw >> 1;
+			sh2 = ph >> 1;
+			pw_shifted = (pw << 8);
+			pw_shifted_2 = pw_shifted / 2;
+			pw_shifted_4 = pw_shifted / 4;
+			max_err = Math.max(1, (int) (max_interp_error * 256D));
+			this.projection = projection;
+			r_00 = rotation[0][0]; r_01 = rotation[0][1]; r_02 = rotation[0][2];
+			r_10 = rotation[1][0]; r_11 = rotation[1][1]; r_12 = rotation[1][2];
+			r_20 = rotation[2][0]; r_21 = rotation[2][1]; r_22 = rotation[2][2];
+			this.focal = focal;
+			max_cell = projection == null ? QT_CELL_SIZE : projection.maxCellSize;
+		}
+
+		// maximum interpolation error in source pixels, max_interp_error by default
+		QuadTreeTransform withMaxError(double pixels) {
+			max_err = Math.max(1, (int) (pixels * 256D));
+			return this;
+		}
+
+		void transform() {
+			transform(0, vh);
+		}
+
+		// draws the rows [j_start, j_end) of the view, j_start must be a multiple of QT_CELL_SIZE
+		// so that the cells are the same as when the whole view is drawn
+		void transform(int j_start, int j_end) {
+			// exact coordinates of the corners of the initial grid
+			int nx = (vw + QT_CELL_SIZE - 1) / QT_CELL_SIZE + 1;
+			int[] row_x0 = new int[nx], row_y0 = new int[nx];
+			int[] row_x1 = new int[nx], row_y1 = new int[nx];
+			map_row(j_start, row_x0, row_y0);
+			for (int j0 = j_start; j0 < j_end; j0 += QT_CELL_SIZE) {
+				int j1 = Math.min(j0 + QT_CELL_SIZE, vh);
+				map_row(j1, row_x1, row_y1);
+				for (int c = 0; c < nx - 1; c++) {
+					int i0 = c * QT_CELL_SIZE;
+					int i1 = Math.min(i0 + QT_CELL_SIZE, vw);
+					cell(i0, j0, i1, j1,
+						row_x0[c], row_y0[c], row_x0[c + 1], row_y0[c + 1],
+						row_x1[c], row_y1[c], row_x1[c + 1], row_y1[c + 1]);
+				}
+				int[] tmp = row_x0; row_x0 = row_x1; row_x1 = tmp;
+				tmp = row_y0; row_y0 = row_y1; row_y1 = tmp;
+			}
+		}
+
+		private void map_row(int j, int[] row_x, int[] row_y) {
+			for (int c = 0; c < row_x.length; c++) {
+				map(Math.min(c * QT_CELL_SIZE, vw), j);
+				row_x[c] = map_x;
+				row_y[c] = map_y;
+			}
+		}
+
+		// computes the exact source coordinates of view pixel (i, j)
+		void map(int i, int j) {
+			if (projection != null) {
+				map_projected(i, j);
+				return;
+			}
+			long x = x_min + i;
+			long y = y_min + j;
+			long v0 = mi_00 * x + mi_10 * y + mi_20;
+			long v1 = mi_01 * x + mi_11 * y + mi_21;
+			long v2 = mi_02 * x + mi_12 * y + mi_22;
+			map_x = lu.PV_atan2_HR( (int) (v0 >> MI_SHIFT), (int) (v2 >> MI_SHIFT));
+			map_y = lu.PV_atan2_HR( (int) (v1 >> MI_SHIFT), PV_sqrt( (int) Math.abs(v2 >> MI_SHIFT), (int) Math.abs(v0 >> MI_SHIFT)));
+		}
+
+		// same as map() with the direction given by the projection, the unit vector
+		// scaled to the integers of the fixed-point lookups
+		private void map_projected(int i, int j) {
+			projection.direction((x_min + i) / focal, (y_min + j) / focal, dir);
+			double d0 = dir[0], d1 = dir[1], d2 = dir[2];
+			int v0 = (int) Math.round((d0 * r_00 + d1 * r_10 + d2 * r_20) * DIR_SCALE);
+			int v1 = (int) Math.round((d0 * r_01 + d1 * r_11 + d2 * r_21) * DIR_SCALE);
+			int v2 = (int) Math.round((d0 * r_02 + d1 * r_12 + d2 * r_22) * DIR_SCALE);
+			map_x = lu.PV_atan2_HR(v0, v2);
+			map_y = lu.PV_atan2_HR(v1, PV_sqrt(Math.abs(v2), Math.abs(v0)));
+		}
+
+		// first and last source row (ys) reached by the exact coordinates of each band of
+		// band_rows view rows. Inside a band the latitude has no extremum except at a pole,
+		// so it is enough to follow the borders of the band and to look for the poles.
+		int[][] source_rows(int band_rows) {
+			int nb = (vh + band_rows - 1) / band_rows;
+			int[] edge_min = new int[nb + 1], edge_max = new int[nb + 1];
+			for (int b = 0; b <= nb; b++) {
+				int j = Math.min(b * band_rows, vh);
+				edge_min[b] = Integer.MAX_VALUE;
+				edge_max[b] = Integer.MIN_VALUE;
+				for (int i = 0; i <= vw; i++) {
+					map(i, j);
+					edge_min[b] = Math.min(edge_min[b], map_y);
+					edge_max[b] = Math.max(edge_max[b], map_y);
+				}
+			}
+			int[][] rows = new int[nb][2];
+			for (int b = 0; b < nb; b++) {
+				int j0 = b * band_rows;
+				int j1 = Math.min(j0 + band_rows, vh);
+				int y_min = Math.min(edge_min[b], edge_min[b + 1]);
+				int y_max = Math.max(edge_max[b], edge_max[b + 1]);
+				for (int j = j0; j <= j1; j++) {
+					map(0, j);
+					y_min = Math.min(y_min, map_y);
+					y_max = Math.max(y_max, map_y);
+					map(vw, j);
+					y_min = Math.min(y_min, map_y);
+					y_max = Math.max(y_max, map_y);
+				}
+				rows[b][0] = (y_min >> 8) + sh2;
+				rows[b][1] = (y_max >> 8) + sh2;
+				int pole = pole_in(j0, j1);
+				if (pole > 0)
+					rows[b][1] = ph - 1;
+				if (pole < 0)
+					rows[b][0] = 0;
+			}
+			return rows;
+		}
+
+		// 1 if the north pole (last row) is within [0, vw] x [j0, j1], -1 for the south pole, 0 otherwise
+		private int pole_in(int j0, int j1) {
+			// the poles are the directions where v0 == v2 == 0
+			double det = (double) mi_00 * mi_12 - (double) mi_10 * mi_02;
+			if (det == 0)
+				return 0;
+			double x = (-(double) mi_20 * mi_12 + (double) mi_10 * mi_22) / det;
+			double y = (-(double) mi_00 * mi_22 + (double) mi_02 * mi_20) / det;
+			double i = x - x_min, j = y - y_min;
+			if (i < -1 || i > vw + 1 || j < j0 - 1 || j > j1 + 1)
+				return 0;
+			return mi_01 * x + mi_11 * y + mi_21 > 0 ? 1 : -1;
+		}
+
+		// brings x within half a panorama of x_ref, so that cells across the seam interpolate correctly
+		private int unwrap(int x, int x_ref) {
+			if (x - x_ref > pw_shifted_2)
+				return x - pw_shifted;
+			if (x - x_ref < -pw_shifted_2)
+				return x + pw_shifted;
+			return x;
+		}
+
+		// cell covering pixels [i0, i1) x [j0, j1), with the source coordinates of its four corners
+		private void cell(int i0, int j0, int i1, int j1,
+				int x00, int y00, int x10, int y10,
+				int x01, int y01, int x11, int y11) {
+			if (i1 <= i0 || j1 <= j0)
+				return;
+			x10 = unwrap(x10, x00);
+			x01 = unwrap(x01, x00);
+			x11 = unwrap(x11, x00);
+			int w = i1 - i0;
+			int h = j1 - j0;
+			if (w == 1 && h == 1) {
+				draw_pixel((j0 * vw) + i0, x00, y00);
+				return;
+			}
+			int im = (i0 + i1) >> 1;
+			int jm = (j0 + j1) >> 1;
+			// the longitude wraps around a pole inside the cell: interpolation is meaningless
+			boolean split = Math.abs(x10 - x00) > pw_shifted_4 || Math.abs(x01 - x00) > pw_shifted_4
+					|| Math.abs(x11 - x00) > pw_shifted_4 || w > max_cell || h > max_cell;
+			int err = 0;
+
+			map(im, j0);
+			int xm0 = map_x, ym0 = map_y;
+			map(i0, jm);
+			int x0m = map_x, y0m = map_y;
+			map(im, jm);
+			int xmm = map_x, ymm = map_y;
+			map(i1, jm);
+			int x1m = map_x, y1m = map_y;
+			map(im, j1);
+			int xm1 = map_x, ym1 = map_y;
+
+			if (!split) {
+				long tx = im - i0, ty = jm - j0;
+				err = Math.max(err, interp_error(xm0, ym0, x00, y00, x10, y10, tx, w));
+				err = Math.max(err, interp_error(xm1, ym1, x01, y01, x11, y11, tx, w));
+				err = Math.max(err, interp_error(x0m, y0m, x00, y00, x01, y01, ty, h));
+				err = Math.max(err, interp_error(x1m, y1m, x10, y10, x11, y11, ty, h));
+				// center: interpolation between the interpolated edges
+				int xl = (int) (x00 + (x01 - x00) * ty / h), yl = (int) (y00 + (y01 - y00) * ty / h);
+				int xr = (int) (x10 + (x11 - x10) * ty / h), yr = (int) (y10 + (y11 - y10) * ty / h);
+				err = Math.max(err, interp_error(xmm, ymm, xl, yl, xr, yr, tx, w));
+				split = err > max_err;
+			}
+
+			if (!split) {
+				draw_cell(i0, j0, w, h, x00, y00, x10, y10, x01, y01, x11, y11);
+				return;
+			}
+			cell(i0, j0, im, jm, x00, y00, xm0, ym0, x0m, y0m, xmm, ymm);
+			cell(im, j0, i1, jm, xm0, ym0, x10, y10, xmm, ymm, x1m, y1m);
+			cell(i0, jm, im, j1, x0m, y0m, xmm, ymm, x01, y01, xm1, ym1);
+			cell(im, jm, i1, j1, xmm, ymm, x1m, y1m, xm1, ym1, x11, y11);
+		}
+
+		// distance between the exact point (xe, ye) and the one interpolated at t / n
+		// between (xa, ya) and (xb, yb)
+		private int interp_error(int xe, int ye, int xa, int ya, int xb, int yb, long t, int n) {
+			int xi = (int) (xa + (unwrap(xb, xa) - xa) * t / n);
+			int yi = (int) (ya + (yb - ya) * t / n);
+			return Math.max(Math.abs(unwrap(xe, xi) - xi), Math.abs(ye - yi));
+		}
+
+		// draws a cell interpolating linearly the coordinates of its corners
+		private void draw_cell(int i0, int j0, int w, int h,
+				int x00, int y00, int x10, int y10,
+				int x01, int y01, int x11, int y11) {
+			for (int ky = 0; ky < h; ky++) {
+				// coordinates at the left and right end of the row, 16 more bits of precision
+				long xl = ((long) x00 << 16) + (((long) (x01 - x00) << 16) * ky) / h;
+				long yl = ((long) y00 << 16) + (((long) (y01 - y00) << 16) * ky) / h;
+				long xr = ((long) x10 << 16) + (((long) (x11 - x10) << 16) * ky) / h;
+				long yr = ((long) y10 << 16) + (((long) (y11 - y10) << 16) * ky) / h;
+				long delta_x = (xr - xl) / w;
+				long delta_y = (yr - yl) / w;
+				int idx = (j0 + ky) * vw + i0;
+				for (int kx = 0; kx < w; kx++) {
+					int cur_x = (int) (xl >> 16);
+					if (cur_x >= pw_shifted_2)
+						cur_x -= pw_shifted;
+					if (cur_x < -pw_shifted_2)
+						cur_x += pw_shifted;
+					draw_pixel(idx++, cur_x, (int) (yl >> 16));
+					xl += delta_x;
+					yl += delta_y;
+				}
+			}
+		}
+
+		// samples the panorama at (cur_x, cur_y) and stores the pixel at v[idx - v_origin]
+		private void draw_pixel(int idx, int cur_x, int cur_y) {
+			if (cur_x >= pw_shifted_2)
+				cur_x -= pw_shifted;
+			if (cur_x < -pw_shifted_2)
+				cur_x += pw_shifted;
+			int dx = cur_x & 0xff;
+			int dy = cur_y & 0xff;
+			int xs = (cur_x >> 8) + sw2;
+			int ys = (cur_y >> 8) + sh2;
+			if (table != null)
+				table.put(idx, xs, ys, dx, dy);
+			else
+				v[idx - v_origin] = sampler.sample(xs, ys, dx, dy);
+		}
+	}
+
+	// reads one output pixel of the source at a position of the equirectangular panorama
+	interface Sampler {
+		// (xs, ys) is the top-left source pixel, (dx, dy) the position inside it in 1/256 of pixel
+		int sample(int xs, int ys, int dx, int dy);
+	}
+
+	// reads one output pixel from the panorama with the selected interpolation
+	static final class PixelSampler implements Sampler {
+		final EquiSource pd;
+		final int pw, ph;
+		final int mix, miy;
+		final boolean nn, lanczos2;
+		final int lanczos2_n_points;
+		final int[][] lanczos2_weights_LU;
+		final int aR[] = new int[MAX_WEIGHTS];
+		final int aG[] = new int[MAX_WEIGHTS];
+		final int aB[] = new int[MAX_WEIGHTS];
+
+		PixelSampler(EquiSource pd, boolean bilinear, boolean lanczos2,
+				int lanczos2_n_points, int[][] lanczos2_weights_LU) {
+			this.pd = pd;
+			this.pw = pd.getWidth();
+			this.ph = pd.getHeight();
+			this.mix = pw - 1;
+			this.miy = ph - 1;
+			this.nn = (!bilinear && !lanczos2);
+			this.lanczos2 = lanczos2;
+			this.lanczos2_n_points = lanczos2_n_points;
+			this.lanczos2_weights_LU = lanczos2_weights_LU;
+		}
+
+		@Override
+		public int sample(int xs, int ys, int dx, int dy) {
+			if (nn) {
+				int row_index = dy < 128 ? ys : ys + 1;
+				if (row_index < 0) row_index = 0;
+				if (row_index > miy) row_index = miy;
+				int col_index = dx < 128 ? xs : xs + 1;
+				if (col_index < 0) col_index = mix;
+				if (col_index > mix) col_index = 0;
+				return pd.getRGB(row_index, col_index) | 0xff000000;
+			} else if (lanczos2) {
+				return lanczos2_interp_pixel(pd, pw, ph, xs, ys, dx, dy, aR, aG, aB, lanczos2_n_points, lanczos2_weights_LU);
+			} else {
+				int ys0 = ys < 0 ? 0 : ys > miy ? miy : ys;
+				int ys1 = ys + 1 < 0 ? 0 : ys + 1 > miy ? miy : ys + 1;
+				int xs0 = xs < 0 ? mix : xs > mix ? 0 : xs;
+				int xs1 = xs + 1 < 0 ? mix : xs + 1 > mix ? 0 : xs + 1;
+				return bilinear_interp_pixel(pd.getRGB(ys0, xs0), pd.getRGB(ys0, xs1),
+						pd.getRGB(ys1, xs0), pd.getRGB(ys1, xs1), dx, dy);
+			}
+		}
+	}
+// 	
+	static int bilinear_interp_pixel(int p00, int p01, int p10, int p11, int dx, int dy) {
+		int k1 = 255 - dx;
+		int l1 = 255 - dy;
+		int i2 = k1 * l1;
+		int j2 = dy * k1;
+		int k2 = dx * dy;
+		int l2 = dx * l1;
+		int i3 =
+			i2 * (p00 >> 16 & 0xff)
+				+ l2 * (p01 >> 16 & 0xff)
+				+ j2 * (p10 >> 16 & 0xff)
+				+ k2 * (p11 >> 16 & 0xff) & 0xff0000;
+		int j3 =
+			i2 * (p00 >> 8 & 0xff)
+				+ l2 * (p01 >> 8 & 0xff)
+				+ j2 * (p10 >> 8 & 0xff)
+				+ k2 * (p11 >> 8 & 0xff) >> 16;
+		int k3 =
+			i2 * (p00 & 0xff)
+				+ l2 * (p01 & 0xff)
+				+ j2 * (p10 & 0xff)
+				+ k2 * (p11 & 0xff) >> 16;
+		return i3 + (j3 << 8) + k3 + 0xff000000;
+	}
+// 	
+	private static void SetMatrix(double d, double d1, double ad[][], int i) {
+		double ad1[][] = new double[3][3];
+		double ad2[][] = new double[3][3];
+		ad1[0][0] = 1.0D;
+		ad1[0][1] = 0.0D;
+		ad1[0][2] = 0.0D;
+		ad1[1][0] = 0.0D;
+		ad1[1][1] = Math.cos(d);
+		ad1[1][2] = Math.sin(d);
+		ad1[2][0] = 0.0D;
+		ad1[2][1] = -ad1[1][2];
+		ad1[2][2] = ad1[1][1];
+		ad2[0][0] = Math.cos(d1);
+		ad2[0][1] = 0.0D;
+		ad2[0][2] = -Math.sin(d1);
+		ad2[1][0] = 0.0D;
+		ad2[1][1] = 1.0D;
+		ad2[1][2] = 0.0D;
+		ad2[2][0] = -ad2[0][2];
+		ad2[2][1] = 0.0D;
+		ad2[2][2] = ad2[0][0];
+		if (i == 1) {
+			matrix_matrix_mult(ad1, ad2, ad);
+			return;
+		} else {
+			matrix_matrix_mult(ad2, ad1, ad);
+			return;
+		}
+	}
+
+	private static void matrix_matrix_mult(
+		double ad[][],
+		double ad1[][],
+		double ad2[][]) {
+		for (int i = 0; i < 3; i++) {
+			for (int j = 0; j < 3; j++)
+				ad2[i][j] =
+					ad[i][0] * ad1[0][j]
+						+ ad[i][1] * ad1[1][j]
+						+ ad[i][2] * ad1[2][j];
+
+		}
+	}
+	static int PV_sqrt(int pi, int pj) {
+		long i = pi;
+		long j = pj;
+		if (i > j)
+			return (int) (i * sqrt_LU[(int) ((j << NSQRT_SHIFT) / i)] >> NSQRT_SHIFT);
+		if (j == 0)
+			return 0;
+		else
+			return (int) (j * sqrt_LU[(int) ((i << NSQRT_SHIFT) / j)] >> NSQRT_SHIFT);
+	}
+	
+// 	
+/////////////////////////////////////////////
+	// start of Lanczos2 interpolation stuff
+	/////////////////////////////////////////////
+
+	private static double sinc(double x) {
+		double PI = 3.14159265358979;
+
+		if (x == 0.0)
+			return 1.0;
+		else
+			return Math.sin(PI * x) / (PI * x);
+	}	
+
+
+// 	// computes the weiths for interpolating pixels
+// 	// the weights change with view_scale
+	private static int lanczos2_compute_weights(double pscale, int[] lanczos2_LU, int[][] lanczos2_weights_LU) {
+		double s, corr;
+		int lanczos2_n_points;
+
+
+		if (pscale > 1.0)
+			pscale = 1.0;
+		if (pscale < LANCZOS2_MIN_SCALE)
+			pscale = LANCZOS2_MIN_SCALE;
+		lanczos2_n_points = lanczos2_n_points(pscale);
+
+		// sets up the lookup table for the interpolation weights
+		for (int j = 0; j <= UNIT_XSAMPLES; j++) {
+			// computes the weights for this x value
+			int k;
+			s = 0;
+			int i = j + UNIT_XSAMPLES * (lanczos2_n_points - 1);
+			for (k = 0; k < lanczos2_n_points; k++) {
+				lanczos2_weights_LU[j][k] =
+					lanczos2_LU[(int) (i * pscale + 0.5)];
+				s += lanczos2_weights_LU[j][k];
+				i -= UNIT_XSAMPLES;
+			}
+			i = -i;
+			for (; k < lanczos2_n_points * 2; k++) {
+				lanczos2_weights_LU[j][k] =
+					lanczos2_LU[(int) (i * pscale + 0.5)];
+				s += lanczos2_weights_LU[j][k];
+				i += UNIT_XSAMPLES;
+			}
+			// normalizes weights so that the sum == UNIT_YSAMPLES
+			corr = UNIT_YSAMPLES / s;
+			for (k = 0; k < lanczos2_n_points * 2; k++) {
+				lanczos2_weights_LU[j][k] =
+					(int) (lanczos2_weights_LU[j][k] * corr);
+			}
+		}
+		return lanczos2_n_points;
+	}
+
+	// number of pixels on each side of the interpolated point
+	private static int lanczos2_n_points(double pscale) {
+		int lanczos2_n_points_base = 2;
+		if (pscale >= 1.0)
+			return lanczos2_n_points_base;
+		return Math.min(MAX_WEIGHTS / 2, (int) (lanczos2_n_points_base / Math.max(pscale, LANCZOS2_MIN_SCALE)));
+	}
+
+	static double lanczos2_compute_view_scale(int equiWidth, int rectWidth, double fov) {
+		double wDT;
+
+		wDT = fov * equiWidth / 360.0;
+		return (rectWidth / wDT);
+	}
+
+	// scale at the center of a view in any projection, that of the rectilinear view
+	// with the same focal
+	static double view_center_scale(Projection projection, double fov, int equiWidth, int rectWidth) {
+		double focal = projection.focal(rectWidth, Math.toRadians(fov));
+		double center_fov = Math.toDegrees(2 * Math.atan(rectWidth / (2 * focal)));
+		return lanczos2_compute_view_scale(equiWidth, rectWidth, center_fov);
+	}
+
+	// factor, a power of 2, by which a view of this scale is projected larger before
+	// box_reduce, so that Lanczos2 does not reduce the panorama more than 4 times;
+	// at most 16 to bound the memory of the larger view
+	static int lanczos2_supersampling(double view_scale) {
+		int factor = 1;
+		while (view_scale * factor < LANCZOS2_SUPERSAMPLED_SCALE && factor < 16)
+			factor *= 2;
+		return factor;
+	}
+
+	// averages the blocks of factor x factor pixels of the rows of src from srcOffset,
+	// factor times wider than dst, into the rows of dst from dstOffset
+	static void box_reduce(int src[], int srcOffset, int srcWidth, int srcRows, int factor, int dst[],
+			int dstOffset) {
+		int dstWidth = srcWidth / factor;
+		int n = factor * factor;
+		for (int y = 0; y < srcRows / factor; y++) {
+			for (int x = 0; x < dstWidth; x++) {
+				int r = 0, g = 0, b = 0;
+				for (int j = 0; j < factor; j++) {
+					int i = srcOffset + (y * factor + j) * srcWidth + x * factor;
+					for (int k = 0; k < factor; k++, i++) {
+						int p = src[i];
+						r += p >> 16 & 0xff;
+						g += p >> 8 & 0xff;
+						b += p & 0xff;
+					}
+				}
+				dst[dstOffset + y * dstWidth + x] = 0xff000000 | (r + n / 2) / n << 16 | (g + n / 2) / n << 8
+						| (b + n / 2) / n;
+			}
+		}
+	}
+// 
+// 	// interpolates one pixel
+	static int lanczos2_interp_pixel(
+		EquiSource pd,
+		int pw,
+		int ph,
+		int xs,
+		int ys,
+		int dx,
+		int dy,
+		int[] aR,
+		int[] aG,
+		int[] aB,
+		int lanczos2_n_points,
+		int[][] lanczos2_weights_LU) {
+		int tmpR, tmpG, tmpB;
+		int itl, jtl;
+		int ki, kj;
+		int i, j;
+		int np2, rgb;
+
+		// cordinates of the top-left pixel to be used
+		jtl = (xs) - lanczos2_n_points + 1;
+		itl = (ys) - lanczos2_n_points + 1;
+
+		// computes the index for the weights lookup table
+		int iw = dx;
+
+		// interpolates each row in the x-axis direction
+		np2 = lanczos2_n_points * 2;
+		//    np2 = lanczos2_n_points << 1;
+		i = itl;
+		for (ki = 0; ki < np2; ki++) {
+			tmpR = tmpG = tmpB = 0;
+			j = jtl;
+			for (kj = 0; kj < np2; kj++) {
+				int r, g, b;
+				int i2, j2;
+
+				// checks for out-of-bounds pixels
+				i2 = i;
+				j2 = j;
+				if (i2 < 0)
+					i2 = -i2 - 1;
+				if (i2 >= ph)
+					i2 = ph - (i2 - ph) - 1;
+				if (j2 < 0)
+					j2 = -j2 - 1;
+				if (j2 >= pw)
+					j2 = pw - (j2 - pw) - 1;
+
+				rgb = pd.getRGB(i2, j2);
+
+				r = (rgb >> 16) & 0xff;
+				g = (rgb >> 8) & 0xff;
+				b = (rgb >> 0) & 0xff;
+
+				int w = lanczos2_weights_LU[iw][kj];
+
+				tmpR += r * w;
+				tmpG += g * w;
+				tmpB += b * w;
+				//		tmpR = tmpR + r*w;
+				//		tmpG = tmpG + g*w;
+				//		tmpB = tmpB + b*w;
+
+				j++;
+			}
+			// stores the result for the current row
+			aR[ki] = tmpR;
+			aG[ki] = tmpG;
+			aB[ki] = tmpB;
+
+			i++;
+		}
+
+		// computes the index for the weights lookup table
+		iw = dy;
+
+		// final interpolation in the y-axis direction
+		tmpR = tmpG = tmpB = 0;
+		for (ki = 0; ki < np2; ki++) {
+			int w = lanczos2_weights_LU[iw][ki];
+			tmpR += aR[ki] * w;
+			tmpG += aG[ki] * w;
+			tmpB += aB[ki] * w;
+		}
+
+		tmpR >>= SHIFT_Y;
+		tmpG >>= SHIFT_Y;
+		tmpB >>= SHIFT_Y;
+
+		if (tmpR > 255)
+			tmpR = 255;
+		else {
+			if (tmpR < 0)
+				tmpR = 0;
+		}
+		if (tmpG > 255)
+			tmpG = 255;
+		else {
+			if (tmpG < 0)
+				tmpG = 0;
+		}
+		if (tmpB > 255)
+			tmpB = 255;
+		else {
+			if (tmpB < 0)
+				tmpB = 0;
+		}
+
+		return (tmpR << 16) + (tmpG << 8) + tmpB + 0xff000000;
+	}
+
+
+	/////////////////////////////////////////////
+	// end of Lanczos2 interpolation stuff
+	/////////////////////////////////////////////
+
+	public class LanczosVars {
+		public int[] lanczos2_LU = new int[UNIT_XSAMPLES * 2 + 1];
+		public int[][] lanczos2_weights_LU = new int[UNIT_XSAMPLES + 1][MAX_WEIGHTS];
+		public int[] aR = new int[MAX_WEIGHTS];
+		public int[] aG = new int[MAX_WEIGHTS];
+		public int[] aB = new int[MAX_WEIGHTS];
+	}
+}
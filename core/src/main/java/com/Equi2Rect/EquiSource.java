@@ -0,0 +1,320 @@
+/*
+Copyright 2020 Alessandro Bruno
+
+This file is part of EquirectangulartoCubic.java.
+EquirectangulartoCubic is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+EquirectangulartoCubic is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+You should have received a copy of the GNU General Public License along with EquirectangulartoCubic. If not, see http://www.gnu.org/licenses/.
+*/
+
+package com.Equi2Rect;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.SampleModel;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Pixels of an equirectangular panorama as read by the samplers of {@link Equi2Rect}.
+ * Row 0 is the bottom of the image, as in the int[][] arrays built by
+ * {@link EquirectangularToCubic}. Panoramas have no alpha channel, so besides the
+ * historical int per pixel the pixels can be stored packed in 3 bytes (B, G, R),
+ * on the Java heap or off-heap.
+ */
+public abstract class EquiSource {
+
+    /** Memory layout of the pixels */
+    public enum Storage {
+        /** int[height][width], 4 bytes per pixel */
+        INT_ARGB,
+        /** byte rows in B, G, R order, 3 bytes per pixel */
+        PACKED_RGB,
+        /** direct buffers in B, G, R order, 3 bytes per pixel */
+        PACKED_RGB_OFF_HEAP;
+
+        /** Returns the number of bytes used by one pixel */
+        public int bytesPerPixel() {
+            return this == INT_ARGB ? 4 : 3;
+        }
+    }
+
+    final int width;
+    final int height;
+    private volatile Orientation orientation = Orientation.NONE;
+
+    EquiSource(int width, int height) {
+        this.width = width;
+        this.height = height;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public Orientation getOrientation() {
+        return orientation;
+    }
+
+    /**
+     * Sets the orientation of the camera that took the panorama, corrected by the
+     * projection of every view extracted from now on (Orientation.NONE by default)
+     */
+    public void setOrientation(Orientation orientation) {
+        this.orientation = orientation;
+    }
+
+    public abstract Storage getStorage();
+
+    /**
+     * Returns the pixel at (row, col) as 0xRRGGBB, the alpha byte is undefined
+     */
+    public abstract int getRGB(int row, int col);
+
+    /**
+     * Returns the memory used by the pixels in bytes
+     */
+    public long getByteSize() {
+        return (long) width * height * getStorage().bytesPerPixel();
+    }
+
+    /**
+     * Wraps an int[][] array, which is used as is (no vertical flip)
+     */
+    public static EquiSource wrap(int[][] data) {
+        return new IntArraySource(data);
+    }
+
+    /**
+     * Copies the pixels of an image, flipping it vertically. With PACKED_RGB,
+     * images of type TYPE_3BYTE_BGR are wrapped without copying them.
+     */
+    public static EquiSource fromImage(BufferedImage image, Storage storage) {
+        return fromImage(image, storage, null);
+    }
+
+    /**
+     * Same as above, the rows of INT_ARGB sources taken from the pool, to which
+     * {@link #release} returns them
+     */
+    static EquiSource fromImage(BufferedImage image, Storage storage, PixelBufferPool pool) {
+        switch (storage) {
+            case PACKED_RGB:
+                PackedRGBSource wrapped = PackedRGBSource.wrap(image);
+                return wrapped != null ? wrapped : PackedRGBSource.copy(image);
+            case PACKED_RGB_OFF_HEAP:
+                return OffHeapRGBSource.copy(image);
+            default:
+                return IntArraySource.copy(image, pool);
+        }
+    }
+
+    /**
+     * Returns the pixels to the pool they were taken from, if any: the source must
+     * not be used any more
+     */
+    void release() {
+    }
+
+    /**
+     * Historical storage: one int per pixel with alpha forced to 0xff
+     */
+    static final class IntArraySource extends EquiSource {
+        final int[][] data;
+        // the pool of the rows, null if they were allocated
+        final PixelBufferPool pool;
+
+        IntArraySource(int[][] data) {
+            this(data, data[0].length, null);
+        }
+
+        // the rows may be longer than width
+        IntArraySource(int[][] data, int width, PixelBufferPool pool) {
+            super(width, data.length);
+            this.data = data;
+            this.pool = pool;
+        }
+
+        static IntArraySource copy(BufferedImage image, PixelBufferPool pool) {
+            int equiWidth = image.getWidth();
+            int equiHeight = image.getHeight();
+            int equiData[][] = new int[equiHeight][];
+            for (int j = 0; j < equiHeight; j++) {
+                equiData[j] = pool != null ? pool.acquire(equiWidth) : new int[equiWidth];
+            }
+            new ImageTo2DIntArrayExtractor (equiData, image).doit();
+
+            // Flip back the image (bug in the original version)
+            for (int j = 0; j < equiHeight/2; j++) {
+                int[] tmp = equiData[j];
+                equiData[j] = equiData[equiHeight - j - 1];
+                equiData[equiHeight - j - 1] = tmp;
+            }
+            return new IntArraySource(equiData, equiWidth, pool);
+        }
+
+        @Override
+        void release() {
+            if (pool != null) {
+                for (int[] row : data) {
+                    pool.release(row);
+                }
+            }
+        }
+
+        @Override
+        public Storage getStorage() {
+            return Storage.INT_ARGB;
+        }
+
+        @Override
+        public int getRGB(int row, int col) {
+            return data[row][col];
+        }
+    }
+
+    /**
+     * Packed B, G, R bytes in one or more arrays of rows. The arrays may belong
+     * to a decoded TYPE_3BYTE_BGR image, whose rows are read bottom-up.
+     */
+    static final class PackedRGBSource extends EquiSource {
+        final byte[][] bands;
+        final int bandShift;
+        final int bandMask;
+        final int stride;
+        final boolean flipped;
+
+        PackedRGBSource(int width, int height, byte[][] bands, int bandShift, int stride, boolean flipped) {
+            super(width, height);
+            this.bands = bands;
+            this.bandShift = bandShift;
+            this.bandMask = (1 << bandShift) - 1;
+            this.stride = stride;
+            this.flipped = flipped;
+        }
+
+        /**
+         * Returns a source sharing the pixels of the image, or null if its layout is not packed B, G, R
+         */
+        static PackedRGBSource wrap(BufferedImage image) {
+            if (image.getType() != BufferedImage.TYPE_3BYTE_BGR) {
+                return null;
+            }
+            SampleModel sm = image.getRaster().getSampleModel();
+            if (!(sm instanceof PixelInterleavedSampleModel) || image.getRaster().getParent() != null) {
+                return null;
+            }
+            PixelInterleavedSampleModel pism = (PixelInterleavedSampleModel) sm;
+            DataBufferByte buffer = (DataBufferByte) image.getRaster().getDataBuffer();
+            if (pism.getPixelStride() != 3 || !Arrays.equals(pism.getBandOffsets(), new int[] {2, 1, 0})
+                    || buffer.getNumBanks() != 1 || buffer.getOffset() != 0
+                    || image.getRaster().getSampleModelTranslateX() != 0
+                    || image.getRaster().getSampleModelTranslateY() != 0) {
+                return null;
+            }
+            return new PackedRGBSource(image.getWidth(), image.getHeight(), new byte[][] {buffer.getData()},
+                    30, pism.getScanlineStride(), true);
+        }
+
+        static PackedRGBSource copy(BufferedImage image) {
+            int width = image.getWidth();
+            int height = image.getHeight();
+            int bandShift = bandShift(width);
+            int rowsPerBand = 1 << bandShift;
+            byte[][] bands = new byte[(height + rowsPerBand - 1) / rowsPerBand][];
+            int[] line = new int[width];
+            for (int b = 0; b < bands.length; b++) {
+                int rows = Math.min(rowsPerBand, height - b * rowsPerBand);
+                byte[] band = bands[b] = new byte[rows * width * 3];
+                for (int r = 0; r < rows; r++) {
+                    // flipped: source row 0 is the last row of the image
+                    image.getRGB(0, height - 1 - (b * rowsPerBand + r), width, 1, line, 0, width);
+                    pack(line, band, r * width * 3);
+                }
+            }
+            return new PackedRGBSource(width, height, bands, bandShift, width * 3, false);
+        }
+
+        @Override
+        public Storage getStorage() {
+            return Storage.PACKED_RGB;
+        }
+
+        @Override
+        public int getRGB(int row, int col) {
+            if (flipped) row = height - 1 - row;
+            byte[] band = bands[row >> bandShift];
+            int o = (row & bandMask) * stride + col * 3;
+            return (band[o] & 0xff) | (band[o + 1] & 0xff) << 8 | (band[o + 2] & 0xff) << 16;
+        }
+    }
+
+    /**
+     * Packed B, G, R bytes in direct buffers, outside of the Java heap
+     */
+    static final class OffHeapRGBSource extends EquiSource {
+        final ByteBuffer[] bands;
+        final int bandShift;
+        final int bandMask;
+        final int rowsPerBand;
+        final int stride;
+
+        OffHeapRGBSource(int width, int height) {
+            super(width, height);
+            this.bandShift = bandShift(width);
+            this.bandMask = (1 << bandShift) - 1;
+            this.rowsPerBand = 1 << bandShift;
+            this.stride = width * 3;
+            this.bands = new ByteBuffer[(height + rowsPerBand - 1) / rowsPerBand];
+            for (int b = 0; b < bands.length; b++) {
+                int rows = Math.min(rowsPerBand, height - b * rowsPerBand);
+                bands[b] = ByteBuffer.allocateDirect(rows * stride);
+            }
+        }
+
+        static OffHeapRGBSource copy(BufferedImage image) {
+            OffHeapRGBSource source = new OffHeapRGBSource(image.getWidth(), image.getHeight());
+            int[] line = new int[source.width];
+            byte[] packed = new byte[source.stride];
+            for (int row = 0; row < source.height; row++) {
+                image.getRGB(0, source.height - 1 - row, source.width, 1, line, 0, source.width);
+                pack(line, packed, 0);
+                ByteBuffer band = source.bands[row >> source.bandShift].duplicate();
+                band.position((row & source.bandMask) * source.stride);
+                band.put(packed);
+            }
+            return source;
+        }
+
+        @Override
+        public Storage getStorage() {
+            return Storage.PACKED_RGB_OFF_HEAP;
+        }
+
+        @Override
+        public int getRGB(int row, int col) {
+            ByteBuffer band = bands[row >> bandShift];
+            int o = (row & bandMask) * stride + col * 3;
+            return (band.get(o) & 0xff) | (band.get(o + 1) & 0xff) << 8 | (band.get(o + 2) & 0xff) << 16;
+        }
+    }
+
+    // bands of a power of two rows, at most 256 MB
+    static int bandShift(int width) {
+        int rows = Math.max(1, (256 << 20) / (width * 3));
+        return 31 - Integer.numberOfLeadingZeros(rows);
+    }
+
+    static void pack(int[] line, byte[] packed, int offset) {
+        for (int x = 0; x < line.length; x++) {
+            int rgb = line[x];
+            packed[offset++] = (byte) rgb;
+            packed[offset++] = (byte) (rgb >> 8);
+            packed[offset++] = (byte) (rgb >> 16);
+        }
+    }
+}
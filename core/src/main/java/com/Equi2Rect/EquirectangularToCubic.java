@@ -0,0 +1,174 @@
+/*
+Copyright 2009 Zephyr Renner
+Copyright 2020 Alessandro Bruno
+
+This file is part of EquirectangulartoCubic.java.
+EquirectangulartoCubic is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+EquirectangulartoCubic is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+You should have received a copy of the GNU General Public License along with EquirectangulartoCubic. If not, see http://www.gnu.org/licenses/.
+
+The Equi2Rect.java library is modified from PTViewer 2.8 licenced under the GPL courtesy of Fulvio Senore, originally developed by Helmut Dersch.  Thank you both!
+
+Some basic structural of this code are influenced by / modified from DeepJZoom, Glenn Lawrence, which is also licensed under the GPL.
+*/
+
+package com.Equi2Rect;
+import java.awt.Dimension;
+import java.awt.Rectangle;
+import java.io.File;
+import java.io.IOException;
+import java.awt.image.BufferedImage;
+import javax.imageio.*;
+import javax.imageio.stream.ImageInputStream;
+import java.util.Iterator;
+
+/**
+ * Generate six cubemap images which represent the six orthogonal directions of
+ * a sphere using a Gnomonic Projection with 90 degree field of view.  The input
+ * file is a Cylindrical Equidistant Projection with a 2:1 width to height ratio.
+ * Cubemap images format:
+ *   +------+
+ *   |  4   |
+ *   |      |
+ *   +------+------+------+------+
+ *   |  0   |  1   |  2   |  3   |
+ *   |      |      |      |      |
+ *   +------+------+------+------+
+ *   |  5   |
+ *   |      |
+ *   +------+
+ */
+public class EquirectangularToCubic {
+
+    static int overlap = 1;
+
+    /**
+     * Process a BufferedImage with the shared {@link ConversionEngine}
+     * @param equi The BufferedImage containing a cylindrical equidistant projection of a spherical panorama
+     */
+    public static BufferedImage[] processImage(BufferedImage equi) throws IOException {
+        ConversionEngine engine = ConversionEngine.getShared();
+        return engine.convert(equi);
+    }
+
+    /**
+     * Process the frame of a dual-fisheye camera with the shared {@link ConversionEngine},
+     * without stitching an equirectangular image first
+     * @param frame The BufferedImage with the circles of the two lenses side by side, front lens on the left
+     * @param fov Field of view of each lens in degrees, e.g. 190
+     */
+    public static BufferedImage[] processDualFisheye(BufferedImage frame, double fov) throws IOException {
+        ConversionEngine engine = ConversionEngine.getShared();
+        return engine.convert(DualFisheyeSource.sideBySide(frame, fov));
+    }
+
+    /**
+     * Process an image file with the shared {@link ConversionEngine}, while it is
+     * decoded if streaming is enabled (-Dequi2rect.streaming=true)
+     * @param file The file containing a cylindrical equidistant projection of a spherical panorama
+     */
+    public static BufferedImage[] processImage(File file) throws IOException {
+        ConversionEngine engine = ConversionEngine.getShared();
+        return engine.convert(file);
+    }
+
+    /**
+     * Process an image file with the shared {@link ConversionEngine} within a memory budget
+     * @param file The file containing a cylindrical equidistant projection of a spherical panorama
+     * @param budget The settings returned by {@link MemoryBudget#plan(File, long, int)} for this file
+     */
+    public static BufferedImage[] processImage(File file, MemoryBudget budget) throws IOException {
+        ConversionEngine engine = ConversionEngine.getShared();
+        return engine.convert(file, budget);
+    }
+
+    /**
+     * Publishes the faces of a BufferedImage as tiles of tileRows rows, emitted as
+     * they are completed, with the shared {@link ConversionEngine}
+     * @param equi The BufferedImage containing a cylindrical equidistant projection of a spherical panorama
+     * @param tileRows Rows of each tile, a multiple of 64
+     */
+    public static FaceTilePublisher processImageTiles(BufferedImage equi, int tileRows) throws IOException {
+        ConversionEngine engine = ConversionEngine.getShared();
+        return engine.publishTiles(EquiSource.fromImage(equi, engine.getSourceStorage()), tileRows);
+    }
+
+    /**
+     * Returns the faces to the buffer pool of the shared {@link ConversionEngine}
+     * for the next conversions, they must not be used any more
+     * @param faces The faces returned by one of the process methods
+     */
+    public static void releaseImages(BufferedImage... faces) {
+        PixelBufferPool pool = ConversionEngine.getShared().getBufferPool();
+        for (BufferedImage face : faces) {
+            pool.release(face);
+        }
+    }
+
+    /**
+     * Loads image from file
+     * @param file The file containing the image
+     */
+    public static BufferedImage loadImage(File file) throws IOException {
+        BufferedImage result = null;
+        try {
+            result = ImageIO.read(file);
+        } catch (Exception e) {
+            throw new IOException("Cannot read image file: " + file);
+        }
+        return result;
+    }
+
+    /**
+     * Loads image from file keeping one pixel out of subsampling in each direction.
+     * The image is cropped by less than subsampling pixels so that it stays 2:1.
+     * @param file The file containing the image
+     * @param subsampling 1 to load the full image
+     */
+    public static BufferedImage loadImage(File file, int subsampling) throws IOException {
+        if (subsampling <= 1) {
+            return loadImage(file);
+        }
+        try (ImageInputStream input = ImageIO.createImageInputStream(file)) {
+            Iterator<ImageReader> readers = input == null ? null : ImageIO.getImageReaders(input);
+            if (readers == null || !readers.hasNext()) {
+                throw new IOException("Cannot read image file: " + file);
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(input, true, true);
+                int height = reader.getHeight(0) / subsampling;
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceRegion(new Rectangle(0, 0, 2 * height * subsampling, height * subsampling));
+                param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                return reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        } catch (IOException | RuntimeException e) {
+            throw new IOException("Cannot read image file: " + file, e);
+        }
+    }
+
+    /**
+     * Reads the size of an image from its header, without decoding it
+     * @param file The file containing the image
+     */
+    public static Dimension readImageSize(File file) throws IOException {
+        try (ImageInputStream input = ImageIO.createImageInputStream(file)) {
+            if (input != null) {
+                Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+                if (readers.hasNext()) {
+                    ImageReader reader = readers.next();
+                    try {
+                        reader.setInput(input, true, true);
+                        return new Dimension(reader.getWidth(0), reader.getHeight(0));
+                    } finally {
+                        reader.dispose();
+                    }
+                }
+            }
+        }
+        throw new IOException("Cannot read image file: " + file);
+    }
+}
@@ -0,0 +1,163 @@
+/*
+Copyright 2020 Alessandro Bruno
+
+This file is part of EquirectangulartoCubic.java.
+EquirectangulartoCubic is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+EquirectangulartoCubic is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+You should have received a copy of the GNU General Public License along with EquirectangulartoCubic. If not, see http://www.gnu.org/licenses/.
+*/
+
+package com.Equi2Rect;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Objects;
+
+/**
+ * Least recently used cache of {@link FaceMappingTable}s, one per view geometry.
+ * Image sequences and batches from the same camera compute the projection once
+ * and then only gather and interpolate the pixels of each new image.
+ * Tables are evicted when the retained memory exceeds maxBytes.
+ */
+public class FaceMappingCache {
+
+    private final LinkedHashMap<Key, FaceMappingTable> tables = new LinkedHashMap<>(16, 0.75f, true);
+    private final long maxBytes;
+    private final boolean offHeap;
+    private long retainedBytes;
+    private long hits;
+    private long misses;
+
+    /**
+     * @param maxBytes Memory the cached tables may use
+     * @param offHeap Keep the tables in direct buffers instead of the Java heap
+     */
+    public FaceMappingCache(long maxBytes, boolean offHeap) {
+        this.maxBytes = maxBytes;
+        this.offHeap = offHeap;
+    }
+
+    /**
+     * Returns the table of a view, computing it if it is not cached
+     */
+    public FaceMappingTable getTable(double yaw, double pitch, double fov,
+                                     int equiWidth, int equiHeight, int rectWidth, int rectHeight) {
+        return getTable(yaw, pitch, fov, equiWidth, equiHeight, rectWidth, rectHeight, Orientation.NONE);
+    }
+
+    /**
+     * Returns the table of a view of panoramas taken with the given orientation
+     */
+    public FaceMappingTable getTable(double yaw, double pitch, double fov, int equiWidth, int equiHeight,
+                                     int rectWidth, int rectHeight, Orientation orientation) {
+        return getTable(yaw, pitch, fov, equiWidth, equiHeight, rectWidth, rectHeight, orientation,
+                Equi2Rect.getMaxInterpolationError());
+    }
+
+    /**
+     * Same as above with the given maximum interpolation error, see {@link Equi2Rect#setMaxInterpolationError}
+     */
+    public FaceMappingTable getTable(double yaw, double pitch, double fov, int equiWidth, int equiHeight,
+                                     int rectWidth, int rectHeight, Orientation orientation, double maxError) {
+        Key key = new Key(yaw, pitch, fov, equiWidth, equiHeight, rectWidth, rectHeight, orientation, maxError);
+        synchronized (this) {
+            FaceMappingTable table = tables.get(key);
+            if (table != null) {
+                hits++;
+                return table;
+            }
+            misses++;
+        }
+        // computed outside the lock so that the faces of a cube are built in parallel
+        FaceMappingTable table = Equi2Rect.computeMappingTable(yaw, pitch, fov,
+                equiWidth, equiHeight, rectWidth, rectHeight, offHeap, orientation, maxError);
+        synchronized (this) {
+            FaceMappingTable previous = tables.get(key);
+            if (previous != null) {
+                return previous;
+            }
+            if (table.getByteSize() <= maxBytes) {
+                tables.put(key, table);
+                retainedBytes += table.getByteSize();
+                evict();
+            }
+        }
+        return table;
+    }
+
+    private void evict() {
+        Iterator<FaceMappingTable> it = tables.values().iterator();
+        while (retainedBytes > maxBytes && it.hasNext()) {
+            retainedBytes -= it.next().getByteSize();
+            it.remove();
+        }
+    }
+
+    public synchronized void clear() {
+        tables.clear();
+        retainedBytes = 0;
+    }
+
+    public boolean isOffHeap() {
+        return offHeap;
+    }
+
+    /**
+     * Returns the memory used by the cached tables in bytes
+     */
+    public synchronized long getRetainedBytes() {
+        return retainedBytes;
+    }
+
+    public synchronized int getTableCount() {
+        return tables.size();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "Mapping tables: " + tables.size() + " cached, " + (retainedBytes >> 10) + " KB " +
+                (offHeap ? "off-heap" : "on heap") + ", " + hits + " hits, " + misses + " misses";
+    }
+
+    private static final class Key {
+        final double yaw, pitch, fov;
+        final int equiWidth, equiHeight, rectWidth, rectHeight;
+        final Orientation orientation;
+        final double maxError;
+
+        Key(double yaw, double pitch, double fov, int equiWidth, int equiHeight, int rectWidth, int rectHeight,
+            Orientation orientation, double maxError) {
+            this.yaw = yaw;
+            this.pitch = pitch;
+            this.fov = fov;
+            this.equiWidth = equiWidth;
+            this.equiHeight = equiHeight;
+            this.rectWidth = rectWidth;
+            this.rectHeight = rectHeight;
+            this.orientation = orientation;
+            this.maxError = maxError;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) return false;
+            Key k = (Key) o;
+            return yaw == k.yaw && pitch == k.pitch && fov == k.fov && equiWidth == k.equiWidth &&
+                    equiHeight == k.equiHeight && rectWidth == k.rectWidth && rectHeight == k.rectHeight &&
+                    orientation.equals(k.orientation) && maxError == k.maxError;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(yaw, pitch, fov, equiWidth, equiHeight, rectWidth, rectHeight, orientation,
+                    maxError);
+        }
+    }
+}
@@ -0,0 +1,125 @@
+/*
+Copyright 2020 Alessandro Bruno
+
+This file is part of EquirectangulartoCubic.java.
+EquirectangulartoCubic is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+EquirectangulartoCubic is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+You should have received a copy of the GNU General Public License along with EquirectangulartoCubic. If not, see http://www.gnu.org/licenses/.
+*/
+
+package com.Equi2Rect;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+
+/**
+ * Precomputed output to source mapping of one view, built by
+ * {@link Equi2Rect#computeMappingTable}. For every output pixel it stores the
+ * top-left source pixel (row and column packed in an int) and the position
+ * inside it in 1/256 of pixel (packed in a short), 6 bytes per pixel.
+ * The table is either on the Java heap or in direct (off-heap) buffers.
+ */
+public final class FaceMappingTable {
+
+    static final int BYTES_PER_PIXEL = 6;
+
+    private final int equiWidth;
+    private final int equiHeight;
+    private final int width;
+    private final int height;
+    private final double fov;
+
+    private final int[] coords;
+    private final short[] fractions;
+    private final IntBuffer coordsBuffer;
+    private final ShortBuffer fractionsBuffer;
+
+    FaceMappingTable(int equiWidth, int equiHeight, int width, int height, double fov, boolean offHeap) {
+        if (equiWidth >= 0xffff || equiHeight > Short.MAX_VALUE) {
+            throw new IllegalArgumentException("Panorama too large for a mapping table (" +
+                    equiWidth + " x " + equiHeight + ")");
+        }
+        this.equiWidth = equiWidth;
+        this.equiHeight = equiHeight;
+        this.width = width;
+        this.height = height;
+        this.fov = fov;
+        int n = width * height;
+        if (offHeap) {
+            coords = null;
+            fractions = null;
+            coordsBuffer = ByteBuffer.allocateDirect(n * 4).order(ByteOrder.nativeOrder()).asIntBuffer();
+            fractionsBuffer = ByteBuffer.allocateDirect(n * 2).order(ByteOrder.nativeOrder()).asShortBuffer();
+        } else {
+            coords = new int[n];
+            fractions = new short[n];
+            coordsBuffer = null;
+            fractionsBuffer = null;
+        }
+    }
+
+    public int getEquiWidth() {
+        return equiWidth;
+    }
+
+    public int getEquiHeight() {
+        return equiHeight;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public double getFov() {
+        return fov;
+    }
+
+    public boolean isOffHeap() {
+        return coords == null;
+    }
+
+    /**
+     * Returns the memory used by the table in bytes
+     */
+    public long getByteSize() {
+        return (long) width * height * BYTES_PER_PIXEL;
+    }
+
+    void put(int idx, int xs, int ys, int dx, int dy) {
+        // xs is -1 at the left edge of panoramas with odd width
+        int packed = (ys << 16) | ((xs + 1) & 0xffff);
+        short fraction = (short) ((dx << 8) | dy);
+        if (coords != null) {
+            coords[idx] = packed;
+            fractions[idx] = fraction;
+        } else {
+            coordsBuffer.put(idx, packed);
+            fractionsBuffer.put(idx, fraction);
+        }
+    }
+
+    /**
+     * Samples the panorama at every position of the table
+     */
+    void gather(Equi2Rect.PixelSampler sampler, int[] v) {
+        int n = width * height;
+        if (coords != null) {
+            for (int idx = 0; idx < n; idx++) {
+                int packed = coords[idx];
+                int fraction = fractions[idx];
+                v[idx] = sampler.sample((packed & 0xffff) - 1, packed >> 16, (fraction >> 8) & 0xff, fraction & 0xff);
+            }
+        } else {
+            for (int idx = 0; idx < n; idx++) {
+                int packed = coordsBuffer.get(idx);
+                int fraction = fractionsBuffer.get(idx);
+                v[idx] = sampler.sample((packed & 0xffff) - 1, packed >> 16, (fraction >> 8) & 0xff, fraction & 0xff);
+            }
+        }
+    }
+}
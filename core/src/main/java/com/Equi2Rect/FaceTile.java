@@ -0,0 +1,87 @@
+/*
+Copyright 2020 Alessandro Bruno
+
+This file is part of EquirectangulartoCubic.java.
+EquirectangulartoCubic is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+EquirectangulartoCubic is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+You should have received a copy of the GNU General Public License along with EquirectangulartoCubic. If not, see http://www.gnu.org/licenses/.
+*/
+
+package com.Equi2Rect;
+import java.awt.image.BufferedImage;
+
+/**
+ * A rectangle of a cube face emitted by {@link FaceTilePublisher}. The faces are
+ * numbered as in the array returned by {@link ConversionEngine#convert(BufferedImage)}.
+ * The pixels are 0xRRGGBB, row by row, as in a TYPE_INT_RGB image; they belong to
+ * the receiver of the tile.
+ */
+public final class FaceTile {
+
+    private final int face;
+    private final int faceSize;
+    private final int x;
+    private final int y;
+    private final int width;
+    private final int height;
+    private final int[] pixels;
+
+    FaceTile(int face, int faceSize, int x, int y, int width, int height, int[] pixels) {
+        this.face = face;
+        this.faceSize = faceSize;
+        this.x = x;
+        this.y = y;
+        this.width = width;
+        this.height = height;
+        this.pixels = pixels;
+    }
+
+    /**
+     * Returns the index of the face, from 0 to 5
+     */
+    public int getFace() {
+        return face;
+    }
+
+    /**
+     * Returns the width and height of the whole face in pixels
+     */
+    public int getFaceSize() {
+        return faceSize;
+    }
+
+    public int getX() {
+        return x;
+    }
+
+    public int getY() {
+        return y;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Returns the pixels of the tile, width * height values
+     */
+    public int[] getPixels() {
+        return pixels;
+    }
+
+    /**
+     * Copies the tile at its place in an image of the whole face
+     */
+    public void copyTo(BufferedImage faceImage) {
+        faceImage.setRGB(x, y, width, height, pixels, 0, width);
+    }
+
+    @Override
+    public String toString() {
+        return "Face " + face + " tile " + width + " x " + height + " at (" + x + ", " + y + ")";
+    }
+}
@@ -0,0 +1,214 @@
+/*
+Copyright 2020 Alessandro Bruno
+
+This file is part of EquirectangulartoCubic.java.
+EquirectangulartoCubic is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+EquirectangulartoCubic is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+You should have received a copy of the GNU General Public License along with EquirectangulartoCubic. If not, see http://www.gnu.org/licenses/.
+*/
+
+package com.Equi2Rect;
+import java.util.ArrayDeque;
+import java.util.Objects;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Publishes the six cube faces of a panorama as tiles of full-width rows, in
+ * the order they are completed, instead of waiting for the whole cube.
+ * Tiles are only computed on demand: no more tiles are computed or queued than
+ * the subscriber has requested and not received yet, and at most maxParallelTiles
+ * at the same time. The tiles of the faces are computed in turn, so that all the
+ * faces fill in together.
+ * <p>
+ * Each subscriber receives all the tiles, computed again for it. The panorama
+ * must not change while a subscriber is active. Tiles are not limited by the
+ * conversion permits of the engine: the demand of the subscriber bounds their memory.
+ * Created by {@link ConversionEngine#publishTiles(EquiSource, int)}.
+ */
+public class FaceTilePublisher implements Flow.Publisher<FaceTile> {
+
+    private final Executor executor;
+    private final EquiSource source;
+    private final int faceSize;
+    private final int tileRows;
+    private final int tilesPerFace;
+    private final int maxParallelTiles;
+
+    /**
+     * @param executor Runs the projection of the tiles
+     * @param source The panorama
+     * @param faceSize Width and height of the faces in pixels
+     * @param tileRows Rows of each tile, a multiple of 64
+     * @param maxParallelTiles Tiles computed at the same time for one subscriber
+     */
+    FaceTilePublisher(Executor executor, EquiSource source, int faceSize, int tileRows,
+                      int maxParallelTiles) {
+        if (tileRows <= 0 || tileRows % Equi2Rect.QT_CELL_SIZE != 0) {
+            throw new IllegalArgumentException("Tile rows must be a positive multiple of " +
+                    Equi2Rect.QT_CELL_SIZE + ": " + tileRows);
+        }
+        this.executor = executor;
+        this.source = source;
+        this.faceSize = faceSize;
+        this.tileRows = tileRows;
+        this.tilesPerFace = (faceSize + tileRows - 1) / tileRows;
+        this.maxParallelTiles = Math.max(1, maxParallelTiles);
+    }
+
+    public int getFaceSize() {
+        return faceSize;
+    }
+
+    /**
+     * Returns the number of tiles received by each subscriber
+     */
+    public int getTileCount() {
+        return 6 * tilesPerFace;
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super FaceTile> subscriber) {
+        Objects.requireNonNull(subscriber);
+        subscriber.onSubscribe(new TileSubscription(subscriber));
+    }
+
+    // tile t is band t / 6 of face t % 6
+    FaceTile computeTile(int t) {
+        int face = t % 6;
+        int firstRow = t / 6 * tileRows;
+        int lastRow = Math.min(firstRow + tileRows, faceSize);
+        int[] pixels = ConversionEngine.extractFaceRows(source, face, faceSize, firstRow, lastRow);
+        return new FaceTile(face, faceSize, 0, firstRow, faceSize, lastRow - firstRow, pixels);
+    }
+
+    private final class TileSubscription implements Flow.Subscription {
+        private final Flow.Subscriber<? super FaceTile> subscriber;
+        private final ArrayDeque<FaceTile> ready = new ArrayDeque<>();
+        // requested and not delivered yet
+        private long demand;
+        private int nextTile;
+        private int running;
+        private int delivered;
+        // a thread is calling the subscriber, the others only queue their tiles
+        private boolean emitting;
+        private boolean terminated;
+        private Throwable failure;
+
+        TileSubscription(Flow.Subscriber<? super FaceTile> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n) {
+            synchronized (this) {
+                if (terminated) {
+                    return;
+                }
+                if (n <= 0) {
+                    failure = new IllegalArgumentException("Requested " + n + " tiles");
+                } else {
+                    demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+                }
+            }
+            drain();
+        }
+
+        @Override
+        public synchronized void cancel() {
+            terminated = true;
+            ready.clear();
+        }
+
+        private void drain() {
+            synchronized (this) {
+                startTasks();
+                if (emitting) {
+                    return;
+                }
+                emitting = true;
+            }
+            while (true) {
+                FaceTile tile = null;
+                Throwable error = null;
+                synchronized (this) {
+                    startTasks();
+                    if (terminated) {
+                        emitting = false;
+                        return;
+                    }
+                    if (failure != null) {
+                        terminated = true;
+                        error = failure;
+                        ready.clear();
+                    } else if (!ready.isEmpty() && demand > 0) {
+                        tile = ready.poll();
+                        demand--;
+                        delivered++;
+                    } else if (delivered == getTileCount()) {
+                        terminated = true;
+                    } else {
+                        emitting = false;
+                        return;
+                    }
+                }
+                if (error != null) {
+                    subscriber.onError(error);
+                    return;
+                }
+                if (tile == null) {
+                    subscriber.onComplete();
+                    return;
+                }
+                try {
+                    subscriber.onNext(tile);
+                } catch (RuntimeException e) {
+                    // a failing subscriber is considered cancelled
+                    cancel();
+                    throw e;
+                }
+            }
+        }
+
+        // computes the requested tiles, holding the lock
+        private void startTasks() {
+            while (!terminated && failure == null && nextTile < getTileCount() && running < maxParallelTiles
+                    && running + ready.size() < demand) {
+                int t = nextTile++;
+                running++;
+                try {
+                    executor.execute(() -> compute(t));
+                } catch (RejectedExecutionException e) {
+                    running--;
+                    failure = e;
+                }
+            }
+        }
+
+        private void compute(int t) {
+            FaceTile tile = null;
+            Throwable error = null;
+            try {
+                synchronized (this) {
+                    if (terminated) {
+                        running--;
+                        return;
+                    }
+                }
+                tile = computeTile(t);
+            } catch (RuntimeException | Error e) {
+                error = e;
+            }
+            synchronized (this) {
+                running--;
+                if (error != null && failure == null) {
+                    failure = error;
+                } else if (tile != null && !terminated) {
+                    ready.add(tile);
+                }
+            }
+            drain();
+        }
+    }
+}
@@ -0,0 +1,204 @@
+/*
+Copyright 2020 Alessandro Bruno
+
+This file is part of EquirectangulartoCubic.java.
+EquirectangulartoCubic is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+EquirectangulartoCubic is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+You should have received a copy of the GNU General Public License along with EquirectangulartoCubic. If not, see http://www.gnu.org/licenses/.
+*/
+
+package com.Equi2Rect;
+import java.awt.Dimension;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Conversion settings fitting the peak memory of a conversion in a budget, chosen
+ * from the size of the image read in its header, before decoding it.
+ * The settings are degraded step by step until the estimated peak fits:
+ * <ol>
+ *   <li>pixels of the panorama packed in 3 bytes instead of 4</li>
+ *   <li>streaming decode, holding only part of the decoded rows (baseline JPEG, non-interlaced PNG)</li>
+ *   <li>smaller faces, down to a quarter of their full size</li>
+ *   <li>panorama subsampled while it is decoded, 1 pixel out of 2, 3, ...</li>
+ * </ol>
+ * The estimate covers the decoded panorama, its copy for the projection, the
+ * six faces and the copies of the faces kept by the caller (e.g. JavaFX images)
+ * once the panorama has been released.
+ * Use it with {@link ConversionEngine#convert(File, MemoryBudget)}.
+ */
+public class MemoryBudget {
+
+    static final int MAX_SUBSAMPLING = 16;
+    static final int MIN_FACE_SIZE = 64;
+
+    private final long budgetBytes;
+    private final int equiWidth;
+    private final int equiHeight;
+    private int subsampling = 1;
+    private int faceSize;
+    private int fullFaceSize;
+    private EquiSource.Storage storage = EquiSource.Storage.INT_ARGB;
+    private boolean streaming;
+    private long estimatedPeakBytes;
+    private final List<String> degradations = new ArrayList<>();
+
+    private MemoryBudget(long budgetBytes, int equiWidth, int equiHeight) {
+        this.budgetBytes = budgetBytes;
+        this.equiWidth = equiWidth;
+        this.equiHeight = equiHeight;
+    }
+
+    /**
+     * Chooses the settings converting an image file within a memory budget
+     * @param file The file containing the equirectangular panorama
+     * @param budgetBytes Memory the conversion may use
+     * @param keptBytesPerFacePixel Bytes per face pixel of the copies of the faces kept by the caller
+     * @throws IOException if the header cannot be read, the image is not equirectangular
+     * or cannot be converted within the budget
+     */
+    public static MemoryBudget plan(File file, long budgetBytes, int keptBytesPerFacePixel) throws IOException {
+        Dimension size = EquirectangularToCubic.readImageSize(file);
+        if (size.width != size.height * 2) {
+            throw new IOException("Image is not equirectangular (" + size.width + " x " + size.height + ")");
+        }
+        String name = file.getName().toLowerCase();
+        boolean jpeg = name.endsWith(".jpg") || name.endsWith(".jpeg");
+        return plan(size.width, size.height, jpeg, StreamingEquiSource.canStream(file),
+                budgetBytes, keptBytesPerFacePixel);
+    }
+
+    static MemoryBudget plan(int equiWidth, int equiHeight, boolean jpeg, boolean canStream,
+                             long budgetBytes, int keptBytesPerFacePixel) throws IOException {
+        MemoryBudget plan = new MemoryBudget(budgetBytes, equiWidth, equiHeight);
+        plan.fullFaceSize = ConversionEngine.faceSize(equiWidth);
+        // ImageIO decodes JPEG files in 3 bytes per pixel, which the packed storage uses in place
+        int decodedBytes = jpeg ? 3 : 4;
+        long pixels = (long) equiWidth * equiHeight;
+        int face = plan.fullFaceSize;
+
+        plan.faceSize = face;
+        plan.estimatedPeakBytes = peak(pixels * (decodedBytes + 4), face, keptBytesPerFacePixel);
+        if (plan.fits()) {
+            return plan;
+        }
+
+        plan.storage = EquiSource.Storage.PACKED_RGB;
+        plan.degradations.add("packed 24-bit pixels");
+        plan.estimatedPeakBytes = peak(pixels * (jpeg ? 3 : 4 + 3), face, keptBytesPerFacePixel);
+        if (plan.fits()) {
+            return plan;
+        }
+
+        long sourceBytes = jpeg ? 3 * pixels : 7 * pixels;
+        if (canStream) {
+            plan.streaming = true;
+            plan.degradations.add("streaming decode");
+            // the decoded rows are kept within about a quarter of the image, with some slack
+            sourceBytes = pixels;
+            plan.estimatedPeakBytes = peak(sourceBytes, face, keptBytesPerFacePixel);
+            if (plan.fits()) {
+                return plan;
+            }
+        }
+
+        for (int n = 1; n <= MAX_SUBSAMPLING; n++) {
+            if (n > 1) {
+                plan.streaming = false;
+                long height = equiHeight / n;
+                long subsampledPixels = 2 * height * height;
+                sourceBytes = subsampledPixels * (jpeg ? 3 : 4 + 3);
+                face = ConversionEngine.faceSize((int) (2 * height));
+            }
+            int maxFace = (int) Math.min(Math.sqrt(Math.max(0, budgetBytes - sourceBytes) / 24.0),
+                    Math.sqrt(budgetBytes / (6.0 * (4 + keptBytesPerFacePixel))));
+            if (maxFace >= Math.max(MIN_FACE_SIZE, face / 4)) {
+                plan.subsampling = n;
+                plan.faceSize = Math.min(face, maxFace);
+                plan.estimatedPeakBytes = peak(sourceBytes, plan.faceSize, keptBytesPerFacePixel);
+                if (n > 1) {
+                    plan.degradations.remove("streaming decode");
+                    plan.degradations.add("source subsampled 1:" + n);
+                }
+                if (plan.faceSize < plan.fullFaceSize) {
+                    plan.degradations.add("faces of " + plan.faceSize + " px instead of " + plan.fullFaceSize + " px");
+                }
+                return plan;
+            }
+        }
+        throw new IOException("Not enough memory to open a " + equiWidth + " x " + equiHeight +
+                " panorama within " + (budgetBytes >> 20) + " MB");
+    }
+
+    // the faces are written in place in their BufferedImages, their copies are made once the source is released
+    private static long peak(long sourceBytes, int face, int keptBytesPerFacePixel) {
+        long faceBytes = 6L * 4L * face * face;
+        return faceBytes + Math.max(sourceBytes, 6L * keptBytesPerFacePixel * face * face);
+    }
+
+    private boolean fits() {
+        return estimatedPeakBytes <= budgetBytes;
+    }
+
+    public long getBudgetBytes() {
+        return budgetBytes;
+    }
+
+    public int getEquiWidth() {
+        return equiWidth;
+    }
+
+    public int getEquiHeight() {
+        return equiHeight;
+    }
+
+    /**
+     * Returns n when one pixel out of n is decoded in each direction, 1 for the full image
+     */
+    public int getSubsampling() {
+        return subsampling;
+    }
+
+    /**
+     * Returns the size of the faces in pixels
+     */
+    public int getFaceSize() {
+        return faceSize;
+    }
+
+    public EquiSource.Storage getStorage() {
+        return storage;
+    }
+
+    public boolean isStreaming() {
+        return streaming;
+    }
+
+    public long getEstimatedPeakBytes() {
+        return estimatedPeakBytes;
+    }
+
+    /**
+     * Returns true if the faces have a lower resolution than the full conversion
+     */
+    public boolean isDegraded() {
+        return subsampling > 1 || faceSize < fullFaceSize;
+    }
+
+    /**
+     * Returns the settings changed to fit the budget, empty if none
+     */
+    public List<String> getDegradations() {
+        return Collections.unmodifiableList(degradations);
+    }
+
+    @Override
+    public String toString() {
+        return "Memory budget " + (budgetBytes >> 20) + " MB for " + equiWidth + " x " + equiHeight +
+                ", estimated peak " + (estimatedPeakBytes >> 20) + " MB" +
+                (degradations.isEmpty() ? "" : ": " + String.join(", ", degradations));
+    }
+}
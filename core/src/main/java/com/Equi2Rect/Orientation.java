@@ -0,0 +1,134 @@
+/*
+Copyright 2020 Alessandro Bruno
+
+This file is part of EquirectangulartoCubic.java.
+EquirectangulartoCubic is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+EquirectangulartoCubic is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+You should have received a copy of the GNU General Public License along with EquirectangulartoCubic. If not, see http://www.gnu.org/licenses/.
+*/
+
+package com.Equi2Rect;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Orientation of the camera that took a panorama, as in the GPano XMP metadata
+ * of Google Photo Sphere: heading of the center of the image, pitch of the center
+ * of the image above the horizon, and roll, the horizon turning counterclockwise
+ * in the image as the roll increases. All in degrees.
+ * <p>
+ * Set on an {@link EquiSource}, the orientation is combined with the yaw and
+ * pitch of each view into the single matrix of the projection, so that the
+ * views and faces come out leveled without resampling the panorama.
+ */
+public final class Orientation {
+
+    public static final Orientation NONE = new Orientation(0, 0, 0);
+
+    // the XMP packet is at the start of the file, before the pixels
+    private static final int XMP_SEARCH_BYTES = 512 * 1024;
+    private static final Pattern GPANO_POSE = Pattern.compile(
+            "GPano:Pose(Heading|Pitch|Roll)Degrees(?:\\s*=\\s*[\"']|>)\\s*([-+]?[0-9]*\\.?[0-9]+(?:[eE][-+]?[0-9]+)?)");
+
+    private final double heading;
+    private final double pitch;
+    private final double roll;
+
+    public Orientation(double heading, double pitch, double roll) {
+        this.heading = heading;
+        this.pitch = pitch;
+        this.roll = roll;
+    }
+
+    /**
+     * Reads the pose of the camera from the GPano XMP metadata of a JPEG or PNG
+     * file, returns NONE if there is none
+     */
+    public static Orientation fromGPano(File file) throws IOException {
+        byte[] header = new byte[XMP_SEARCH_BYTES];
+        int length = 0;
+        try (InputStream in = new FileInputStream(file)) {
+            for (int n; length < header.length && (n = in.read(header, length, header.length - length)) > 0; ) {
+                length += n;
+            }
+        }
+        Matcher matcher = GPANO_POSE.matcher(new String(header, 0, length, StandardCharsets.ISO_8859_1));
+        double[] pose = new double[3];
+        boolean found = false;
+        while (matcher.find()) {
+            String angle = matcher.group(1);
+            pose[angle.equals("Heading") ? 0 : angle.equals("Pitch") ? 1 : 2] = Double.parseDouble(matcher.group(2));
+            found = true;
+        }
+        return found ? new Orientation(pose[0], pose[1], pose[2]) : NONE;
+    }
+
+    public double getHeading() {
+        return heading;
+    }
+
+    public double getPitch() {
+        return pitch;
+    }
+
+    public double getRoll() {
+        return roll;
+    }
+
+    /**
+     * Returns the same orientation with a heading of 0: applied, it only levels
+     * the horizon, the yaw 0 of the views stays at the center of the image
+     */
+    public Orientation withoutHeading() {
+        return heading == 0 ? this : new Orientation(0, pitch, roll);
+    }
+
+    public boolean isIdentity() {
+        return heading % 360 == 0 && pitch % 360 == 0 && roll % 360 == 0;
+    }
+
+    /**
+     * Returns the rotation from the directions of the views to those of the
+     * panorama, multiplied on the right of the matrix of the view in Equi2Rect
+     */
+    double[][] matrix() {
+        double h = Math.toRadians(heading), p = Math.toRadians(pitch), r = Math.toRadians(roll);
+        // camera to world with x right, y up, z forward: heading about y, then pitch about x, then roll about z
+        double[][] ry = {{Math.cos(h), 0, Math.sin(h)}, {0, 1, 0}, {-Math.sin(h), 0, Math.cos(h)}};
+        double[][] rx = {{1, 0, 0}, {0, Math.cos(p), Math.sin(p)}, {0, -Math.sin(p), Math.cos(p)}};
+        double[][] rz = {{Math.cos(r), Math.sin(r), 0}, {-Math.sin(r), Math.cos(r), 0}, {0, 0, 1}};
+        return multiply(multiply(ry, rx), rz);
+    }
+
+    private static double[][] multiply(double[][] a, double[][] b) {
+        double[][] c = new double[3][3];
+        for (int i = 0; i < 3; i++) {
+            for (int j = 0; j < 3; j++) {
+                c[i][j] = a[i][0] * b[0][j] + a[i][1] * b[1][j] + a[i][2] * b[2][j];
+            }
+        }
+        return c;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof Orientation)) return false;
+        Orientation other = (Orientation) o;
+        return heading == other.heading && pitch == other.pitch && roll == other.roll;
+    }
+
+    @Override
+    public int hashCode() {
+        return Double.hashCode(heading) * 31 * 31 + Double.hashCode(pitch) * 31 + Double.hashCode(roll);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("heading %.2f, pitch %.2f, roll %.2f", heading, pitch, roll);
+    }
+}
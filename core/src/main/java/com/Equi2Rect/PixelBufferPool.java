@@ -0,0 +1,212 @@
+/*
+Copyright 2020 Alessandro Bruno
+
+This file is part of EquirectangulartoCubic.java.
+EquirectangulartoCubic is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+EquirectangulartoCubic is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+You should have received a copy of the GNU General Public License along with EquirectangulartoCubic. If not, see http://www.gnu.org/licenses/.
+*/
+
+package com.Equi2Rect;
+import java.awt.Point;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Pixel arrays reused from one panorama to the next instead of being left to
+ * the garbage collector: the rows of the decoded panoramas and the cube faces
+ * are the largest allocations of each open, all of the same few sizes when a
+ * viewer or a kiosk cycles through the images of one camera.
+ * <p>
+ * The capacities are rounded up to size classes, eight per power of two, so an
+ * array serves any request of its class (at most an eighth larger). Released
+ * arrays are kept up to maxBytes, and those not used for idleMillis are dropped
+ * by a background thread. The arrays released must not be used any more.
+ */
+public class PixelBufferPool {
+
+    private static final DirectColorModel RGB = new DirectColorModel(24, 0xff0000, 0xff00, 0xff);
+
+    private final long maxBytes;
+    private final long idleMillis;
+    // free arrays by capacity, most recently released last
+    private final Map<Integer, ArrayDeque<int[]>> free = new HashMap<>();
+    private final Map<Integer, Long> lastUse = new HashMap<>();
+    private long retainedBytes;
+    private long hits;
+    private long misses;
+    private Thread trimmer;
+
+    /**
+     * @param maxBytes Memory the free arrays may use, 0 to disable the pool
+     * @param idleMillis Free arrays of a size not used for this long are dropped
+     */
+    public PixelBufferPool(long maxBytes, long idleMillis) {
+        this.maxBytes = maxBytes;
+        this.idleMillis = idleMillis;
+    }
+
+    /**
+     * Returns the capacity of the arrays handed out for length ints
+     */
+    static int capacity(int length) {
+        if (length <= 8) {
+            return Math.max(1, length);
+        }
+        int step = Integer.highestOneBit(length) >> 3;
+        long capacity = ((long) length + step - 1) / step * step;
+        return (int) Math.min(capacity, Integer.MAX_VALUE - 8);
+    }
+
+    /**
+     * Returns an array of at least length ints, whose content is undefined
+     */
+    public int[] acquire(int length) {
+        int capacity = capacity(length);
+        synchronized (this) {
+            ArrayDeque<int[]> arrays = free.get(capacity);
+            if (arrays != null && !arrays.isEmpty()) {
+                hits++;
+                retainedBytes -= 4L * capacity;
+                lastUse.put(capacity, System.currentTimeMillis());
+                return arrays.pollLast();
+            }
+            misses++;
+            lastUse.put(capacity, System.currentTimeMillis());
+        }
+        return new int[capacity];
+    }
+
+    /**
+     * Returns an array to the pool. Arrays not handed out by a pool are kept if
+     * their length is the capacity of a size class.
+     */
+    public void release(int[] array) {
+        if (array == null || array.length != capacity(array.length)) {
+            return;
+        }
+        synchronized (this) {
+            if (retainedBytes + 4L * array.length > maxBytes) {
+                return;
+            }
+            free.computeIfAbsent(array.length, c -> new ArrayDeque<>()).add(array);
+            retainedBytes += 4L * array.length;
+            lastUse.put(array.length, System.currentTimeMillis());
+            startTrimmer();
+        }
+    }
+
+    /**
+     * Returns an image of type TYPE_INT_RGB backed by a pooled array, which may be
+     * longer than width x height pixels
+     */
+    public BufferedImage acquireImage(int width, int height) {
+        int[] pixels = acquire(Math.multiplyExact(width, height));
+        DataBufferInt buffer = new DataBufferInt(pixels, width * height);
+        WritableRaster raster = Raster.createWritableRaster(new SinglePixelPackedSampleModel(DataBuffer.TYPE_INT,
+                width, height, RGB.getMasks()), buffer, new Point(0, 0));
+        return new BufferedImage(RGB, raster, false, null);
+    }
+
+    /**
+     * Returns the pixels of a TYPE_INT_RGB or TYPE_INT_ARGB image to the pool,
+     * the image must not be used any more. Other images are left to the garbage collector.
+     */
+    public void release(BufferedImage image) {
+        if (image != null && image.getRaster().getDataBuffer() instanceof DataBufferInt
+                && image.getRaster().getParent() == null
+                && ((DataBufferInt) image.getRaster().getDataBuffer()).getNumBanks() == 1) {
+            release(((DataBufferInt) image.getRaster().getDataBuffer()).getData());
+        }
+    }
+
+    /**
+     * Drops the free arrays of the sizes not used for idleMillis
+     */
+    public synchronized void trim() {
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<Integer, Long>> it = lastUse.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Integer, Long> e = it.next();
+            if (now - e.getValue() >= idleMillis) {
+                ArrayDeque<int[]> arrays = free.remove(e.getKey());
+                if (arrays != null) {
+                    retainedBytes -= 4L * e.getKey() * arrays.size();
+                }
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Drops all the free arrays
+     */
+    public synchronized void clear() {
+        free.clear();
+        lastUse.clear();
+        retainedBytes = 0;
+    }
+
+    public synchronized long getRetainedBytes() {
+        return retainedBytes;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Returns the fraction of the arrays handed out that were reused, 0 before the first one
+     */
+    public synchronized double getHitRate() {
+        return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    // checks the idle sizes while the pool holds arrays, then stops
+    private void startTrimmer() {
+        if (trimmer != null) {
+            return;
+        }
+        trimmer = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(Math.max(1000, idleMillis / 2));
+                } catch (InterruptedException e) {
+                    return;
+                }
+                trim();
+                synchronized (this) {
+                    if (free.isEmpty()) {
+                        trimmer = null;
+                        return;
+                    }
+                }
+            }
+        }, "equi2rect buffer pool trimmer");
+        trimmer.setDaemon(true);
+        trimmer.start();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("Buffer pool: %.0f%% hits (%d of %d), %d MB retained of %d MB", 100 * getHitRate(),
+                hits, hits + misses, retainedBytes >> 20, maxBytes >> 20);
+    }
+}
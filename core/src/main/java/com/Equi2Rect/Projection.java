@@ -0,0 +1,125 @@
+/*
+Copyright 2020 Alessandro Bruno
+
+This file is part of EquirectangulartoCubic.java.
+EquirectangulartoCubic is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+EquirectangulartoCubic is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+You should have received a copy of the GNU General Public License along with EquirectangulartoCubic. If not, see http://www.gnu.org/licenses/.
+*/
+
+package com.Equi2Rect;
+
+/**
+ * Projection of the views rendered by {@link ViewBatch} and
+ * {@link ConversionEngine#renderView}. Each one gives the direction seen by a
+ * pixel of the view: the adaptive sampling of {@link Equi2Rect} computes it
+ * exactly on a sparse grid and interpolates in between, splitting the cells
+ * where the projection bends, and starting from cells small enough for the
+ * curvature of the projection.
+ */
+public enum Projection {
+
+    /** Gnomonic, straight lines stay straight: the cube faces and the usual views */
+    RECTILINEAR(180, false, Equi2Rect.QT_CELL_SIZE) {
+        @Override
+        double focal(int width, double fov) {
+            return width / (2 * Math.tan(fov / 2));
+        }
+
+        @Override
+        void direction(double x, double y, double[] d) {
+            double n = 1 / Math.sqrt(x * x + y * y + 1);
+            d[0] = x * n;
+            d[1] = y * n;
+            d[2] = n;
+        }
+    },
+
+    /** Conformal, up to the whole sphere but the point behind: the "little planet" looking at the nadir */
+    STEREOGRAPHIC(360, false, 32) {
+        @Override
+        double focal(int width, double fov) {
+            return width / (4 * Math.tan(fov / 4));
+        }
+
+        @Override
+        void direction(double x, double y, double[] d) {
+            radial(x, y, 2 * Math.atan(Math.hypot(x, y) / 2), d);
+        }
+    },
+
+    /** Equidistant fisheye, the angle from the center proportional to the distance */
+    FISHEYE(360, true, 32) {
+        @Override
+        double focal(int width, double fov) {
+            return width / fov;
+        }
+
+        @Override
+        void direction(double x, double y, double[] d) {
+            radial(x, y, Math.hypot(x, y), d);
+        }
+    },
+
+    /** Mercator, conformal cylinder around the vertical axis of the view */
+    MERCATOR(360, true, Equi2Rect.QT_CELL_SIZE) {
+        @Override
+        double focal(int width, double fov) {
+            return width / fov;
+        }
+
+        @Override
+        void direction(double x, double y, double[] d) {
+            double lat = Math.atan(Math.sinh(y));
+            d[0] = Math.cos(lat) * Math.sin(x);
+            d[1] = Math.sin(lat);
+            d[2] = Math.cos(lat) * Math.cos(x);
+        }
+    };
+
+    private final double maxFov;
+    private final boolean maxFovIncluded;
+    final int maxCellSize;
+
+    Projection(double maxFov, boolean maxFovIncluded, int maxCellSize) {
+        this.maxFov = maxFov;
+        this.maxFovIncluded = maxFovIncluded;
+        this.maxCellSize = maxCellSize;
+    }
+
+    /**
+     * Returns the widest horizontal field of view in degrees, excluded for
+     * RECTILINEAR and STEREOGRAPHIC, whose scale is infinite there
+     */
+    public double getMaxFov() {
+        return maxFov;
+    }
+
+    /**
+     * Returns true if a view of this horizontal field of view in degrees can be rendered
+     */
+    public boolean isValidFov(double fov) {
+        return fov > 0 && (fov < maxFov || maxFovIncluded && fov == maxFov);
+    }
+
+    /**
+     * Returns the pixels per unit of the coordinates of {@link #direction} in a
+     * view width pixels wide covering fov radians horizontally
+     */
+    abstract double focal(int width, double fov);
+
+    /**
+     * Sets d to the unit direction seen at (x, y) from the center of the view,
+     * in pixels divided by the focal: x to the right, y down the rows, z forward
+     */
+    abstract void direction(double x, double y, double[] d);
+
+    // direction at angle theta from the axis, towards (x, y)
+    static void radial(double x, double y, double theta, double[] d) {
+        double r = Math.hypot(x, y);
+        double s = r == 0 ? 0 : Math.sin(theta) / r;
+        d[0] = x * s;
+        d[1] = y * s;
+        d[2] = Math.cos(theta);
+    }
+}
@@ -0,0 +1,270 @@
+/*
+Copyright 2020 Alessandro Bruno
+
+This file is part of EquirectangulartoCubic.java.
+EquirectangulartoCubic is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+EquirectangulartoCubic is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+You should have received a copy of the GNU General Public License along with EquirectangulartoCubic. If not, see http://www.gnu.org/licenses/.
+*/
+
+package com.Equi2Rect;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.Transparency;
+import java.awt.color.ColorSpace;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.Vector;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Rectilinear view of a panorama of any size, rendered lazily in bands of
+ * BAND_ROWS full-width rows (the tiles of this image) as an image writer reads
+ * them. Reading a band also starts rendering the next ones in parallel, and the
+ * bands above the one being read are released: a writer reading from top to
+ * bottom, like the PNG and TIFF writers of ImageIO, holds a bounded number of
+ * bands whatever the size of the view. The pixels are 8-bit R, G, B, with the
+ * sky at the top (the faces of {@link EquirectangularToCubic} have the nadir at
+ * the top, as the viewer expects them).
+ */
+public class RectilinearView implements RenderedImage {
+
+    static final int BAND_ROWS = 64;
+    private static final int[] RGB_OFFSETS = {0, 1, 2};
+
+    private final EquiSource source;
+    private final double yaw;
+    private final double pitch;
+    private final double fov;
+    private final int width;
+    private final int height;
+    private final ExecutorService executor;
+    private final int lookAhead;
+    private final int bandCount;
+    private final ColorModel colorModel = new ComponentColorModel(ColorSpace.getInstance(ColorSpace.CS_sRGB),
+            false, false, Transparency.OPAQUE, DataBuffer.TYPE_BYTE);
+    private final TreeMap<Integer, Future<byte[]>> bands = new TreeMap<>();
+
+    /**
+     * @param source The panorama
+     * @param yaw Yaw of the center of the view in degrees
+     * @param pitch Pitch of the center of the view in degrees, positive towards the zenith
+     * @param fov Horizontal field of view in degrees, less than 180
+     * @param width Width of the view in pixels
+     * @param height Height of the view in pixels
+     * @param executor Renders the bands
+     * @param lookAhead Number of bands rendered ahead of the one being read
+     */
+    public RectilinearView(EquiSource source, double yaw, double pitch, double fov, int width, int height,
+                           ExecutorService executor, int lookAhead) {
+        if (!(fov > 0 && fov < 180)) {
+            throw new IllegalArgumentException("The field of view must be between 0 and 180 degrees: " + fov);
+        }
+        if (width <= 0 || height <= 0 || (long) width * BAND_ROWS * 3 > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Invalid view size: " + width + " x " + height);
+        }
+        this.source = source;
+        this.yaw = yaw;
+        this.pitch = pitch;
+        this.fov = fov;
+        this.width = width;
+        this.height = height;
+        this.executor = executor;
+        this.lookAhead = Math.max(1, lookAhead);
+        this.bandCount = (height + BAND_ROWS - 1) / BAND_ROWS;
+    }
+
+    // renders band b in R, G, B bytes, BAND_ROWS rows even for the last one
+    private byte[] render(int b) {
+        int firstRow = b * BAND_ROWS;
+        int lastRow = Math.min(firstRow + BAND_ROWS, height);
+        int[] pixels = new int[(lastRow - firstRow) * width];
+        Equi2Rect.extractRectilinearTile(yaw, -pitch, fov, source, pixels, width, height, firstRow, lastRow,
+                false, true, true);
+        byte[] rgb = new byte[BAND_ROWS * width * 3];
+        for (int i = 0, o = 0; i < pixels.length; i++) {
+            int p = pixels[i];
+            rgb[o++] = (byte) (p >> 16);
+            rgb[o++] = (byte) (p >> 8);
+            rgb[o++] = (byte) p;
+        }
+        return rgb;
+    }
+
+    // returns band b, rendering it and the next ones if needed, and releases the bands above
+    private byte[] band(int b) {
+        Future<byte[]> future;
+        synchronized (bands) {
+            Iterator<Map.Entry<Integer, Future<byte[]>>> it = bands.headMap(b).entrySet().iterator();
+            while (it.hasNext()) {
+                it.next().getValue().cancel(false);
+                it.remove();
+            }
+            for (int k = b; k < Math.min(bandCount, b + 1 + lookAhead); k++) {
+                if (!bands.containsKey(k)) {
+                    int band = k;
+                    bands.put(k, executor.submit(() -> render(band)));
+                }
+            }
+            future = bands.get(b);
+        }
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException("Interrupted while rendering the view");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    /**
+     * Releases the bands still held, to be called once the view is written
+     */
+    public void dispose() {
+        synchronized (bands) {
+            for (Future<byte[]> future : bands.values()) {
+                future.cancel(false);
+            }
+            bands.clear();
+        }
+    }
+
+    @Override
+    public Raster getTile(int tileX, int tileY) {
+        byte[] band = band(tileY);
+        return Raster.createInterleavedRaster(new DataBufferByte(band, band.length), width, BAND_ROWS,
+                width * 3, 3, RGB_OFFSETS, new Point(0, tileY * BAND_ROWS));
+    }
+
+    @Override
+    public Raster getData() {
+        return getData(new Rectangle(0, 0, width, height));
+    }
+
+    @Override
+    public Raster getData(Rectangle rect) {
+        return copyData(Raster.createInterleavedRaster(DataBuffer.TYPE_BYTE, rect.width, rect.height, 3,
+                new Point(rect.x, rect.y)));
+    }
+
+    @Override
+    public WritableRaster copyData(WritableRaster raster) {
+        if (raster == null) {
+            raster = colorModel.createCompatibleWritableRaster(width, height);
+        }
+        Rectangle rect = raster.getBounds().intersection(new Rectangle(0, 0, width, height));
+        if (rect.isEmpty()) {
+            return raster;
+        }
+        for (int b = rect.y / BAND_ROWS; b <= (rect.y + rect.height - 1) / BAND_ROWS; b++) {
+            Raster tile = getTile(0, b);
+            Rectangle common = rect.intersection(tile.getBounds());
+            // the child keeps the coordinates of the view, which locate it in the raster
+            raster.setDataElements(0, 0,
+                    tile.createChild(common.x, common.y, common.width, common.height, common.x, common.y, null));
+        }
+        return raster;
+    }
+
+    @Override
+    public Vector<RenderedImage> getSources() {
+        return null;
+    }
+
+    @Override
+    public Object getProperty(String name) {
+        return java.awt.Image.UndefinedProperty;
+    }
+
+    @Override
+    public String[] getPropertyNames() {
+        return null;
+    }
+
+    @Override
+    public ColorModel getColorModel() {
+        return colorModel;
+    }
+
+    @Override
+    public SampleModel getSampleModel() {
+        return new PixelInterleavedSampleModel(DataBuffer.TYPE_BYTE, width, BAND_ROWS, 3, width * 3, RGB_OFFSETS);
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    @Override
+    public int getMinX() {
+        return 0;
+    }
+
+    @Override
+    public int getMinY() {
+        return 0;
+    }
+
+    @Override
+    public int getNumXTiles() {
+        return 1;
+    }
+
+    @Override
+    public int getNumYTiles() {
+        return bandCount;
+    }
+
+    @Override
+    public int getMinTileX() {
+        return 0;
+    }
+
+    @Override
+    public int getMinTileY() {
+        return 0;
+    }
+
+    @Override
+    public int getTileWidth() {
+        return width;
+    }
+
+    @Override
+    public int getTileHeight() {
+        return BAND_ROWS;
+    }
+
+    @Override
+    public int getTileGridXOffset() {
+        return 0;
+    }
+
+    @Override
+    public int getTileGridYOffset() {
+        return 0;
+    }
+}
@@ -0,0 +1,347 @@
+/*
+Copyright 2020 Alessandro Bruno
+
+This file is part of EquirectangulartoCubic.java.
+EquirectangulartoCubic is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+EquirectangulartoCubic is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+You should have received a copy of the GNU General Public License along with EquirectangulartoCubic. If not, see http://www.gnu.org/licenses/.
+*/
+
+package com.Equi2Rect;
+import java.awt.Toolkit;
+import java.awt.image.ColorModel;
+import java.awt.image.DirectColorModel;
+import java.awt.image.ImageConsumer;
+import java.awt.image.ImageProducer;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.Hashtable;
+
+/**
+ * Panorama filled row by row while its file is being decoded, in the same way as
+ * {@link ImageTo2DIntArrayExtractor}. The pixels are kept packed (B, G, R) in
+ * bands of BAND_ROWS rows. Before decoding starts, every reader declares the
+ * image rows it needs with {@link #require(int, int)}; rows nobody needs are not
+ * stored, and a band is released as soon as its last reader calls
+ * {@link #release(int, int)}. When the stored bands exceed maxBytes, the decoder
+ * waits for the readers whose rows are all decoded to release theirs.
+ * Rows are counted top-down as in the image file, while
+ * {@link #getRGB(int, int)} uses the bottom-up rows of {@link EquiSource}.
+ */
+public class StreamingEquiSource extends EquiSource implements ImageConsumer {
+
+    static final int BAND_SHIFT = 5;
+    static final int BAND_ROWS = 1 << BAND_SHIFT;
+    private static final int STREAMING_HINTS =
+            ImageConsumer.TOPDOWNLEFTRIGHT | ImageConsumer.COMPLETESCANLINES | ImageConsumer.SINGLEPASS;
+
+    private final byte[][] bands;
+    private final int[] readers;
+    private final int stride;
+    private final long maxBytes;
+    // last row of each reader, sorted once decoding starts
+    private int[] readerLastRows = new int[16];
+    private int readerCount;
+    private int readersReady;
+    private int readersReleased;
+    private ImageProducer producer;
+    private boolean singlePassFile;
+    // rows [0, rowsDone) are final
+    private int rowsDone;
+    private boolean streaming;
+    private boolean complete;
+    private boolean failed;
+    private long retainedBytes;
+    private long peakBytes;
+
+    /**
+     * @param maxBytes Memory the decoded rows should not exceed, as long as the readers can make progress
+     */
+    public StreamingEquiSource(int width, int height, long maxBytes) {
+        super(width, height);
+        this.maxBytes = maxBytes;
+        this.stride = width * 3;
+        int n = (height + BAND_ROWS - 1) / BAND_ROWS;
+        this.bands = new byte[n][];
+        this.readers = new int[n];
+    }
+
+    @Override
+    public Storage getStorage() {
+        return Storage.PACKED_RGB;
+    }
+
+    @Override
+    public int getRGB(int row, int col) {
+        int y = height - 1 - row;
+        byte[] band = bands[y >> BAND_SHIFT];
+        int o = (y & (BAND_ROWS - 1)) * stride + col * 3;
+        return (band[o] & 0xff) | (band[o + 1] & 0xff) << 8 | (band[o + 2] & 0xff) << 16;
+    }
+
+    /**
+     * Declares a reader of the image rows [firstRow, lastRow], must be called before {@link #start(File)}
+     */
+    public synchronized void require(int firstRow, int lastRow) {
+        if (readerCount == readerLastRows.length) {
+            readerLastRows = Arrays.copyOf(readerLastRows, readerCount * 2);
+        }
+        readerLastRows[readerCount++] = lastRow;
+        for (int b = firstRow >> BAND_SHIFT; b <= lastRow >> BAND_SHIFT; b++) {
+            readers[b]++;
+        }
+    }
+
+    /**
+     * Called by a reader of the image rows [firstRow, lastRow] when it is done with them
+     */
+    public synchronized void release(int firstRow, int lastRow) {
+        readersReleased++;
+        for (int b = firstRow >> BAND_SHIFT; b <= lastRow >> BAND_SHIFT; b++) {
+            if (--readers[b] == 0 && bandDone(b)) {
+                free(b);
+            }
+        }
+        notifyAll();
+    }
+
+    /**
+     * Starts decoding an image file in the thread of the image fetcher
+     */
+    public synchronized void start(File file) throws IOException {
+        singlePassFile = isSinglePassJpeg(file);
+        Arrays.sort(readerLastRows, 0, readerCount);
+        producer = Toolkit.getDefaultToolkit().createImage(file.getPath()).getSource();
+        producer.startProduction(this);
+    }
+
+    /**
+     * Returns true if the rows of the file are decoded in a single pass from the top,
+     * so that they can be projected while decoding: baseline JPEG and non-interlaced PNG
+     */
+    public static boolean canStream(File file) throws IOException {
+        if (isSinglePassJpeg(file)) {
+            return true;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            // signature, then the IHDR chunk: length, type, width, height, depth, color, compression, filter
+            if (in.readLong() != 0x89504e470d0a1a0aL) {
+                return false;
+            }
+            in.skipBytes(4 + 4 + 4 + 4 + 1 + 1 + 1 + 1);
+            return in.readUnsignedByte() == 0;
+        } catch (EOFException e) {
+            return false;
+        }
+    }
+
+    // The JPEG decoder of the toolkit does not pass the SINGLEPASS hint to its consumers
+    // (JDK 11-17), so the header is read here: a sequential frame whose first scan
+    // holds all the components is decoded in one pass.
+    static boolean isSinglePassJpeg(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readUnsignedShort() != 0xffd8) {
+                return false;
+            }
+            int components = -1;
+            while (true) {
+                if (in.readUnsignedByte() != 0xff) {
+                    return false;
+                }
+                int marker = in.readUnsignedByte();
+                while (marker == 0xff) {
+                    marker = in.readUnsignedByte();
+                }
+                int length = in.readUnsignedShort();
+                if (marker == 0xc0 || marker == 0xc1 || marker == 0xc9) {
+                    // sequential frame: precision, height, width, components
+                    in.skipBytes(5);
+                    components = in.readUnsignedByte();
+                    in.skipBytes(length - 8);
+                } else if (marker == 0xda) {
+                    return components > 0 && in.readUnsignedByte() == components;
+                } else if ((marker & 0xf0) == 0xc0 && marker != 0xc4 && marker != 0xc8 && marker != 0xcc) {
+                    // progressive or lossless frame
+                    return false;
+                } else {
+                    in.skipBytes(length - 2);
+                }
+            }
+        } catch (EOFException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Stops decoding and releases every band
+     */
+    public synchronized void stop() {
+        if (producer != null) {
+            producer.removeConsumer(this);
+        }
+        complete = true;
+        for (int b = 0; b < bands.length; b++) {
+            free(b);
+        }
+        notifyAll();
+    }
+
+    /**
+     * Waits until more than rows image rows are decoded and returns the number of decoded rows
+     * @throws IOException if the image cannot be decoded
+     */
+    public synchronized int awaitRows(int rows) throws IOException {
+        while (rowsDone <= rows && !complete) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while decoding the image");
+            }
+        }
+        if (failed) {
+            throw new IOException("Cannot decode the image");
+        }
+        return rowsDone;
+    }
+
+    /**
+     * Returns the largest amount of memory used by the bands in bytes
+     */
+    public synchronized long getPeakBytes() {
+        return peakBytes;
+    }
+
+    /**
+     * Returns true if the rows were received one by one from the top, false if the
+     * decoder needed several passes and the image was only usable once complete
+     */
+    public synchronized boolean isStreaming() {
+        return streaming;
+    }
+
+    private boolean bandDone(int b) {
+        return complete || rowsDone >= Math.min(height, (b + 1) * BAND_ROWS);
+    }
+
+    private void free(int b) {
+        if (bands[b] != null) {
+            retainedBytes -= bands[b].length;
+            bands[b] = null;
+        }
+    }
+
+    // returns the band holding row y, null if the row is not needed
+    private byte[] band(int y) {
+        int b = y >> BAND_SHIFT;
+        if (readers[b] == 0) {
+            return null;
+        }
+        if (bands[b] == null) {
+            bands[b] = new byte[Math.min(BAND_ROWS, height - (b << BAND_SHIFT)) * stride];
+            retainedBytes += bands[b].length;
+            peakBytes = Math.max(peakBytes, retainedBytes);
+        }
+        return bands[b];
+    }
+
+    // rows [y, y + h) were delivered
+    private void rowsDelivered(int y, int h) {
+        if (!streaming || y + h <= rowsDone) {
+            return;
+        }
+        int before = rowsDone;
+        rowsDone = y + h;
+        for (int b = before >> BAND_SHIFT; b <= (rowsDone - 1) >> BAND_SHIFT; b++) {
+            if (readers[b] == 0 && bandDone(b)) {
+                free(b);
+            }
+        }
+        while (readersReady < readerCount && readerLastRows[readersReady] < rowsDone) {
+            readersReady++;
+        }
+        notifyAll();
+        // back-pressure: only wait while a reader can run and release memory
+        while (retainedBytes > maxBytes && readersReleased < readersReady && !complete) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    // The following methods are called by the image's ImageProducer
+
+    public void setDimensions(int width, int height) {
+    }
+
+    public void setProperties(Hashtable<?, ?> props) {
+    }
+
+    public void setColorModel(ColorModel model) {
+    }
+
+    public synchronized void setHints(int hintflags) {
+        streaming = singlePassFile || (hintflags & STREAMING_HINTS) == STREAMING_HINTS;
+    }
+
+    public synchronized void setPixels(int x, int y, int w, int h, ColorModel model,
+                                       byte[] pixels, int off, int scansize) {
+        if (complete) return;
+        for (int iy = y; iy < y + h; iy++) {
+            byte[] band = band(iy);
+            if (band == null) continue;
+            int iptr = off + (iy - y) * scansize;
+            int o = (iy & (BAND_ROWS - 1)) * stride + x * 3;
+            for (int ix = 0; ix < w; ix++) {
+                int rgb = model.getRGB(pixels[iptr++] & 0xff);
+                band[o++] = (byte) rgb;
+                band[o++] = (byte) (rgb >> 8);
+                band[o++] = (byte) (rgb >> 16);
+            }
+        }
+        rowsDelivered(y, h);
+    }
+
+    public synchronized void setPixels(int x, int y, int w, int h, ColorModel model,
+                                       int[] pixels, int off, int scansize) {
+        if (complete) return;
+        boolean rgb = model instanceof DirectColorModel && ((DirectColorModel) model).getRedMask() == 0xff0000
+                && ((DirectColorModel) model).getGreenMask() == 0xff00 && ((DirectColorModel) model).getBlueMask() == 0xff;
+        for (int iy = y; iy < y + h; iy++) {
+            byte[] band = band(iy);
+            if (band == null) continue;
+            int iptr = off + (iy - y) * scansize;
+            int o = (iy & (BAND_ROWS - 1)) * stride + x * 3;
+            for (int ix = 0; ix < w; ix++) {
+                int p = rgb ? pixels[iptr++] : model.getRGB(pixels[iptr++]);
+                band[o++] = (byte) p;
+                band[o++] = (byte) (p >> 8);
+                band[o++] = (byte) (p >> 16);
+            }
+        }
+        rowsDelivered(y, h);
+    }
+
+    public synchronized void imageComplete(int status) {
+        if (complete) return;
+        producer.removeConsumer(this);
+        failed = status == IMAGEERROR || status == IMAGEABORTED;
+        complete = true;
+        rowsDone = height;
+        for (int b = 0; b < bands.length; b++) {
+            if (readers[b] == 0 || failed) {
+                free(b);
+            }
+        }
+        notifyAll();
+    }
+}
@@ -0,0 +1,218 @@
+/*
+Copyright 2020 Alessandro Bruno
+
+This file is part of EquirectangulartoCubic.java.
+EquirectangulartoCubic is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+EquirectangulartoCubic is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+You should have received a copy of the GNU General Public License along with EquirectangulartoCubic. If not, see http://www.gnu.org/licenses/.
+*/
+
+package com.Equi2Rect;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.ToIntFunction;
+
+/**
+ * Many views of one panorama rendered together: each view is prepared once
+ * (matrix and interpolation weights, shared by the views of the same scale),
+ * then the bands of 64 rows of all the views are projected in parallel on the
+ * pool of the engine, the views in the order given. Completed views can be
+ * taken as they come with {@link #take()}, or all at once with {@link #awaitAll()}.
+ * <p>
+ * The images of all the views are allocated when the batch starts. Like the
+ * tiles of {@link FaceTilePublisher}, the views are not limited by the conversion
+ * permits of the engine. The panorama must not change until the batch is done.
+ * Lanczos2 views reducing the panorama more than 4 times, like thumbnails, are
+ * projected at a multiple of their size and averaged down to it, one band at a time.
+ * Created by {@link ConversionEngine#renderViews(EquiSource, List)}, or from the
+ * frame of a dual-fisheye camera by {@link ConversionEngine#renderViews(DualFisheyeSource, List)}.
+ */
+public class ViewBatch {
+
+    /** A completed view */
+    public static final class Result {
+        private final int index;
+        private final ViewSpec spec;
+        private final BufferedImage image;
+        private final Throwable failure;
+
+        Result(int index, ViewSpec spec, BufferedImage image, Throwable failure) {
+            this.index = index;
+            this.spec = spec;
+            this.image = image;
+            this.failure = failure;
+        }
+
+        /**
+         * Returns the position of the view in the list given to the batch
+         */
+        public int getIndex() {
+            return index;
+        }
+
+        public ViewSpec getSpec() {
+            return spec;
+        }
+
+        public BufferedImage getImage() {
+            return image;
+        }
+    }
+
+    private final Result[] results;
+    private final BlockingQueue<Result> completed = new LinkedBlockingQueue<>();
+    private final CountDownLatch done;
+    private volatile boolean cancelled;
+    private int taken;
+
+    // projection of a view into pixels of the given size
+    private interface Preparation {
+        Equi2Rect.PreparedView prepare(ViewSpec spec, int[] pixels, int width, int height);
+    }
+
+    ViewBatch(Executor executor, EquiSource source, List<ViewSpec> views, double maxError) {
+        this(executor, views, (spec, pixels, width, height) -> Equi2Rect.prepareView(spec.getProjection(),
+                spec.getYaw(), spec.getPitch(), spec.getRoll(), spec.getFov(), source, pixels, width, height,
+                spec.getInterpolation() == ViewSpec.Interpolation.BILINEAR,
+                spec.getInterpolation() == ViewSpec.Interpolation.LANCZOS2, maxError),
+                spec -> spec.getInterpolation() != ViewSpec.Interpolation.LANCZOS2 ? 1 :
+                        Equi2Rect.lanczos2_supersampling(Equi2Rect.view_center_scale(spec.getProjection(),
+                                spec.getFov(), source.getWidth(), spec.getWidth())));
+    }
+
+    ViewBatch(Executor executor, DualFisheyeSource source, List<ViewSpec> views, double maxError) {
+        this(executor, views, (spec, pixels, width, height) -> Equi2Rect.prepareView(spec.getProjection(),
+                spec.getYaw(), spec.getPitch(), spec.getRoll(), spec.getFov(), source, pixels, width, height,
+                spec.getInterpolation() == ViewSpec.Interpolation.NEAREST, maxError), spec -> 1);
+    }
+
+    private ViewBatch(Executor executor, List<ViewSpec> views, Preparation preparation,
+                      ToIntFunction<ViewSpec> supersampling) {
+        results = new Result[views.size()];
+        done = new CountDownLatch(views.size());
+        int bandRows = Equi2Rect.QT_CELL_SIZE;
+        for (int i = 0; i < views.size(); i++) {
+            ViewSpec spec = views.get(i);
+            BufferedImage image = new BufferedImage(spec.getWidth(), spec.getHeight(), BufferedImage.TYPE_INT_RGB);
+            int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+            int factor = supersampling.applyAsInt(spec);
+            int width = spec.getWidth() * factor;
+            // the supersampled views are drawn band by band, into the pixels of the band only
+            Equi2Rect.PreparedView view = preparation.prepare(spec, factor == 1 ? pixels : null, width,
+                    spec.getHeight() * factor);
+            ViewProgress progress = new ViewProgress(i, spec, image, (spec.getHeight() + bandRows - 1) / bandRows);
+            for (int firstRow = 0; firstRow < spec.getHeight(); firstRow += bandRows) {
+                int band = firstRow;
+                executor.execute(() -> {
+                    if (cancelled) {
+                        progress.bandDone(new CancellationException("View batch cancelled"));
+                        return;
+                    }
+                    try {
+                        int rows = Math.min(band + bandRows, spec.getHeight()) - band;
+                        if (factor == 1) {
+                            view.draw(band, band + rows);
+                        } else {
+                            int[] supersampled = new int[width * rows * factor];
+                            view.draw(band * factor, (band + rows) * factor, supersampled);
+                            Equi2Rect.box_reduce(supersampled, 0, width, rows * factor, factor,
+                                    pixels, band * spec.getWidth());
+                        }
+                        progress.bandDone(null);
+                    } catch (RuntimeException | Error e) {
+                        // reported by take() and awaitAll()
+                        progress.bandDone(e);
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Returns the number of views of the batch
+     */
+    public int size() {
+        return results.length;
+    }
+
+    /**
+     * Waits for the next completed view, in the order they complete, and returns
+     * it, or null once all the views have been taken
+     * @throws ExecutionException if the projection of the view failed
+     */
+    public Result take() throws InterruptedException, ExecutionException {
+        synchronized (completed) {
+            if (taken == results.length) {
+                return null;
+            }
+            Result result = completed.take();
+            taken++;
+            if (result.failure != null) {
+                throw new ExecutionException("Cannot render view " + result.index + " (" + result.spec + ")",
+                        result.failure);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Waits for all the views and returns their images in the order given,
+     * whether or not they were taken
+     * @throws ExecutionException if the projection of a view failed
+     */
+    public BufferedImage[] awaitAll() throws InterruptedException, ExecutionException {
+        done.await();
+        BufferedImage[] images = new BufferedImage[results.length];
+        for (Result result : results) {
+            if (result.failure != null) {
+                throw new ExecutionException("Cannot render view " + result.index + " (" + result.spec + ")",
+                        result.failure);
+            }
+            images[result.index] = result.image;
+        }
+        return images;
+    }
+
+    /**
+     * Cancels the views not rendered yet, which then fail with a CancellationException
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    // counts the bands of a view, completed once all of them are drawn
+    private final class ViewProgress {
+        final int index;
+        final ViewSpec spec;
+        final BufferedImage image;
+        final AtomicInteger remaining;
+        volatile Throwable failure;
+
+        ViewProgress(int index, ViewSpec spec, BufferedImage image, int bands) {
+            this.index = index;
+            this.spec = spec;
+            this.image = image;
+            this.remaining = new AtomicInteger(bands);
+        }
+
+        void bandDone(Throwable e) {
+            if (e != null) {
+                failure = e;
+            }
+            if (remaining.decrementAndGet() == 0) {
+                Result result = new Result(index, spec, failure == null ? image : null, failure);
+                results[index] = result;
+                completed.add(result);
+                done.countDown();
+            }
+        }
+    }
+}
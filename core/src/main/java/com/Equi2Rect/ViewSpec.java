@@ -0,0 +1,116 @@
+/*
+Copyright 2020 Alessandro Bruno
+
+This file is part of EquirectangulartoCubic.java.
+EquirectangulartoCubic is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+EquirectangulartoCubic is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+You should have received a copy of the GNU General Public License along with EquirectangulartoCubic. If not, see http://www.gnu.org/licenses/.
+*/
+
+package com.Equi2Rect;
+
+/**
+ * A view rendered by a {@link ViewBatch}: direction, field of view, size,
+ * interpolation and projection, rectilinear unless given. Angles are in degrees, the pitch positive towards the
+ * zenith as in {@link RectilinearView}.
+ */
+public final class ViewSpec {
+
+    /** Interpolation of the pixels of the panorama */
+    public enum Interpolation {
+        NEAREST,
+        BILINEAR,
+        LANCZOS2
+    }
+
+    private final double yaw;
+    private final double pitch;
+    private final double roll;
+    private final double fov;
+    private final int width;
+    private final int height;
+    private final Interpolation interpolation;
+    private final Projection projection;
+
+    /**
+     * @param yaw Yaw of the center of the view
+     * @param pitch Pitch of the center of the view, positive towards the zenith
+     * @param roll Rotation of the view about its axis, clockwise: the horizon turns counterclockwise
+     * @param fov Horizontal field of view, less than 180
+     * @param width Width of the view in pixels
+     * @param height Height of the view in pixels
+     * @param interpolation Interpolation of the pixels of the panorama
+     */
+    public ViewSpec(double yaw, double pitch, double roll, double fov, int width, int height,
+                    Interpolation interpolation) {
+        this(yaw, pitch, roll, fov, width, height, interpolation, Projection.RECTILINEAR);
+    }
+
+    /**
+     * @param fov Horizontal field of view, up to {@link Projection#getMaxFov()}
+     * @param projection Projection of the view
+     */
+    public ViewSpec(double yaw, double pitch, double roll, double fov, int width, int height,
+                    Interpolation interpolation, Projection projection) {
+        if (!projection.isValidFov(fov)) {
+            throw new IllegalArgumentException("The field of view of a " + projection + " view must be between 0 and "
+                    + projection.getMaxFov() + " degrees: " + fov);
+        }
+        if (width <= 0 || height <= 0 || (long) width * height > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Invalid view size: " + width + " x " + height);
+        }
+        this.yaw = yaw;
+        this.pitch = pitch;
+        this.roll = roll;
+        this.fov = fov;
+        this.width = width;
+        this.height = height;
+        this.interpolation = interpolation;
+        this.projection = projection;
+    }
+
+    /**
+     * A view without roll, interpolated with Lanczos2
+     */
+    public ViewSpec(double yaw, double pitch, double fov, int width, int height) {
+        this(yaw, pitch, 0, fov, width, height, Interpolation.LANCZOS2);
+    }
+
+    public double getYaw() {
+        return yaw;
+    }
+
+    public double getPitch() {
+        return pitch;
+    }
+
+    public double getRoll() {
+        return roll;
+    }
+
+    public double getFov() {
+        return fov;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public Interpolation getInterpolation() {
+        return interpolation;
+    }
+
+    public Projection getProjection() {
+        return projection;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("yaw %.1f, pitch %.1f, roll %.1f, fov %.1f, %d x %d, %s, %s", yaw, pitch, roll, fov,
+                width, height, interpolation, projection);
+    }
+}
@@ -0,0 +1,299 @@
+/*
+Copyright 2020 Alessandro Bruno
+
+This file is part of EquirectangulartoCubic.java.
+EquirectangulartoCubic is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+EquirectangulartoCubic is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+You should have received a copy of the GNU General Public License along with EquirectangulartoCubic. If not, see http://www.gnu.org/licenses/.
+*/
+
+package com.Equi2Rect.bench;
+import com.Equi2Rect.ConversionEngine;
+import com.Equi2Rect.EquiSource;
+import com.Equi2Rect.EquirectangularToCubic;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * End-to-end throughput harness: generates synthetic equirectangular panoramas,
+ * writes them as JPEG files and runs the whole pipeline headless on each of them:
+ * <pre>
+ *   load     EquirectangularToCubic.loadImage
+ *   extract  EquiSource.fromImage (copy of the pixels for the projection)
+ *   project  ConversionEngine.convert (the six gnomonic projections)
+ *   encode   JPEG encoding of the six faces
+ * </pre>
+ * For every stage it records wall time, CPU time of the whole process, bytes
+ * allocated by all threads and peak resident memory (Linux only, -1 elsewhere),
+ * and writes them as CSV, one line per run and stage, to diff between builds.
+ * <p>
+ * Usage: ThroughputBenchmark [--sizes 2048,4096,8192] [--patterns gradient,checker,noise]
+ * [--runs 3] [--warmup 1] [--out throughput.csv] [--dir tmpdir]
+ * <p>
+ * Run with: mvn -Pbench verify (see the bench profile in pom.xml)
+ */
+public class ThroughputBenchmark {
+
+    static final String[] STAGES = {"load", "extract", "project", "encode"};
+
+    public static void main(String[] args) throws IOException {
+        System.setProperty("java.awt.headless", "true");
+        // only required statically by the module com.Equi2Rect
+        if (!ModuleLayer.boot().findModule("jdk.management").isPresent()) {
+            throw new IllegalStateException("The module jdk.management is missing: add it with --add-modules jdk.management");
+        }
+        Map<String, String> options = parseOptions(args);
+        int[] sizes = Arrays.stream(options.getOrDefault("sizes", "2048,4096,8192").split(","))
+                .mapToInt(size -> Integer.parseInt(size.trim())).toArray();
+        String[] patterns = options.getOrDefault("patterns", "gradient,checker,noise").split(",");
+        int runs = Integer.parseInt(options.getOrDefault("runs", "3"));
+        int warmup = Integer.parseInt(options.getOrDefault("warmup", "1"));
+        Path out = Paths.get(options.getOrDefault("out", "throughput.csv"));
+        Path dir = options.containsKey("dir") ? Paths.get(options.get("dir")) : Files.createTempDirectory("360bench");
+
+        if (out.toAbsolutePath().getParent() != null) {
+            Files.createDirectories(out.toAbsolutePath().getParent());
+        }
+        ConversionEngine engine = new ConversionEngine();
+        engine.setVerboseMode(false);
+        StageMeter meter = new StageMeter();
+
+        try (PrintWriter csv = new PrintWriter(Files.newBufferedWriter(out, StandardCharsets.UTF_8))) {
+            csv.println("# java=" + System.getProperty("java.version") + " cores=" +
+                    Runtime.getRuntime().availableProcessors() + " maxHeapMB=" + (Runtime.getRuntime().maxMemory() >> 20) +
+                    " storage=" + engine.getSourceStorage());
+            csv.println("width,height,pattern,run,stage,wall_ms,cpu_ms,alloc_bytes,peak_rss_kb,output_bytes");
+            for (int size : sizes) {
+                for (String pattern : patterns) {
+                    File file = dir.resolve(pattern.trim() + "_" + size + ".jpg").toFile();
+                    if (!file.exists()) {
+                        System.out.printf("Generating %s%n", file);
+                        ImageIO.write(generate(pattern.trim(), size, size / 2), "jpg", file);
+                    }
+                    List<Sample[]> results = new ArrayList<>();
+                    for (int run = -warmup; run < runs; run++) {
+                        Sample[] samples = runPipeline(file, engine, meter);
+                        if (run < 0) continue;
+                        results.add(samples);
+                        for (int s = 0; s < STAGES.length; s++) {
+                            csv.println(size + "," + size / 2 + "," + pattern.trim() + "," + run + "," + STAGES[s] + "," +
+                                    samples[s].toCsv());
+                        }
+                        csv.flush();
+                    }
+                    printSummary(size, pattern.trim(), results);
+                    if (!options.containsKey("dir")) {
+                        Files.delete(file.toPath());
+                    }
+                }
+            }
+        } finally {
+            engine.close();
+            if (!options.containsKey("dir")) {
+                Files.deleteIfExists(dir);
+            }
+        }
+        System.out.printf("Results written to %s%n", out.toAbsolutePath());
+    }
+
+    static Sample[] runPipeline(File file, ConversionEngine engine, StageMeter meter) throws IOException {
+        Sample[] samples = new Sample[STAGES.length];
+        meter.start();
+        BufferedImage image = EquirectangularToCubic.loadImage(file);
+        samples[0] = meter.stop(file.length());
+
+        meter.start();
+        EquiSource source = EquiSource.fromImage(image, engine.getSourceStorage());
+        samples[1] = meter.stop(source.getByteSize());
+        image = null;
+
+        meter.start();
+        BufferedImage[] faces = engine.convert(source);
+        samples[2] = meter.stop(6L * 4L * faces[0].getWidth() * faces[0].getHeight());
+        source = null;
+
+        meter.start();
+        CountingOutputStream encoded = new CountingOutputStream();
+        for (BufferedImage face : faces) {
+            ImageIO.write(face, "jpg", encoded);
+        }
+        samples[3] = meter.stop(encoded.count);
+        return samples;
+    }
+
+    /**
+     * Synthetic panorama: "gradient" (smooth), "checker" (sharp edges, aliasing)
+     * or "noise" (high frequencies, worst case for JPEG and interpolation)
+     */
+    static BufferedImage generate(String pattern, int width, int height) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+        byte[] bgr = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+        Random random = new Random(360);
+        int o = 0;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int rgb;
+                switch (pattern) {
+                    case "checker":
+                        rgb = ((x >> 5) + (y >> 5) & 1) == 0 ? 0xf0f0f0 : 0x202020;
+                        break;
+                    case "noise":
+                        rgb = random.nextInt(0x1000000);
+                        break;
+                    case "gradient":
+                        rgb = (int) (255L * x / width) << 16 | (int) (255L * y / height) << 8 | 128;
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown pattern: " + pattern);
+                }
+                bgr[o++] = (byte) rgb;
+                bgr[o++] = (byte) (rgb >> 8);
+                bgr[o++] = (byte) (rgb >> 16);
+            }
+        }
+        return image;
+    }
+
+    private static void printSummary(int size, String pattern, List<Sample[]> results) {
+        StringBuilder line = new StringBuilder(String.format("%6d x %-6d %-9s", size, size / 2, pattern));
+        double total = 0;
+        for (int s = 0; s < STAGES.length; s++) {
+            double[] walls = new double[results.size()];
+            for (int r = 0; r < results.size(); r++) {
+                walls[r] = results.get(r)[s].wallNanos / 1e6;
+            }
+            Arrays.sort(walls);
+            double median = walls.length == 0 ? 0 : walls[walls.length / 2];
+            total += median;
+            line.append(String.format(" %s %8.1f ms", STAGES[s], median));
+        }
+        System.out.println(line.append(String.format("  total %8.1f ms (median)", total)));
+    }
+
+    private static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new LinkedHashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--") || i + 1 >= args.length) {
+                throw new IllegalArgumentException("Usage: ThroughputBenchmark [--sizes 2048,4096] " +
+                        "[--patterns gradient,checker,noise] [--runs n] [--warmup n] [--out file.csv] [--dir dir]");
+            }
+            options.put(args[i].substring(2), args[++i]);
+        }
+        return options;
+    }
+
+    static final class Sample {
+        final long wallNanos;
+        final long cpuNanos;
+        final long allocatedBytes;
+        final long peakRssKB;
+        final long outputBytes;
+
+        Sample(long wallNanos, long cpuNanos, long allocatedBytes, long peakRssKB, long outputBytes) {
+            this.wallNanos = wallNanos;
+            this.cpuNanos = cpuNanos;
+            this.allocatedBytes = allocatedBytes;
+            this.peakRssKB = peakRssKB;
+            this.outputBytes = outputBytes;
+        }
+
+        String toCsv() {
+            return String.format("%.3f,%.3f,%d,%d,%d", wallNanos / 1e6, cpuNanos / 1e6, allocatedBytes, peakRssKB,
+                    outputBytes);
+        }
+    }
+
+    /**
+     * Measures one stage: wall and process CPU time, bytes allocated by all the
+     * threads and peak RSS, whose high-water mark is reset at the start of the stage
+     */
+    static final class StageMeter {
+        private final com.sun.management.OperatingSystemMXBean os =
+                (com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
+        private final com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        private final Map<Long, Long> allocatedAtStart = new LinkedHashMap<>();
+        private long wallStart;
+        private long cpuStart;
+
+        void start() {
+            resetPeakRss();
+            allocatedAtStart.clear();
+            long[] ids = threads.getAllThreadIds();
+            long[] allocated = threads.getThreadAllocatedBytes(ids);
+            for (int i = 0; i < ids.length; i++) {
+                allocatedAtStart.put(ids[i], allocated[i]);
+            }
+            cpuStart = os.getProcessCpuTime();
+            wallStart = System.nanoTime();
+        }
+
+        Sample stop(long outputBytes) {
+            long wall = System.nanoTime() - wallStart;
+            long cpu = os.getProcessCpuTime() - cpuStart;
+            long[] ids = threads.getAllThreadIds();
+            long[] allocated = threads.getThreadAllocatedBytes(ids);
+            long bytes = 0;
+            for (int i = 0; i < ids.length; i++) {
+                if (allocated[i] > 0) {
+                    // threads started during the stage count from zero
+                    bytes += allocated[i] - allocatedAtStart.getOrDefault(ids[i], 0L);
+                }
+            }
+            return new Sample(wall, cpu, bytes, peakRssKB(), outputBytes);
+        }
+
+        // writing 5 to clear_refs resets VmHWM (Linux 4.0+)
+        private static void resetPeakRss() {
+            try {
+                Files.write(Paths.get("/proc/self/clear_refs"), "5".getBytes(StandardCharsets.US_ASCII));
+            } catch (IOException | UnsupportedOperationException e) {
+                // peak since the start of the process
+            }
+        }
+
+        private static long peakRssKB() {
+            try {
+                for (String line : Files.readAllLines(Paths.get("/proc/self/status"))) {
+                    if (line.startsWith("VmHWM:")) {
+                        return Long.parseLong(line.replaceAll("\\D", ""));
+                    }
+                }
+            } catch (IOException | NumberFormatException e) {
+                // not Linux
+            }
+            return -1;
+        }
+    }
+
+    private static final class CountingOutputStream extends OutputStream {
+        long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,575 @@
+/*
+Copyright 2020 Alessandro Bruno
+
+This file is part of EquirectangulartoCubic.java.
+EquirectangulartoCubic is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+EquirectangulartoCubic is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+You should have received a copy of the GNU General Public License along with EquirectangulartoCubic. If not, see http://www.gnu.org/licenses/.
+*/
+
+package com.Equi2Rect.ingest;
+import com.Equi2Rect.ConversionEngine;
+import com.Equi2Rect.MemoryBudget;
+import com.sun.net.httpserver.HttpServer;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.image.BufferedImage;
+import java.io.Closeable;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Daemon converting the equirectangular panoramas dropped into watched
+ * directories to cube faces, e.g. by capture stations writing to a share:
+ * <ol>
+ *   <li>the directories are watched with a {@link WatchService}, and listed at
+ *   startup for the files dropped while the daemon was stopped;</li>
+ *   <li>a file is taken once its size and modification time have not changed
+ *   for settleMillis, i.e. its writer has finished;</li>
+ *   <li>the files are converted in the order they settled, by at most workers
+ *   conversions at a time whose estimated peak memory ({@link MemoryBudget},
+ *   larger for larger panoramas) fits the budget together: a file waits while
+ *   the others running use too much of it, the next ones wait behind it;</li>
+ *   <li>the faces of panorama.jpg are written as panorama_jpg/panorama_jpg_0.jpg to
+ *   panorama_jpg_5.jpg in a temporary directory of the output directory, renamed
+ *   once complete: readers see all the faces or none. When several directories
+ *   are watched, the name of the output starts with the name of the directory of
+ *   the file, e.g. north_panorama_jpg; a file whose output name is already used
+ *   by another file fails;</li>
+ *   <li>the file is then recorded in the {@link IngestJournal}, with the settings
+ *   degraded to fit the memory budget if any: after a restart, the files recorded
+ *   are not converted again unless they changed.</li>
+ * </ol>
+ * A conversion failing with an I/O error or an OutOfMemoryError, which may not
+ * happen again, is queued again after 5 s, then 10 s and 20 s; the file is
+ * recorded as failed after the fourth attempt, or after any other error.
+ * Throughput and backlog are printed after each file and served by /metrics if
+ * a metrics port is given, see {@link IngestMetrics}.
+ * <p>
+ * Usage: IngestDaemon --watch dir[,dir...] --out dir [--memory-mb heap/2] [--workers 2]
+ * [--settle-ms 2000] [--quality 0.9] [--journal out/.ingest-journal] [--metrics-port port] [--bind localhost]
+ */
+public class IngestDaemon implements Closeable {
+
+    static final String USAGE = "Usage: IngestDaemon --watch dir[,dir...] --out dir [--memory-mb heap/2] " +
+            "[--workers 2] [--settle-ms 2000] [--quality 0.9] [--journal out/.ingest-journal] " +
+            "[--metrics-port port] [--bind localhost]";
+
+    private static final long POLL_MILLIS = 250;
+    private static final String TEMPORARY_PREFIX = ".tmp-";
+    private static final String REPLACED_PREFIX = ".old-";
+    private static final String[] EXTENSIONS = {".jpg", ".jpeg", ".png", ".tif", ".tiff", ".bmp"};
+    private static final int MAX_ATTEMPTS = 4;
+    // doubled after each attempt
+    private static final long RETRY_MILLIS = 5000;
+
+    // a file being written, taken once unchanged for settleMillis
+    private static final class Candidate {
+        long size;
+        long modified;
+        long stableSince;
+    }
+
+    private static final class Job {
+        final Path file;
+        final long size;
+        final long modified;
+        final long queuedAt = System.nanoTime();
+        MemoryBudget plan;
+        long cost;
+        int attempts;
+
+        Job(Path file, long size, long modified) {
+            this.file = file;
+            this.size = size;
+            this.modified = modified;
+        }
+    }
+
+    private final List<Path> directories;
+    private final Path output;
+    private final long budgetBytes;
+    private final int workers;
+    private final long settleNanos;
+    private final float quality;
+    private final IngestJournal journal;
+    private final IngestMetrics metrics;
+    private final ConversionEngine engine;
+    private final WatchService watchService;
+    private final Map<WatchKey, Path> watchKeys = new HashMap<>();
+    // only used by the watcher thread, and by start() before it
+    private final Map<Path, Candidate> settling = new LinkedHashMap<>();
+    // queued, being converted or waiting to be retried
+    private final Set<Path> pending = ConcurrentHashMap.newKeySet();
+    // the file whose faces each output holds
+    private final Map<String, Path> outputs = new ConcurrentHashMap<>();
+    private final BlockingQueue<Job> queue = new LinkedBlockingQueue<>();
+    private final ExecutorService converters;
+    private final ScheduledExecutorService retries;
+    private final Object admission = new Object();
+    // guarded by admission
+    private int running;
+    private long admittedBytes;
+    private final Thread watcher;
+    private final Thread dispatcher;
+    private HttpServer metricsServer;
+
+    /**
+     * @param directories The directories watched, not their subdirectories
+     * @param output The directory of the faces, with a subdirectory per panorama
+     * @param journal The journal of the files converted
+     * @param budgetBytes Memory the conversions running at the same time may use
+     * @param workers Maximum number of conversions running at the same time
+     * @param settleMillis Time without change after which a file is considered written
+     * @param quality JPEG quality of the faces, from 0 to 1
+     */
+    public IngestDaemon(List<Path> directories, Path output, Path journal, long budgetBytes, int workers,
+                        long settleMillis, float quality) throws IOException {
+        if (workers < 1 || budgetBytes <= 0) {
+            throw new IllegalArgumentException("workers and budget must be positive");
+        }
+        this.directories = new ArrayList<>(directories);
+        this.output = output;
+        this.budgetBytes = budgetBytes;
+        this.workers = workers;
+        this.settleNanos = TimeUnit.MILLISECONDS.toNanos(settleMillis);
+        this.quality = quality;
+        Files.createDirectories(output);
+        removeIncompleteOutputs();
+        this.journal = new IngestJournal(journal);
+        for (Path file : this.journal.published()) {
+            outputs.putIfAbsent(outputName(file), file);
+        }
+        this.metrics = new IngestMetrics(budgetBytes);
+        this.engine = new ConversionEngine(ConversionEngine.ExecutorKind.AUTO, workers);
+        engine.setVerboseMode(false);
+        this.watchService = output.getFileSystem().newWatchService();
+        for (Path directory : this.directories) {
+            watchKeys.put(directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY), directory);
+        }
+        this.converters = Executors.newFixedThreadPool(workers, runnable -> {
+            Thread thread = new Thread(runnable, "ingest converter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.retries = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "ingest retries");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.watcher = new Thread(this::watch, "ingest watcher");
+        this.dispatcher = new Thread(this::dispatch, "ingest dispatcher");
+    }
+
+    public static void main(String[] args) throws IOException {
+        System.setProperty("java.awt.headless", "true");
+        Map<String, String> options = parseOptions(args);
+        if (!options.containsKey("watch") || !options.containsKey("out")) {
+            throw new IllegalArgumentException(USAGE);
+        }
+        List<Path> directories = new ArrayList<>();
+        for (String directory : options.get("watch").split(",")) {
+            Path path = Paths.get(directory).toAbsolutePath().normalize();
+            if (!Files.isDirectory(path)) {
+                throw new IOException("Not a directory: " + path);
+            }
+            directories.add(path);
+        }
+        Path output = Paths.get(options.get("out")).toAbsolutePath().normalize();
+        Path journal = options.containsKey("journal") ? Paths.get(options.get("journal")) :
+                output.resolve(".ingest-journal");
+        IngestDaemon daemon = new IngestDaemon(directories, output, journal,
+                Long.parseLong(options.getOrDefault("memory-mb",
+                        String.valueOf(Runtime.getRuntime().maxMemory() >> 21))) << 20,
+                Integer.parseInt(options.getOrDefault("workers", "2")),
+                Long.parseLong(options.getOrDefault("settle-ms", "2000")),
+                Float.parseFloat(options.getOrDefault("quality", "0.9")));
+        if (options.containsKey("metrics-port")) {
+            daemon.serveMetrics(new InetSocketAddress(options.getOrDefault("bind", "localhost"),
+                    Integer.parseInt(options.get("metrics-port"))));
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                daemon.close();
+            } catch (IOException e) {
+                System.out.println(e);
+            }
+        }));
+        daemon.start();
+        System.out.println("Watching " + directories + ", faces in " + output);
+    }
+
+    /**
+     * Lists the watched directories and starts watching them
+     */
+    public void start() {
+        for (Path directory : directories) {
+            scan(directory);
+        }
+        watcher.start();
+        dispatcher.start();
+    }
+
+    /**
+     * Serves the metrics as "name value" lines on http://address/metrics
+     * @throws IllegalStateException if the module jdk.httpserver is missing
+     */
+    public synchronized void serveMetrics(InetSocketAddress address) throws IOException {
+        if (!ModuleLayer.boot().findModule("jdk.httpserver").isPresent()) {
+            throw new IllegalStateException("The module jdk.httpserver is missing: add it with --add-modules jdk.httpserver");
+        }
+        metricsServer = HttpServer.create(address, 0);
+        metricsServer.createContext("/metrics", exchange -> {
+            byte[] body = metrics.format().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        metricsServer.start();
+    }
+
+    public IngestMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Stops watching, lets the conversions running finish and closes the journal.
+     * The files queued or waiting to be retried are converted after the next start.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (metricsServer != null) {
+            metricsServer.stop(0);
+        }
+        watchService.close();
+        dispatcher.interrupt();
+        retries.shutdownNow();
+        converters.shutdown();
+        try {
+            watcher.join();
+            dispatcher.join();
+            converters.awaitTermination(1, TimeUnit.HOURS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        engine.close();
+        journal.close();
+    }
+
+    private void watch() {
+        try {
+            while (true) {
+                WatchKey key = watchService.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                if (key != null) {
+                    Path directory = watchKeys.get(key);
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                            scan(directory);
+                        } else {
+                            consider(directory.resolve((Path) event.context()));
+                        }
+                    }
+                    key.reset();
+                }
+                settle();
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // closed
+        }
+    }
+
+    private void scan(Path directory) {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                consider(file);
+            }
+        } catch (IOException e) {
+            System.out.println("Cannot list " + directory + ": " + e);
+        }
+    }
+
+    private void consider(Path file) {
+        String name = file.getFileName().toString();
+        String lowerCase = name.toLowerCase(Locale.ROOT);
+        if (name.startsWith(".") || Stream.of(EXTENSIONS).noneMatch(lowerCase::endsWith)
+                || settling.containsKey(file)) {
+            return;
+        }
+        settling.put(file, new Candidate());
+        metrics.settling.set(settling.size());
+    }
+
+    // queues the files that did not change for settleNanos
+    private void settle() {
+        long now = System.nanoTime();
+        for (Iterator<Map.Entry<Path, Candidate>> it = settling.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<Path, Candidate> entry = it.next();
+            Path file = entry.getKey();
+            Candidate candidate = entry.getValue();
+            BasicFileAttributes attributes;
+            try {
+                attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            } catch (IOException e) {
+                // deleted or renamed
+                it.remove();
+                continue;
+            }
+            long size = attributes.size();
+            long modified = attributes.lastModifiedTime().toMillis();
+            if (!attributes.isRegularFile()) {
+                it.remove();
+            } else if (size != candidate.size || modified != candidate.modified || candidate.stableSince == 0) {
+                candidate.size = size;
+                candidate.modified = modified;
+                candidate.stableSince = now;
+            } else if (now - candidate.stableSince >= settleNanos && size > 0 && !pending.contains(file)) {
+                it.remove();
+                metrics.detected();
+                if (journal.isRecorded(file, size, modified)) {
+                    metrics.skipped();
+                } else {
+                    pending.add(file);
+                    metrics.queued.incrementAndGet();
+                    queue.add(new Job(file, size, modified));
+                }
+            }
+        }
+        metrics.settling.set(settling.size());
+    }
+
+    // admits the queued files in order as the memory budget and the workers allow
+    private void dispatch() {
+        try {
+            while (true) {
+                Job job = queue.take();
+                try {
+                    job.plan = MemoryBudget.plan(job.file.toFile(), budgetBytes, 0);
+                    job.cost = Math.min(job.plan.getEstimatedPeakBytes(), budgetBytes);
+                } catch (IOException e) {
+                    metrics.queued.decrementAndGet();
+                    retryOrFail(job, e);
+                    continue;
+                }
+                synchronized (admission) {
+                    while (running >= workers || admittedBytes + job.cost > budgetBytes) {
+                        admission.wait();
+                    }
+                    running++;
+                    admittedBytes += job.cost;
+                    metrics.admittedBytes.set(admittedBytes);
+                }
+                metrics.queued.decrementAndGet();
+                metrics.running.incrementAndGet();
+                converters.execute(() -> convert(job));
+            }
+        } catch (InterruptedException e) {
+            // closed, the files queued are found again by the next start
+        }
+    }
+
+    private void convert(Job job) {
+        long start = System.nanoTime();
+        boolean done = true;
+        try {
+            String name = outputName(job.file);
+            Path owner = outputs.putIfAbsent(name, job.file);
+            if (owner != null && !owner.equals(job.file)) {
+                fail(job, "output " + name + " already holds the faces of " + owner);
+                return;
+            }
+            BufferedImage[] faces = engine.convert(job.file.toFile(), job.plan);
+            try {
+                publish(name, faces);
+            } finally {
+                for (BufferedImage face : faces) {
+                    engine.getBufferPool().release(face);
+                }
+            }
+            String degradations = job.plan.isDegraded() ? String.join(", ", job.plan.getDegradations()) : null;
+            journal.record(IngestJournal.State.DONE, job.file, job.size, job.modified, degradations);
+            long nanos = System.nanoTime() - start;
+            metrics.converted(job.size, (long) job.plan.getEquiWidth() * job.plan.getEquiHeight(),
+                    start - job.queuedAt, nanos, degradations != null);
+            System.out.printf("Converted %s in %d ms%s, backlog %d%n", job.file, nanos / 1000000L,
+                    degradations != null ? " (" + degradations + ")" : "", metrics.getBacklog() - 1);
+        } catch (InterruptedIOException e) {
+            // stopped, converted again after the next start
+        } catch (IOException | RuntimeException | OutOfMemoryError e) {
+            done = retryOrFail(job, e);
+        } finally {
+            if (done) {
+                pending.remove(job.file);
+            }
+            metrics.running.decrementAndGet();
+            synchronized (admission) {
+                running--;
+                admittedBytes -= job.cost;
+                metrics.admittedBytes.set(admittedBytes);
+                admission.notifyAll();
+            }
+        }
+    }
+
+    // queues the job again later if the error may not happen again, e.g. with fewer conversions
+    // running or once the share is back; returns false if it will be retried
+    private boolean retryOrFail(Job job, Throwable error) {
+        job.attempts++;
+        if (!(error instanceof IOException || error instanceof OutOfMemoryError) || job.attempts >= MAX_ATTEMPTS) {
+            pending.remove(job.file);
+            fail(job, job.attempts > 1 ? error + " (attempt " + job.attempts + ")" : error.toString());
+            return true;
+        }
+        long delay = RETRY_MILLIS << (job.attempts - 1);
+        System.out.println("Cannot convert " + job.file + ": " + error + ", retrying in " + delay / 1000 + " s");
+        metrics.retrying.incrementAndGet();
+        try {
+            retries.schedule(() -> {
+                metrics.retrying.decrementAndGet();
+                if (!Files.exists(job.file)) {
+                    pending.remove(job.file);
+                    return;
+                }
+                metrics.queued.incrementAndGet();
+                queue.add(job);
+            }, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // closed, converted again after the next start
+            metrics.retrying.decrementAndGet();
+        }
+        return false;
+    }
+
+    private void fail(Job job, String error) {
+        metrics.failed();
+        System.out.println("Cannot convert " + job.file + ": " + error);
+        outputs.remove(outputName(job.file), job.file);
+        try {
+            journal.record(IngestJournal.State.FAILED, job.file, job.size, job.modified, error);
+        } catch (IOException e) {
+            System.out.println("Cannot write the journal: " + e);
+        }
+    }
+
+    // the faces of name.ext go to name_ext, after the name of the watched directory if there
+    // are several: the files of another format or directory get their own output
+    private String outputName(Path file) {
+        String name = file.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        name = name.substring(0, dot) + "_" + name.substring(dot + 1).toLowerCase(Locale.ROOT);
+        return directories.size() > 1 ? file.getParent().getFileName() + "_" + name : name;
+    }
+
+    // writes the faces to a temporary directory renamed once complete
+    private void publish(String name, BufferedImage[] faces) throws IOException {
+        // not createTempDirectory, whose permissions would hide the faces from the other users of the share
+        Path temporary = Files.createDirectory(output.resolve(TEMPORARY_PREFIX + name + "-" + System.nanoTime()));
+        try {
+            for (int i = 0; i < faces.length; i++) {
+                writeJpeg(faces[i], temporary.resolve(name + "_" + i + ".jpg"));
+            }
+            Path target = output.resolve(name);
+            Path replaced = null;
+            if (Files.exists(target)) {
+                // a directory cannot replace another one atomically: the old faces are moved aside first
+                replaced = output.resolve(REPLACED_PREFIX + name + "-" + System.nanoTime());
+                Files.move(target, replaced, StandardCopyOption.ATOMIC_MOVE);
+            }
+            Files.move(temporary, target, StandardCopyOption.ATOMIC_MOVE);
+            if (replaced != null) {
+                delete(replaced);
+            }
+        } finally {
+            if (Files.exists(temporary)) {
+                delete(temporary);
+            }
+        }
+    }
+
+    private void writeJpeg(BufferedImage face, Path path) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpg").next();
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        param.setCompressionQuality(quality);
+        try (FileOutputStream file = new FileOutputStream(path.toFile())) {
+            try (ImageOutputStream out = ImageIO.createImageOutputStream(file)) {
+                writer.setOutput(out);
+                writer.write(null, new IIOImage(face, null, null), param);
+            }
+            // on the disk before the rename is journaled
+            file.getFD().sync();
+        } finally {
+            writer.dispose();
+        }
+    }
+
+    // outputs left by a crash while publishing; their files are not journaled yet and are converted again
+    private void removeIncompleteOutputs() throws IOException {
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(output)) {
+            for (Path entry : entries) {
+                String name = entry.getFileName().toString();
+                if (Files.isDirectory(entry) && (name.startsWith(TEMPORARY_PREFIX) || name.startsWith(REPLACED_PREFIX))) {
+                    delete(entry);
+                }
+            }
+        }
+    }
+
+    private static void delete(Path directory) throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new LinkedHashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--") || i + 1 >= args.length) {
+                throw new IllegalArgumentException(USAGE);
+            }
+            options.put(args[i].substring(2), args[++i]);
+        }
+        return options;
+    }
+}
@@ -0,0 +1,174 @@
+/*
+Copyright 2020 Alessandro Bruno
+
+This file is part of EquirectangulartoCubic.java.
+EquirectangulartoCubic is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+EquirectangulartoCubic is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+You should have received a copy of the GNU General Public License along with EquirectangulartoCubic. If not, see http://www.gnu.org/licenses/.
+*/
+
+package com.Equi2Rect.ingest;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Append-only journal of the files processed by the {@link IngestDaemon}, one
+ * line per file: state, size, modification time, path and detail, the error of
+ * a failed file or how the faces of a converted one were downscaled. Each line is forced
+ * to the disk before the next file is taken, so after a crash the journal
+ * holds every file whose faces were published, and at most a torn last line,
+ * which is ignored. A file is processed again only if its size or modification
+ * time changed.
+ * <p>
+ * The journal is compacted when opened: only the last line of each file is
+ * kept, written to a temporary file that replaces the journal atomically.
+ */
+class IngestJournal implements Closeable {
+
+    enum State {
+        /** faces published, the detail lists the settings degraded to fit the memory budget */
+        DONE,
+        /** not an equirectangular image, or the conversion failed, also after its retries */
+        FAILED
+    }
+
+    private static final class Entry {
+        final State state;
+        final long size;
+        final long modified;
+        final String detail;
+
+        Entry(State state, long size, long modified, String detail) {
+            this.state = state;
+            this.size = size;
+            this.modified = modified;
+            this.detail = detail;
+        }
+    }
+
+    private final Path path;
+    private final Map<String, Entry> entries = new HashMap<>();
+    private final FileChannel channel;
+
+    IngestJournal(Path path) throws IOException {
+        this.path = path;
+        if (Files.exists(path)) {
+            load();
+        }
+        compact();
+        channel = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    /**
+     * Returns true if the file was already processed with this size and modification time
+     */
+    synchronized boolean isRecorded(Path file, long size, long modified) {
+        Entry entry = entries.get(file.toString());
+        return entry != null && entry.size == size && entry.modified == modified;
+    }
+
+    /**
+     * Appends the outcome of a file and forces it to the disk
+     */
+    synchronized void record(State state, Path file, long size, long modified, String detail) throws IOException {
+        Entry entry = new Entry(state, size, modified, detail == null ? "" : detail);
+        ByteBuffer line = ByteBuffer.wrap(format(file.toString(), entry).getBytes(StandardCharsets.UTF_8));
+        while (line.hasRemaining()) {
+            channel.write(line);
+        }
+        channel.force(false);
+        entries.put(file.toString(), entry);
+    }
+
+    /**
+     * Returns the files whose faces were published
+     */
+    synchronized List<Path> published() {
+        List<Path> files = new ArrayList<>();
+        for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+            if (entry.getValue().state == State.DONE) {
+                files.add(Paths.get(entry.getKey()));
+            }
+        }
+        return files;
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        channel.close();
+    }
+
+    private void load() throws IOException {
+        String text = new String(Files.readAllBytes(path), StandardCharsets.UTF_8);
+        // a line without its newline was torn by a crash
+        int end = text.lastIndexOf('\n');
+        for (String line : text.substring(0, end + 1).split("\n")) {
+            String[] fields = line.split("\t", -1);
+            if (fields.length != 5) {
+                continue;
+            }
+            try {
+                entries.put(unescape(fields[3]), new Entry(State.valueOf(fields[0]), Long.parseLong(fields[1]),
+                        Long.parseLong(fields[2]), unescape(fields[4])));
+            } catch (IllegalArgumentException e) {
+                // corrupted line, the file will be processed again
+            }
+        }
+    }
+
+    private void compact() throws IOException {
+        StringBuilder text = new StringBuilder();
+        for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+            text.append(format(entry.getKey(), entry.getValue()));
+        }
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel out = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer bytes = ByteBuffer.wrap(text.toString().getBytes(StandardCharsets.UTF_8));
+            while (bytes.hasRemaining()) {
+                out.write(bytes);
+            }
+            out.force(true);
+        }
+        Files.move(temporary, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static String format(String file, Entry entry) {
+        return entry.state + "\t" + entry.size + "\t" + entry.modified + "\t" + escape(file) + "\t" +
+                escape(entry.detail) + "\n";
+    }
+
+    private static String escape(String text) {
+        return text.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n").replace("\r", "\\r");
+    }
+
+    private static String unescape(String text) {
+        StringBuilder out = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '\\' && i + 1 < text.length()) {
+                char next = text.charAt(++i);
+                out.append(next == 't' ? '\t' : next == 'n' ? '\n' : next == 'r' ? '\r' : next);
+            } else {
+                out.append(c);
+            }
+        }
+        return out.toString();
+    }
+}
@@ -0,0 +1,151 @@
+/*
+Copyright 2020 Alessandro Bruno
+
+This file is part of EquirectangulartoCubic.java.
+EquirectangulartoCubic is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+EquirectangulartoCubic is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+You should have received a copy of the GNU General Public License along with EquirectangulartoCubic. If not, see http://www.gnu.org/licenses/.
+*/
+
+package com.Equi2Rect.ingest;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Throughput and backlog of the {@link IngestDaemon}, as plain text "name value"
+ * lines like the metrics of the tile server. Durations are given as
+ * percentiles over the last WINDOW files.
+ */
+public class IngestMetrics {
+
+    static final int WINDOW = 1024;
+
+    private final long startNanos = System.nanoTime();
+    private final LongAdder detected = new LongAdder();
+    private final LongAdder converted = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder skipped = new LongAdder();
+    private final LongAdder downscaled = new LongAdder();
+    private final LongAdder bytesRead = new LongAdder();
+    private final LongAdder pixels = new LongAdder();
+    final AtomicInteger settling = new AtomicInteger();
+    final AtomicInteger queued = new AtomicInteger();
+    final AtomicInteger running = new AtomicInteger();
+    final AtomicInteger retrying = new AtomicInteger();
+    final AtomicLong admittedBytes = new AtomicLong();
+    private final long budgetBytes;
+    private final Window convertNanos = new Window();
+    private final Window waitNanos = new Window();
+
+    IngestMetrics(long budgetBytes) {
+        this.budgetBytes = budgetBytes;
+    }
+
+    void detected() {
+        detected.increment();
+    }
+
+    void skipped() {
+        skipped.increment();
+    }
+
+    void converted(long fileBytes, long pixelCount, long waitedNanos, long nanos, boolean degraded) {
+        converted.increment();
+        if (degraded) {
+            downscaled.increment();
+        }
+        bytesRead.add(fileBytes);
+        pixels.add(pixelCount);
+        waitNanos.add(waitedNanos);
+        convertNanos.add(nanos);
+    }
+
+    void failed() {
+        failed.increment();
+    }
+
+    public long getConverted() {
+        return converted.sum();
+    }
+
+    public long getFailed() {
+        return failed.sum();
+    }
+
+    public long getSkipped() {
+        return skipped.sum();
+    }
+
+    /**
+     * Returns the files converted to smaller faces than the full conversion to fit the memory budget
+     */
+    public long getDownscaled() {
+        return downscaled.sum();
+    }
+
+    /**
+     * Returns the files waiting for their writer, for admission, for a retry or being converted
+     */
+    public int getBacklog() {
+        return settling.get() + queued.get() + running.get() + retrying.get();
+    }
+
+    /**
+     * Returns the metrics as "name value" lines
+     */
+    public String format() {
+        StringBuilder out = new StringBuilder();
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        line(out, "uptime_seconds", String.format("%.1f", seconds));
+        line(out, "files_detected_total", detected.sum());
+        line(out, "files_converted_total", converted.sum());
+        line(out, "files_failed_total", failed.sum());
+        line(out, "files_skipped_total", skipped.sum());
+        line(out, "files_downscaled_total", downscaled.sum());
+        line(out, "files_per_minute", String.format("%.2f", converted.sum() * 60 / seconds));
+        line(out, "megapixels_per_second", String.format("%.2f", pixels.sum() / 1e6 / seconds));
+        line(out, "bytes_read_total", bytesRead.sum());
+        line(out, "backlog", getBacklog());
+        line(out, "backlog_settling", settling.get());
+        line(out, "backlog_queued", queued.get());
+        line(out, "backlog_retrying", retrying.get());
+        line(out, "running", running.get());
+        line(out, "memory_budget_bytes", budgetBytes);
+        line(out, "memory_admitted_bytes", admittedBytes.get());
+        convertNanos.format(out, "convert_ms");
+        waitNanos.format(out, "queue_wait_ms");
+        return out.toString();
+    }
+
+    private static void line(StringBuilder out, String name, Object value) {
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    // ring of the last WINDOW durations
+    private static final class Window {
+        private final long[] nanos = new long[WINDOW];
+        private long count;
+
+        synchronized void add(long value) {
+            nanos[(int) (count++ % WINDOW)] = value;
+        }
+
+        void format(StringBuilder out, String name) {
+            long[] sorted;
+            synchronized (this) {
+                sorted = Arrays.copyOf(nanos, (int) Math.min(count, WINDOW));
+            }
+            if (sorted.length == 0) {
+                return;
+            }
+            Arrays.sort(sorted);
+            for (int p : new int[] {50, 90, 99}) {
+                long value = sorted[Math.min(sorted.length - 1, (int) ((long) sorted.length * p / 100))];
+                line(out, name + "_p" + p, String.format("%.1f", value / 1e6));
+            }
+            line(out, name + "_max", String.format("%.1f", sorted[sorted.length - 1] / 1e6));
+        }
+    }
+}
@@ -0,0 +1,140 @@
+/*
+Copyright 2020 Alessandro Bruno
+
+This file is part of EquirectangulartoCubic.java.
+EquirectangulartoCubic is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+EquirectangulartoCubic is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+You should have received a copy of the GNU General Public License along with EquirectangulartoCubic. If not, see http://www.gnu.org/licenses/.
+*/
+
+package com.Equi2Rect.server;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latencies of the tile server, served as plain text "name value"
+ * lines by /metrics. Latency percentiles are computed over the last
+ * WINDOW requests of each outcome.
+ */
+public class ServerMetrics {
+
+    /** Where a tile request was served from */
+    public enum Outcome {
+        /** tile found in the memory cache */
+        MEMORY,
+        /** tile read from the disk cache */
+        DISK,
+        /** band of tiles projected for this request */
+        COMPUTED,
+        /** waited for the projection started by another request */
+        COALESCED,
+        /** the client already has the tile, sent without reading or projecting it */
+        NOT_MODIFIED,
+        /** listing, metrics and other requests */
+        OTHER,
+        /** the request failed */
+        ERROR
+    }
+
+    static final int WINDOW = 4096;
+
+    private final long startNanos = System.nanoTime();
+    private final Map<Outcome, LongAdder> counts = new EnumMap<>(Outcome.class);
+    private final Map<Outcome, Window> latencies = new EnumMap<>(Outcome.class);
+    private final Window allLatencies = new Window();
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder decodedPanoramas = new LongAdder();
+    private final LongAdder computedTiles = new LongAdder();
+    private final LongAdder computeNanos = new LongAdder();
+
+    public ServerMetrics() {
+        for (Outcome outcome : Outcome.values()) {
+            counts.put(outcome, new LongAdder());
+            latencies.put(outcome, new Window());
+        }
+    }
+
+    /**
+     * Records a request served in nanos nanoseconds with bytes bytes of content
+     */
+    public void request(Outcome outcome, long nanos, long bytes) {
+        counts.get(outcome).increment();
+        latencies.get(outcome).add(nanos);
+        allLatencies.add(nanos);
+        bytesSent.add(bytes);
+    }
+
+    void panoramaDecoded() {
+        decodedPanoramas.increment();
+    }
+
+    void bandComputed(int tiles, long nanos) {
+        computedTiles.add(tiles);
+        computeNanos.add(nanos);
+    }
+
+    public long getCount(Outcome outcome) {
+        return counts.get(outcome).sum();
+    }
+
+    /**
+     * Returns the metrics as "name value" lines
+     */
+    public String format() {
+        StringBuilder out = new StringBuilder();
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        long requests = 0;
+        for (Outcome outcome : Outcome.values()) {
+            requests += getCount(outcome);
+        }
+        line(out, "uptime_seconds", String.format("%.1f", seconds));
+        line(out, "requests_total", requests);
+        line(out, "requests_per_second", String.format("%.2f", requests / seconds));
+        line(out, "bytes_sent_total", bytesSent.sum());
+        line(out, "panoramas_decoded_total", decodedPanoramas.sum());
+        line(out, "tiles_computed_total", computedTiles.sum());
+        line(out, "compute_ms_total", computeNanos.sum() / 1000000L);
+        allLatencies.format(out, "latency_ms");
+        for (Outcome outcome : Outcome.values()) {
+            String name = outcome.name().toLowerCase();
+            line(out, "requests_" + name + "_total", getCount(outcome));
+            latencies.get(outcome).format(out, "latency_" + name + "_ms");
+        }
+        return out.toString();
+    }
+
+    private static void line(StringBuilder out, String name, Object value) {
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    // ring of the last WINDOW latencies
+    private static final class Window {
+        private final long[] nanos = new long[WINDOW];
+        private long count;
+
+        synchronized void add(long value) {
+            nanos[(int) (count++ % WINDOW)] = value;
+        }
+
+        void format(StringBuilder out, String name) {
+            long[] sorted;
+            synchronized (this) {
+                sorted = Arrays.copyOf(nanos, (int) Math.min(count, WINDOW));
+            }
+            if (sorted.length == 0) {
+                return;
+            }
+            Arrays.sort(sorted);
+            for (int p : new int[] {50, 90, 99}) {
+                line(out, name + "_p" + p, String.format("%.2f", percentile(sorted, p) / 1e6));
+            }
+            line(out, name + "_max", String.format("%.2f", sorted[sorted.length - 1] / 1e6));
+        }
+    }
+
+    static long percentile(long[] sorted, int p) {
+        return sorted[Math.min(sorted.length - 1, (int) ((long) sorted.length * p / 100))];
+    }
+}
@@ -0,0 +1,147 @@
+/*
+Copyright 2020 Alessandro Bruno
+
+This file is part of EquirectangulartoCubic.java.
+EquirectangulartoCubic is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+EquirectangulartoCubic is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+You should have received a copy of the GNU General Public License along with EquirectangulartoCubic. If not, see http://www.gnu.org/licenses/.
+*/
+
+package com.Equi2Rect.server;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * Disk cache of the encoded tiles of a {@link TileStore}, bounded in bytes: once
+ * it grows beyond maxBytes, the least recently used tiles are deleted down to
+ * 90% of it. The tiles found in the directory at startup are indexed from the
+ * oldest to the newest, and the tiles of panoramas since modified, whose keys
+ * are no longer requested, are deleted first.
+ * Files are written to a temporary file renamed once complete: readers never see a
+ * partial tile, even after a crash.
+ */
+class TileDiskCache {
+
+    private static final String TEMPORARY_PREFIX = ".tile";
+
+    private final Path directory;
+    private final long maxBytes;
+    // size of the tiles by path, least recently used first
+    private final LinkedHashMap<Path, Long> tiles = new LinkedHashMap<>(1024, 0.75f, true);
+    private long bytes;
+
+    TileDiskCache(Path directory, long maxBytes) throws IOException {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        Files.createDirectories(directory);
+        List<Path> found = new ArrayList<>();
+        Map<Path, BasicFileAttributes> attributes = new LinkedHashMap<>();
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : (Iterable<Path>) paths::iterator) {
+                BasicFileAttributes file = Files.readAttributes(path, BasicFileAttributes.class);
+                if (!file.isRegularFile()) {
+                    continue;
+                }
+                if (path.getFileName().toString().startsWith(TEMPORARY_PREFIX)) {
+                    // left by a crash while writing
+                    Files.deleteIfExists(path);
+                    continue;
+                }
+                found.add(path);
+                attributes.put(path, file);
+            }
+        }
+        found.sort(Comparator.comparing(path -> attributes.get(path).lastModifiedTime()));
+        for (Path path : found) {
+            long size = attributes.get(path).size();
+            tiles.put(path, size);
+            bytes += size;
+        }
+        trim();
+    }
+
+    /**
+     * Returns the tile of a key, or null if it is not cached
+     */
+    byte[] get(String key) throws IOException {
+        Path path = path(key);
+        synchronized (tiles) {
+            if (tiles.get(path) == null) {
+                return null;
+            }
+        }
+        try {
+            return Files.readAllBytes(path);
+        } catch (NoSuchFileException e) {
+            // deleted by trim() meanwhile, or by hand
+            synchronized (tiles) {
+                Long size = tiles.remove(path);
+                bytes -= size == null ? 0 : size;
+            }
+            return null;
+        }
+    }
+
+    void put(String key, byte[] tile) throws IOException {
+        Path path = path(key);
+        Files.createDirectories(path.getParent());
+        Path temporary = Files.createTempFile(path.getParent(), TEMPORARY_PREFIX, ".tmp");
+        try {
+            Files.write(temporary, tile);
+            try {
+                Files.move(temporary, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+        synchronized (tiles) {
+            Long previous = tiles.put(path, (long) tile.length);
+            bytes += tile.length - (previous == null ? 0 : previous);
+        }
+        trim();
+    }
+
+    long getBytes() {
+        synchronized (tiles) {
+            return bytes;
+        }
+    }
+
+    private Path path(String key) {
+        return directory.resolve(key + ".jpg");
+    }
+
+    // deletes the least recently used tiles beyond maxBytes, outside the lock
+    private void trim() throws IOException {
+        List<Path> evicted = new ArrayList<>();
+        synchronized (tiles) {
+            if (bytes <= maxBytes) {
+                return;
+            }
+            Iterator<Map.Entry<Path, Long>> it = tiles.entrySet().iterator();
+            while (bytes > maxBytes - maxBytes / 10 && it.hasNext()) {
+                Map.Entry<Path, Long> tile = it.next();
+                bytes -= tile.getValue();
+                evicted.add(tile.getKey());
+                it.remove();
+            }
+        }
+        for (Path path : evicted) {
+            Files.deleteIfExists(path);
+        }
+    }
+}
@@ -0,0 +1,185 @@
+/*
+Copyright 2020 Alessandro Bruno
+
+This file is part of EquirectangulartoCubic.java.
+EquirectangulartoCubic is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+EquirectangulartoCubic is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+You should have received a copy of the GNU General Public License along with EquirectangulartoCubic. If not, see http://www.gnu.org/licenses/.
+*/
+
+package com.Equi2Rect.server;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Load test of the tile server: fetches random tiles of all the panoramas and
+ * levels from concurrent clients and reports throughput and latency percentiles
+ * of each pass, then the metrics of the server. The first pass mostly projects
+ * tiles, the next ones are served from the caches. Without --url, a server is
+ * started on a free localhost port for the panoramas of --dir, with its disk
+ * cache in a temporary directory.
+ * <p>
+ * Usage: TileLoadTest (--url http://localhost:8360 | --dir panoramas) [--concurrency 16]
+ * [--requests 2000] [--passes 2] [--seed 360]
+ */
+public class TileLoadTest {
+
+    static final String USAGE = "Usage: TileLoadTest (--url http://localhost:8360 | --dir panoramas) " +
+            "[--concurrency 16] [--requests 2000] [--passes 2] [--seed 360]";
+
+    private static final Pattern PANORAMA = Pattern.compile(
+            "\\{\"name\":\"((?:[^\"\\\\]|\\\\.)*)\",\"width\":\\d+,\"height\":\\d+,\"faceSize\":(\\d+),\"maxLevel\":(\\d+)");
+    private static final Pattern TILE_SIZE = Pattern.compile("\"tileSize\":(\\d+)");
+
+    public static void main(String[] args) throws Exception {
+        System.setProperty("java.awt.headless", "true");
+        TileServer.requireModule("jdk.httpserver");
+        TileServer.requireModule("java.net.http");
+        Map<String, String> options = TileServer.parseOptions(args);
+        int concurrency = Integer.parseInt(options.getOrDefault("concurrency", "16"));
+        int requests = Integer.parseInt(options.getOrDefault("requests", "2000"));
+        int passes = Integer.parseInt(options.getOrDefault("passes", "2"));
+        long seed = Long.parseLong(options.getOrDefault("seed", "360"));
+
+        TileServer server = null;
+        String url = options.get("url");
+        if (url == null) {
+            if (!options.containsKey("dir")) {
+                throw new IllegalArgumentException(USAGE);
+            }
+            options.putIfAbsent("port", "0");
+            options.putIfAbsent("cache-dir", Files.createTempDirectory("360tiles").toString());
+            options.remove("concurrency");
+            options.remove("requests");
+            options.remove("passes");
+            options.remove("seed");
+            server = TileServer.create(options);
+            server.start();
+            url = "http://localhost:" + server.getAddress().getPort();
+            System.out.printf("Started a tile server on %s, disk cache in %s%n", url, options.get("cache-dir"));
+        }
+        HttpClient client = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(10)).build();
+        try {
+            List<String> tiles = tileUrls(client, url);
+            if (tiles.isEmpty()) {
+                System.out.println("No panoramas on " + url);
+                return;
+            }
+            System.out.printf("%d tiles in %s, %d requests per pass from %d clients%n",
+                    tiles.size(), url, requests, concurrency);
+            Random random = new Random(seed);
+            for (int pass = 1; pass <= passes; pass++) {
+                List<String> sample = new ArrayList<>(requests);
+                for (int i = 0; i < requests; i++) {
+                    sample.add(tiles.get(random.nextInt(tiles.size())));
+                }
+                run(client, sample, concurrency, pass);
+            }
+            System.out.println();
+            System.out.print(get(client, url + "/metrics"));
+        } finally {
+            if (server != null) {
+                server.stop();
+            }
+        }
+    }
+
+    // URLs of every tile of every panorama
+    static List<String> tileUrls(HttpClient client, String url) throws IOException, InterruptedException {
+        String json = get(client, url + "/panoramas");
+        Matcher size = TILE_SIZE.matcher(json);
+        if (!size.find()) {
+            throw new IOException("Unexpected listing: " + json);
+        }
+        int tileSize = Integer.parseInt(size.group(1));
+        List<String> urls = new ArrayList<>();
+        Matcher m = PANORAMA.matcher(json);
+        while (m.find()) {
+            String name = URLEncoder.encode(m.group(1).replaceAll("\\\\(.)", "$1"), StandardCharsets.UTF_8)
+                    .replace("+", "%20");
+            int faceSize = Integer.parseInt(m.group(2));
+            int maxLevel = Integer.parseInt(m.group(3));
+            for (int level = 0; level <= maxLevel; level++) {
+                int tiles = (TileStore.levelSize(faceSize, maxLevel, level) + tileSize - 1) / tileSize;
+                for (int face = 0; face < 6; face++) {
+                    for (int y = 0; y < tiles; y++) {
+                        for (int x = 0; x < tiles; x++) {
+                            urls.add(url + "/tiles/" + name + "/" + level + "/" + face + "/" + x + "_" + y + ".jpg");
+                        }
+                    }
+                }
+            }
+        }
+        return urls;
+    }
+
+    static void run(HttpClient client, List<String> urls, int concurrency, int pass) throws Exception {
+        long[] latencies = new long[urls.size()];
+        long[] bytes = new long[urls.size()];
+        AtomicInteger next = new AtomicInteger();
+        AtomicInteger errors = new AtomicInteger();
+        ExecutorService clients = Executors.newFixedThreadPool(concurrency);
+        long start = System.nanoTime();
+        List<Future<?>> futures = new ArrayList<>();
+        for (int c = 0; c < concurrency; c++) {
+            futures.add(clients.submit(() -> {
+                for (int i = next.getAndIncrement(); i < urls.size(); i = next.getAndIncrement()) {
+                    long t0 = System.nanoTime();
+                    try {
+                        HttpResponse<byte[]> response = client.send(HttpRequest.newBuilder(URI.create(urls.get(i)))
+                                .GET().build(), HttpResponse.BodyHandlers.ofByteArray());
+                        if (response.statusCode() != 200) {
+                            errors.incrementAndGet();
+                        }
+                        bytes[i] = response.body().length;
+                    } catch (IOException e) {
+                        errors.incrementAndGet();
+                    }
+                    latencies[i] = System.nanoTime() - t0;
+                }
+                return null;
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        clients.shutdown();
+        clients.awaitTermination(1, TimeUnit.MINUTES);
+        Arrays.sort(latencies);
+        long total = Arrays.stream(bytes).sum();
+        System.out.printf("pass %d: %.1f requests/s, %.1f MB/s, latency p50 %.1f ms p90 %.1f ms p99 %.1f ms " +
+                        "max %.1f ms, %d errors%n", pass, urls.size() / seconds, total / seconds / 1e6,
+                ServerMetrics.percentile(latencies, 50) / 1e6, ServerMetrics.percentile(latencies, 90) / 1e6,
+                ServerMetrics.percentile(latencies, 99) / 1e6, latencies[latencies.length - 1] / 1e6,
+                errors.get());
+    }
+
+    static String get(HttpClient client, String url) throws IOException, InterruptedException {
+        HttpResponse<String> response = client.send(HttpRequest.newBuilder(URI.create(url)).GET().build(),
+                HttpResponse.BodyHandlers.ofString());
+        if (response.statusCode() != 200) {
+            throw new IOException(url + ": HTTP " + response.statusCode());
+        }
+        return response.body();
+    }
+}
@@ -0,0 +1,284 @@
+/*
+Copyright 2020 Alessandro Bruno
+
+This file is part of EquirectangulartoCubic.java.
+EquirectangulartoCubic is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+EquirectangulartoCubic is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+You should have received a copy of the GNU General Public License along with EquirectangulartoCubic. If not, see http://www.gnu.org/licenses/.
+*/
+
+package com.Equi2Rect.server;
+import com.Equi2Rect.ConversionEngine;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Headless HTTP server of the cube face tiles of a directory of equirectangular
+ * panoramas, see {@link TileStore}:
+ * <pre>
+ *   GET /panoramas                                   JSON list of the panoramas and their levels
+ *   GET /tiles/{name}/{level}/{face}/{x}_{y}.jpg     tile x, y of a face at a level
+ *   GET /metrics                                     counters and latencies, "name value" lines
+ * </pre>
+ * Faces are numbered as in {@link com.Equi2Rect.ConversionEngine#convert(java.awt.image.BufferedImage)}:
+ * yaw 0, 90, 180 and 270 degrees, then up and down.
+ * <p>
+ * Usage: TileServer --dir panoramas [--port 8360] [--bind localhost] [--tile-size 512]
+ * [--quality 0.85] [--cache-dir dir|none] [--disk-cache-mb 4096] [--memory-cache-mb 256]
+ * [--source-cache-mb 1024] [--threads n]
+ * <p>
+ * The server listens on localhost only unless --bind is set, e.g. to 0.0.0.0.
+ */
+public class TileServer {
+
+    static final String USAGE = "Usage: TileServer --dir panoramas [--port 8360] [--bind localhost] " +
+            "[--tile-size 512] [--quality 0.85] [--cache-dir dir|none] [--disk-cache-mb 4096] [--memory-cache-mb 256] " +
+            "[--source-cache-mb 1024] [--threads n]";
+
+    private final TileStore store;
+    private final ServerMetrics metrics;
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    public TileServer(TileStore store, ServerMetrics metrics, InetSocketAddress address, int threads)
+            throws IOException {
+        this.store = store;
+        this.metrics = metrics;
+        // headers and body are written separately: without TCP_NODELAY, delayed ACKs add 40 ms to small responses
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+        this.server = HttpServer.create(address, 0);
+        this.executor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "tile server");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.setExecutor(executor);
+        server.createContext("/panoramas", this::handleList);
+        server.createContext("/tiles/", this::handleTile);
+        server.createContext("/metrics", this::handleMetrics);
+    }
+
+    public static void main(String[] args) throws IOException {
+        System.setProperty("java.awt.headless", "true");
+        requireModule("jdk.httpserver");
+        TileServer server = create(parseOptions(args));
+        server.start();
+        System.out.printf("Serving tiles on http://%s:%d/panoramas%n",
+                server.getAddress().getHostString(), server.getAddress().getPort());
+    }
+
+    /**
+     * Creates a server from the options of the command line, without the leading "--"
+     */
+    static TileServer create(Map<String, String> options) throws IOException {
+        if (!options.containsKey("dir")) {
+            throw new IllegalArgumentException(USAGE);
+        }
+        File directory = new File(options.get("dir"));
+        if (!directory.isDirectory()) {
+            throw new FileNotFoundException("Not a directory: " + directory);
+        }
+        String cache = options.getOrDefault("cache-dir",
+                new File(System.getProperty("java.io.tmpdir"), "360jfx-tiles").getPath());
+        File cacheDirectory = cache.equals("none") ? null : new File(cache);
+        ServerMetrics metrics = new ServerMetrics();
+        TileStore store = new TileStore(directory, cacheDirectory,
+                Integer.parseInt(options.getOrDefault("tile-size", "512")),
+                Float.parseFloat(options.getOrDefault("quality", "0.85")),
+                Long.parseLong(options.getOrDefault("memory-cache-mb", "256")) << 20,
+                Long.parseLong(options.getOrDefault("disk-cache-mb", "4096")) << 20,
+                Long.parseLong(options.getOrDefault("source-cache-mb", "1024")) << 20,
+                ConversionEngine.getShared(), metrics);
+        InetSocketAddress address = new InetSocketAddress(options.getOrDefault("bind", "localhost"),
+                Integer.parseInt(options.getOrDefault("port", "8360")));
+        int threads = Integer.parseInt(options.getOrDefault("threads",
+                String.valueOf(2 * Runtime.getRuntime().availableProcessors())));
+        return new TileServer(store, metrics, address, threads);
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdown();
+        try {
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public InetSocketAddress getAddress() {
+        return server.getAddress();
+    }
+
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    private void handleList(HttpExchange exchange) throws IOException {
+        long start = System.nanoTime();
+        if (!checkMethod(exchange, start)) {
+            return;
+        }
+        StringBuilder json = new StringBuilder("{\"tileSize\":").append(store.getTileSize())
+                .append(",\"faces\":[{\"yaw\":0,\"pitch\":0},{\"yaw\":90,\"pitch\":0},{\"yaw\":180,\"pitch\":0},")
+                .append("{\"yaw\":270,\"pitch\":0},{\"yaw\":0,\"pitch\":90},{\"yaw\":0,\"pitch\":-90}],")
+                .append("\"panoramas\":[");
+        String separator = "";
+        for (TileStore.Panorama panorama : store.list()) {
+            json.append(separator).append("{\"name\":").append(quote(panorama.getName()))
+                    .append(",\"width\":").append(panorama.getWidth())
+                    .append(",\"height\":").append(panorama.getHeight())
+                    .append(",\"faceSize\":").append(panorama.getFaceSize())
+                    .append(",\"maxLevel\":").append(panorama.getMaxLevel())
+                    .append(",\"levelSizes\":[");
+            for (int level = 0; level <= panorama.getMaxLevel(); level++) {
+                json.append(level == 0 ? "" : ",")
+                        .append(TileStore.levelSize(panorama.getFaceSize(), panorama.getMaxLevel(), level));
+            }
+            json.append("]}");
+            separator = ",";
+        }
+        json.append("]}");
+        send(exchange, 200, "application/json", json.toString().getBytes(StandardCharsets.UTF_8),
+                ServerMetrics.Outcome.OTHER, start);
+    }
+
+    private void handleTile(HttpExchange exchange) throws IOException {
+        long start = System.nanoTime();
+        if (!checkMethod(exchange, start)) {
+            return;
+        }
+        // the path is decoded: /tiles/{name}/{level}/{face}/{x}_{y}.jpg
+        String[] parts = exchange.getRequestURI().getPath().substring("/tiles/".length()).split("/");
+        ServerMetrics.Outcome[] outcome = {ServerMetrics.Outcome.ERROR};
+        try {
+            if (parts.length != 4 || !parts[3].endsWith(".jpg")) {
+                throw new IllegalArgumentException("Expected /tiles/{name}/{level}/{face}/{x}_{y}.jpg");
+            }
+            String[] xy = parts[3].substring(0, parts[3].length() - ".jpg".length()).split("_");
+            if (xy.length != 2) {
+                throw new IllegalArgumentException("Expected {x}_{y}.jpg");
+            }
+            TileStore.Panorama panorama = store.panorama(parts[0]);
+            int level = Integer.parseInt(parts[1]);
+            int face = Integer.parseInt(parts[2]);
+            int x = Integer.parseInt(xy[0]);
+            int y = Integer.parseInt(xy[1]);
+            store.checkTile(panorama, level, face, x, y);
+            // tiles change with their panorama, whose version is in the ETag: checked before projecting
+            String etag = "\"" + Integer.toHexString(panorama.key.hashCode()) + "\"";
+            exchange.getResponseHeaders().set("ETag", etag);
+            exchange.getResponseHeaders().set("Cache-Control", "max-age=3600");
+            if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                send(exchange, 304, null, null, ServerMetrics.Outcome.NOT_MODIFIED, start);
+                return;
+            }
+            byte[] tile = store.tile(panorama, level, face, x, y, outcome);
+            send(exchange, 200, "image/jpeg", tile, outcome[0], start);
+        } catch (FileNotFoundException e) {
+            sendError(exchange, 404, "No panorama " + e.getMessage(), start);
+        } catch (IllegalArgumentException e) {
+            sendError(exchange, 400, e.getMessage(), start);
+        } catch (IOException | RuntimeException e) {
+            System.out.println(e);
+            sendError(exchange, 500, e.toString(), start);
+        }
+    }
+
+    private void handleMetrics(HttpExchange exchange) throws IOException {
+        long start = System.nanoTime();
+        if (!checkMethod(exchange, start)) {
+            return;
+        }
+        send(exchange, 200, "text/plain; charset=utf-8", metrics.format().getBytes(StandardCharsets.UTF_8),
+                ServerMetrics.Outcome.OTHER, start);
+    }
+
+    private boolean checkMethod(HttpExchange exchange, long start) throws IOException {
+        String method = exchange.getRequestMethod();
+        if (method.equals("GET") || method.equals("HEAD")) {
+            return true;
+        }
+        exchange.getResponseHeaders().set("Allow", "GET, HEAD");
+        sendError(exchange, 405, "Method not allowed", start);
+        return false;
+    }
+
+    private void sendError(HttpExchange exchange, int status, String message, long start) throws IOException {
+        send(exchange, status, "text/plain; charset=utf-8", (message + "\n").getBytes(StandardCharsets.UTF_8),
+                ServerMetrics.Outcome.ERROR, start);
+    }
+
+    private void send(HttpExchange exchange, int status, String contentType, byte[] body,
+                      ServerMetrics.Outcome outcome, long start) throws IOException {
+        try {
+            // served to viewers hosted elsewhere
+            exchange.getResponseHeaders().set("Access-Control-Allow-Origin", "*");
+            if (contentType != null) {
+                exchange.getResponseHeaders().set("Content-Type", contentType);
+            }
+            boolean head = exchange.getRequestMethod().equals("HEAD");
+            if (body == null || head) {
+                exchange.sendResponseHeaders(status, -1);
+            } else {
+                exchange.sendResponseHeaders(status, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            }
+            metrics.request(outcome, System.nanoTime() - start, body == null || head ? 0 : body.length);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    // the module com.Equi2Rect only requires the modules of the tools statically
+    static void requireModule(String name) {
+        if (!ModuleLayer.boot().findModule(name).isPresent()) {
+            throw new IllegalStateException("The module " + name + " is missing: add it with --add-modules " + name);
+        }
+    }
+
+    static String quote(String text) {
+        StringBuilder quoted = new StringBuilder("\"");
+        for (char c : text.toCharArray()) {
+            if (c == '"' || c == '\\') {
+                quoted.append('\\').append(c);
+            } else if (c < 0x20) {
+                quoted.append(String.format("\\u%04x", (int) c));
+            } else {
+                quoted.append(c);
+            }
+        }
+        return quoted.append('"').toString();
+    }
+
+    static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new LinkedHashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--") || i + 1 >= args.length) {
+                throw new IllegalArgumentException(USAGE);
+            }
+            options.put(args[i].substring(2), args[++i]);
+        }
+        return options;
+    }
+}
@@ -0,0 +1,420 @@
+/*
+Copyright 2020 Alessandro Bruno
+
+This file is part of EquirectangulartoCubic.java.
+EquirectangulartoCubic is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+EquirectangulartoCubic is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+You should have received a copy of the GNU General Public License along with EquirectangulartoCubic. If not, see http://www.gnu.org/licenses/.
+*/
+
+package com.Equi2Rect.server;
+import com.Equi2Rect.ConversionEngine;
+import com.Equi2Rect.EquiSource;
+import com.Equi2Rect.EquirectangularToCubic;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Cube face tiles of the equirectangular panoramas of a directory, projected on
+ * demand with {@link com.Equi2Rect.Equi2Rect}, within the conversion permits of
+ * the engine.
+ * <p>
+ * Each face has levels 0 to maxLevel: the face is tileSize pixels or less at
+ * level 0 and doubles at each level up to its full resolution at maxLevel.
+ * A request projects the whole row of tiles holding its tile, which is encoded
+ * in JPEG and kept in a memory cache and in a disk cache, both LRU and bounded in
+ * bytes. Concurrent requests for the tiles of a row being projected wait for it
+ * instead of projecting it again, and so do the requests for a panorama being decoded.
+ * Cached tiles are keyed by the name, size and date of the file, so that a
+ * modified panorama gets new tiles.
+ */
+public class TileStore {
+
+    static final String[] EXTENSIONS = {".jpg", ".jpeg", ".png"};
+
+    private final File directory;
+    private final TileDiskCache diskCache;
+    private final ConversionEngine engine;
+    private final int tileSize;
+    private final float quality;
+    private final ServerMetrics metrics;
+    private final long maxMemoryCacheBytes;
+    private final long maxSourceBytes;
+    private final LinkedHashMap<String, byte[]> memoryCache = new LinkedHashMap<>(256, 0.75f, true);
+    private long memoryCacheBytes;
+    private final LinkedHashMap<String, CompletableFuture<EquiSource>> sources = new LinkedHashMap<>(16, 0.75f, true);
+    private final ConcurrentHashMap<String, CompletableFuture<byte[][]>> pendingRows = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Panorama> panoramas = new ConcurrentHashMap<>();
+
+    /**
+     * @param directory The directory of the equirectangular panoramas
+     * @param cacheDirectory The directory of the disk cache, null to disable it
+     * @param tileSize Width and height of the tiles, a multiple of 64
+     * @param quality JPEG quality of the tiles, from 0 to 1
+     * @param maxMemoryCacheBytes Memory the encoded tiles may use
+     * @param maxDiskCacheBytes Disk space the encoded tiles may use
+     * @param maxSourceBytes Memory the decoded panoramas may use, at least one is kept
+     * @param engine The engine whose permits limit the rows projected at the same time
+     * @throws IOException if the disk cache cannot be created
+     */
+    public TileStore(File directory, File cacheDirectory, int tileSize, float quality, long maxMemoryCacheBytes,
+                     long maxDiskCacheBytes, long maxSourceBytes, ConversionEngine engine, ServerMetrics metrics)
+            throws IOException {
+        if (tileSize <= 0 || tileSize % 64 != 0) {
+            throw new IllegalArgumentException("The tile size must be a positive multiple of 64: " + tileSize);
+        }
+        this.directory = directory;
+        this.diskCache = cacheDirectory == null ? null : new TileDiskCache(cacheDirectory.toPath(), maxDiskCacheBytes);
+        this.engine = engine;
+        this.tileSize = tileSize;
+        this.quality = quality;
+        this.maxMemoryCacheBytes = maxMemoryCacheBytes;
+        this.maxSourceBytes = maxSourceBytes;
+        this.metrics = metrics;
+    }
+
+    public int getTileSize() {
+        return tileSize;
+    }
+
+    /**
+     * A panorama of the directory and the levels of its faces
+     */
+    public static final class Panorama {
+        final String name;
+        final File file;
+        final String key;
+        final long lastModified;
+        final long length;
+        final int width;
+        final int height;
+        final int faceSize;
+        final int maxLevel;
+
+        Panorama(String name, File file, int width, int height, int tileSize) {
+            this.name = name;
+            this.file = file;
+            this.lastModified = file.lastModified();
+            this.length = file.length();
+            this.key = name + "." + Long.toHexString(lastModified) + "." + Long.toHexString(length);
+            this.width = width;
+            this.height = height;
+            this.faceSize = ConversionEngine.faceSize(width);
+            this.maxLevel = maxLevel(faceSize, tileSize);
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getWidth() {
+            return width;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+
+        public int getFaceSize() {
+            return faceSize;
+        }
+
+        public int getMaxLevel() {
+            return maxLevel;
+        }
+    }
+
+    /**
+     * Returns the number of levels above 0 needed to reach faceSize from tiles of tileSize pixels
+     */
+    public static int maxLevel(int faceSize, int tileSize) {
+        int level = 0;
+        while ((long) tileSize << level < faceSize) {
+            level++;
+        }
+        return level;
+    }
+
+    /**
+     * Returns the size of a face at a level, the full size at maxLevel
+     */
+    public static int levelSize(int faceSize, int maxLevel, int level) {
+        int shift = maxLevel - level;
+        return (int) (((long) faceSize + (1L << shift) - 1) >> shift);
+    }
+
+    /**
+     * Lists the equirectangular panoramas of the directory, sorted by name
+     */
+    public List<Panorama> list() {
+        List<Panorama> list = new ArrayList<>();
+        String[] names = directory.list();
+        if (names == null) {
+            return list;
+        }
+        Arrays.sort(names);
+        for (String name : names) {
+            try {
+                list.add(panorama(name));
+            } catch (IOException e) {
+                // not a panorama
+            }
+        }
+        return list;
+    }
+
+    /**
+     * Returns a panorama of the directory
+     * @throws FileNotFoundException if there is no such equirectangular panorama
+     */
+    public Panorama panorama(String name) throws IOException {
+        if (name.isEmpty() || name.contains("/") || name.contains("\\") || name.startsWith(".")
+                || !hasImageExtension(name)) {
+            throw new FileNotFoundException(name);
+        }
+        File file = new File(directory, name);
+        Panorama panorama = panoramas.get(name);
+        if (panorama != null && panorama.lastModified == file.lastModified() && panorama.length == file.length()) {
+            return panorama;
+        }
+        if (!file.isFile()) {
+            throw new FileNotFoundException(name);
+        }
+        Dimension size;
+        try {
+            size = EquirectangularToCubic.readImageSize(file);
+        } catch (IOException e) {
+            throw new FileNotFoundException(name + ": " + e.getMessage());
+        }
+        if (size.width != size.height * 2) {
+            throw new FileNotFoundException(name + " is not equirectangular");
+        }
+        panorama = new Panorama(name, file, size.width, size.height, tileSize);
+        panoramas.put(name, panorama);
+        return panorama;
+    }
+
+    private static boolean hasImageExtension(String name) {
+        String lower = name.toLowerCase();
+        for (String extension : EXTENSIONS) {
+            if (lower.endsWith(extension)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Checks that a tile exists, without projecting it
+     * @throws IllegalArgumentException if the level, face or tile does not exist
+     */
+    public void checkTile(Panorama panorama, int level, int face, int x, int y) {
+        if (level < 0 || level > panorama.maxLevel || face < 0 || face >= 6) {
+            throw new IllegalArgumentException("No level " + level + " or face " + face);
+        }
+        int size = levelSize(panorama.faceSize, panorama.maxLevel, level);
+        int tiles = (size + tileSize - 1) / tileSize;
+        if (x < 0 || x >= tiles || y < 0 || y >= tiles) {
+            throw new IllegalArgumentException("No tile " + x + "_" + y + " at level " + level);
+        }
+    }
+
+    /**
+     * Returns a tile encoded in JPEG
+     * @param face Index of the face as in {@link ConversionEngine#convert(BufferedImage)}
+     * @param outcome Receives where the tile came from
+     * @throws IllegalArgumentException if the level, face or tile does not exist
+     */
+    public byte[] tile(Panorama panorama, int level, int face, int x, int y, ServerMetrics.Outcome[] outcome)
+            throws IOException {
+        checkTile(panorama, level, face, x, y);
+        int size = levelSize(panorama.faceSize, panorama.maxLevel, level);
+        String key = panorama.key + "/" + level + "/" + face + "/" + x + "_" + y;
+        byte[] tile = memoryGet(key);
+        if (tile != null) {
+            outcome[0] = ServerMetrics.Outcome.MEMORY;
+            return tile;
+        }
+        if (diskCache != null) {
+            tile = diskCache.get(key);
+            if (tile != null) {
+                memoryPut(key, tile);
+                outcome[0] = ServerMetrics.Outcome.DISK;
+                return tile;
+            }
+        }
+
+        // computeRow caches the tiles before the row leaves pendingRows: looked up together,
+        // a tile is either cached or its row pending, and is never projected twice
+        String rowKey = panorama.key + "/" + level + "/" + face + "/" + y;
+        CompletableFuture<byte[][]> row = new CompletableFuture<>();
+        CompletableFuture<byte[][]> pending;
+        synchronized (memoryCache) {
+            tile = memoryCache.get(key);
+            pending = tile == null ? pendingRows.putIfAbsent(rowKey, row) : null;
+        }
+        if (tile != null) {
+            outcome[0] = ServerMetrics.Outcome.MEMORY;
+            return tile;
+        }
+        if (pending == null) {
+            outcome[0] = ServerMetrics.Outcome.COMPUTED;
+            try {
+                row.complete(computeRow(panorama, level, face, y, size));
+            } catch (IOException | RuntimeException | Error e) {
+                row.completeExceptionally(e);
+                throw e;
+            } finally {
+                pendingRows.remove(rowKey, row);
+            }
+            return row.join()[x];
+        }
+        outcome[0] = ServerMetrics.Outcome.COALESCED;
+        return await(pending)[x];
+    }
+
+    // projects row y of tiles of a face of size pixels and caches its tiles
+    private byte[][] computeRow(Panorama panorama, int level, int face, int y, int size) throws IOException {
+        EquiSource source = source(panorama);
+        long start = System.nanoTime();
+        int firstRow = y * tileSize;
+        int lastRow = Math.min(firstRow + tileSize, size);
+        int rows = lastRow - firstRow;
+        int[] pixels = engine.renderFaceRows(source, face, size, firstRow, lastRow);
+        int tiles = (size + tileSize - 1) / tileSize;
+        byte[][] encoded = new byte[tiles][];
+        for (int x = 0; x < tiles; x++) {
+            int width = Math.min(tileSize, size - x * tileSize);
+            BufferedImage image = new BufferedImage(width, rows, BufferedImage.TYPE_INT_RGB);
+            image.setRGB(0, 0, width, rows, pixels, x * tileSize, size);
+            encoded[x] = encode(image);
+            String key = panorama.key + "/" + level + "/" + face + "/" + x + "_" + y;
+            if (diskCache != null) {
+                diskCache.put(key, encoded[x]);
+            }
+            memoryPut(key, encoded[x]);
+        }
+        metrics.bandComputed(tiles, System.nanoTime() - start);
+        return encoded;
+    }
+
+    private byte[] encode(BufferedImage image) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpg").next();
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        param.setCompressionQuality(quality);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ImageOutputStream out = ImageIO.createImageOutputStream(bytes)) {
+            writer.setOutput(out);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+        return bytes.toByteArray();
+    }
+
+    // decoded panorama, shared by the requests decoding it at the same time
+    private EquiSource source(Panorama panorama) throws IOException {
+        CompletableFuture<EquiSource> future;
+        boolean decode = false;
+        synchronized (sources) {
+            future = sources.get(panorama.key);
+            if (future == null) {
+                future = new CompletableFuture<>();
+                sources.put(panorama.key, future);
+                decode = true;
+            }
+        }
+        if (!decode) {
+            return await(future);
+        }
+        try {
+            // packed storage wraps the decoded JPEG without copying it
+            EquiSource source = EquiSource.fromImage(EquirectangularToCubic.loadImage(panorama.file),
+                    EquiSource.Storage.PACKED_RGB);
+            // leveled like the faces of the viewer
+            source.setOrientation(engine.orientationOf(panorama.file));
+            metrics.panoramaDecoded();
+            future.complete(source);
+            trimSources();
+            return source;
+        } catch (IOException | RuntimeException | Error e) {
+            synchronized (sources) {
+                sources.remove(panorama.key, future);
+            }
+            future.completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    // releases the least recently used panoramas beyond maxSourceBytes, keeping the newest
+    private void trimSources() {
+        synchronized (sources) {
+            long bytes = 0;
+            for (CompletableFuture<EquiSource> future : sources.values()) {
+                bytes += future.isDone() && !future.isCompletedExceptionally() ? future.join().getByteSize() : 0;
+            }
+            Iterator<CompletableFuture<EquiSource>> it = sources.values().iterator();
+            while (bytes > maxSourceBytes && sources.size() > 1 && it.hasNext()) {
+                CompletableFuture<EquiSource> future = it.next();
+                if (future.isDone()) {
+                    bytes -= future.join().getByteSize();
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    private byte[] memoryGet(String key) {
+        synchronized (memoryCache) {
+            return memoryCache.get(key);
+        }
+    }
+
+    private void memoryPut(String key, byte[] tile) {
+        synchronized (memoryCache) {
+            byte[] previous = memoryCache.put(key, tile);
+            memoryCacheBytes += tile.length - (previous == null ? 0 : previous.length);
+            Iterator<Map.Entry<String, byte[]>> it = memoryCache.entrySet().iterator();
+            while (memoryCacheBytes > maxMemoryCacheBytes && it.hasNext()) {
+                memoryCacheBytes -= it.next().getValue().length;
+                it.remove();
+            }
+        }
+    }
+
+    private static <T> T await(CompletableFuture<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a tile");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw new IOException(cause);
+        }
+    }
+}
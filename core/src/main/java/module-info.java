@@ -0,0 +1,29 @@
+/*
+Copyright 2020 Alessandro Bruno
+
+This file is part of EquirectangulartoCubic.java.
+EquirectangulartoCubic is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+EquirectangulartoCubic is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+You should have received a copy of the GNU General Public License along with EquirectangulartoCubic. If not, see http://www.gnu.org/licenses/.
+*/
+
+/**
+ * Conversion engine of 360JFx without JavaFX: equirectangular panoramas and
+ * dual-fisheye frames to cube faces and views ({@link com.Equi2Rect.ConversionEngine}),
+ * and the tile server. Only java.desktop is needed at run time, so that a
+ * runtime image made with jlink for a headless service stays small; the other
+ * JDK modules are only needed by the tools using them, and are added to the
+ * image with --add-modules when these tools are shipped.
+ */
+module com.Equi2Rect {
+    requires java.desktop;
+    // tile server, its load test and the metrics of the ingest daemon
+    requires static jdk.httpserver;
+    requires static java.net.http;
+    // CPU time and allocations measured by the benchmark
+    requires static jdk.management;
+
+    exports com.Equi2Rect;
+    exports com.Equi2Rect.server;
+    exports com.Equi2Rect.ingest;
+}
@@ -0,0 +1,731 @@
+/**
+ *     360JFx: multi-platform visualizer of 360 pictures
+ *     Copyright (C) 2020  Alessandro Bruno
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package de.alebruno.App360JFx;
+
+import javafx.animation.AnimationTimer;
+import javafx.application.Application;
+import javafx.application.Platform;
+import javafx.beans.property.DoubleProperty;
+import javafx.beans.property.SimpleDoubleProperty;
+import javafx.embed.swing.SwingFXUtils;
+import javafx.event.EventHandler;
+import javafx.scene.*;
+import javafx.scene.control.Alert;
+import javafx.scene.control.ChoiceDialog;
+import javafx.scene.image.Image;
+import javafx.scene.input.*;
+import javafx.scene.layout.BorderPane;
+import javafx.scene.layout.Pane;
+import javafx.scene.paint.Color;
+import javafx.scene.transform.Rotate;
+import javafx.stage.FileChooser;
+import javafx.stage.Stage;
+import org.fxyz3d.scene.Skybox;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Collectors;
+import com.Equi2Rect.CubemapInput;
+import com.Equi2Rect.ConversionEngine;
+import com.Equi2Rect.ConversionTimings;
+import com.Equi2Rect.EquiSource;
+import com.Equi2Rect.EquirectangularToCubic;
+import com.Equi2Rect.MemoryBudget;
+import com.Equi2Rect.Projection;
+import com.Equi2Rect.ViewSpec;
+
+import javax.imageio.ImageIO;
+
+/**
+ * @author Alessandro Bruno
+ */
+public class GUI360JFx extends Application {
+
+    static final String SAMPLE = "/Schwarzenberg.jpg";
+    // faces of the sample generated at build time by SampleSkyboxGenerator
+    static final String SAMPLE_FACE_NAME = "face%d.jpg";
+    static final String SAMPLE_FACES = "/sample/" + SAMPLE_FACE_NAME;
+    static final Integer[] EXPORT_WIDTHS = {3840, 7680, 16000};
+    // projections cycled by P after the skybox, with their horizontal FOV at the default zoom
+    static final Projection[] PROJECTIONS = {Projection.STEREOGRAPHIC, Projection.FISHEYE, Projection.MERCATOR};
+    static final String[] PROJECTION_NAMES = {"little planet", "fisheye", "Mercator"};
+    static final double[] PROJECTION_FOVS = {270, 180, 360};
+
+    DoubleProperty anglex;
+    DoubleProperty angley;
+    DoubleProperty FOV;
+    Double anchorX;
+    Double anchorY;
+    Double anchorAngleX;
+    Double anchorAngleY;
+    Skybox sky;
+    Group atlas; // He holds the sky.
+    Group root3D;
+    SubScene view3D;
+    Scene scene;
+    Image[] skyboxImagesFx;
+    long memoryBudget;
+    Stage stage;
+    PerspectiveCamera camera;
+    SequencePlayer player;
+    // mapping tables enabled on the shared engine for the sequence being played
+    boolean sequenceMappingTables;
+    PanoramaNavigator navigator = new PanoramaNavigator();
+    PanoramaPrefetcher prefetcher;
+    ThumbnailStrip thumbnails;
+    PerformanceHud hud;
+    ProjectionView projectionView;
+    // index in PROJECTIONS, -1 for the skybox
+    int projection = -1;
+    long windowShownMillis = -1;
+    boolean firstFrameTracked;
+    // set by main, null when the viewer is started by another class
+    static SingleInstance instance;
+
+
+    @Override
+    public void start(Stage primaryStage) throws Exception {
+
+        stage = primaryStage;
+        long prefetchBudget = Long.getLong("360jfx.prefetchMB",
+                Math.min(512L, Runtime.getRuntime().maxMemory() >> 22)) << 20;
+        // the other half of the heap holds the panorama being shown, the prefetched ones and the textures
+        memoryBudget = Long.getLong("360jfx.memoryBudgetMB", Runtime.getRuntime().maxMemory() >> 21) << 20;
+        prefetcher = new PanoramaPrefetcher(ConversionEngine.getShared(), prefetchBudget, memoryBudget);
+        atlas = new Group();
+        camera = new PerspectiveCamera(true);
+        camera.setNearClip(0.1);
+        camera.setFarClip(10000.0);
+        FOV = new SimpleDoubleProperty(60.0);
+        camera.fieldOfViewProperty().bind(FOV);
+        camera.setVerticalFieldOfView(true);
+        Rotate rx = new Rotate(180.0, Rotate.X_AXIS);
+        camera.getTransforms().add(rx);
+
+        root3D = new Group(camera, new AmbientLight(Color.WHITE), atlas);
+        view3D = new SubScene(root3D, 800, 600, true, SceneAntialiasing.BALANCED);
+        view3D.setCamera(camera);
+        // the 3D view fills the space left by the thumbnails
+        hud = new PerformanceHud(System.getProperty("360jfx.hudTrace"));
+        projectionView = new ProjectionView(ConversionEngine.getShared());
+        Pane viewPane = new Pane(view3D, projectionView.getNode(), hud.getNode());
+        viewPane.setMinSize(0, 0);
+        view3D.widthProperty().bind(viewPane.widthProperty());
+        view3D.heightProperty().bind(viewPane.heightProperty());
+        String thumbnailCache = System.getProperty("360jfx.thumbnailCache",
+                new File(System.getProperty("user.home"), ".360jfx/thumbnails").getPath());
+        thumbnails = new ThumbnailStrip(new ThumbnailDecoder(thumbnailCache.equals("none") ? null :
+                new File(thumbnailCache), Long.getLong("360jfx.thumbnailCacheMB", 64) << 20),
+                Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2)), this::openPanoramaFile);
+        thumbnails.getView().setVisible(false);
+        thumbnails.getView().managedProperty().bind(thumbnails.getView().visibleProperty());
+        BorderPane pane = new BorderPane(viewPane);
+        pane.setBottom(thumbnails.getView());
+        scene = new Scene(pane, 800, 600);
+        primaryStage.setTitle("360JFx");
+        primaryStage.setScene(scene);
+
+        Rotate rotx = new Rotate(0.0, Rotate.X_AXIS);
+        Rotate roty = new Rotate(0.0, Rotate.Y_AXIS);
+        anglex = new SimpleDoubleProperty(0.0);
+        angley = new SimpleDoubleProperty(0.0);
+        rotx.angleProperty().bind(anglex);
+        roty.angleProperty().bind(angley);
+        atlas.getTransforms().addAll(rotx, roty);
+        anglex.addListener((observable, oldValue, newValue) -> updateProjection());
+        angley.addListener((observable, oldValue, newValue) -> updateProjection());
+        FOV.addListener((observable, oldValue, newValue) -> updateProjection());
+        view3D.widthProperty().addListener((observable, oldValue, newValue) -> updateProjection());
+        view3D.heightProperty().addListener((observable, oldValue, newValue) -> updateProjection());
+
+        view3D.setOnMousePressed(event -> {
+            anchorX = event.getSceneX();
+            anchorY = event.getSceneY();
+            anchorAngleX = anglex.get();
+            anchorAngleY = angley.get();
+        });
+
+        view3D.setOnMouseDragged(event -> {
+            anglex.set(anchorAngleX + (anchorY - event.getSceneY()) * FOV.getValue()/ 600.0);
+            angley.set(anchorAngleY + (anchorX - event.getSceneX()) * FOV.getValue() / 600.0);
+        });
+
+        view3D.setOnMouseClicked(new EventHandler<MouseEvent>() {
+            @Override
+            public void handle(MouseEvent mouseEvent){
+                if(mouseEvent.getButton().equals(MouseButton.PRIMARY)) {
+                    if(mouseEvent.getClickCount() == 2){
+                        primaryStage.setFullScreen(true);
+                    }
+                }
+
+                if(mouseEvent.getButton().equals(MouseButton.SECONDARY)) {
+                    FileChooser fileChooser = new FileChooser();
+                    configureFileChooser(fileChooser);
+                    File file = fileChooser.showOpenDialog(stage);
+                    openPanoramaFile(file);
+                }
+            }
+        });
+
+        scene.setOnDragOver(new EventHandler<DragEvent>() {
+            @Override
+            public void handle(DragEvent event) {
+                if (event.getDragboard().hasFiles()) {
+                    event.acceptTransferModes(TransferMode.ANY);
+                }
+                event.consume();
+            }
+        });
+
+        view3D.setOnScroll(new EventHandler<ScrollEvent>() {
+            @Override
+            public void handle(ScrollEvent event) {
+                 FOV.setValue(returnInsideRange(FOV.getValue() - (event.getDeltaX() + event.getDeltaY())/20.0,
+                         20.0, 100.0));
+            }
+        });
+
+        scene.setOnDragDropped(new EventHandler<DragEvent>() {
+            @Override
+            public void handle(DragEvent event) {
+                File file = event.getDragboard().getFiles().get(0);
+                if (file.isDirectory()) {
+                    playSequence(file);
+                } else {
+                    openPanoramaFile(file);
+                }
+                event.consume();
+            }
+        });
+
+        scene.setOnKeyPressed(new EventHandler<KeyEvent>() {
+            @Override
+            public void handle(KeyEvent event) {
+                if (event.getCode() == KeyCode.S && event.isShortcutDown()) {
+                    exportView();
+                }
+                if (event.getCode() == KeyCode.H) {
+                    hud.toggle();
+                }
+                if (event.getCode() == KeyCode.P) {
+                    cycleProjection();
+                }
+                if (event.getCode() == KeyCode.T) {
+                    thumbnails.getView().setVisible(!thumbnails.getView().isVisible());
+                }
+                if (event.getCode() == KeyCode.SPACE && player != null) {
+                    player.togglePause();
+                }
+                if ((event.getCode() == KeyCode.RIGHT || event.getCode() == KeyCode.PAGE_DOWN)
+                        && navigator.getNext() != null) {
+                    openPanoramaFile(navigator.getNext());
+                }
+                if ((event.getCode() == KeyCode.LEFT || event.getCode() == KeyCode.PAGE_UP)
+                        && navigator.getPrevious() != null) {
+                    openPanoramaFile(navigator.getPrevious());
+                }
+            }
+        });
+
+        primaryStage.show();
+        windowShownMillis = ManagementFactory.getRuntimeMXBean().getUptime();
+        List<File> files = getParameters().getUnnamed().stream().map(File::new).collect(Collectors.toList());
+        if (files.isEmpty()) {
+            loadSample();
+        } else {
+            openFiles(files);
+        }
+        ConversionEngine.getShared().warmUp();
+        if (instance != null) {
+            // with the files sent while the viewer was starting, queued by the instance
+            instance.listen(received -> Platform.runLater(() -> {
+                stage.setIconified(false);
+                stage.toFront();
+                openFiles(received);
+            }));
+        }
+    }
+
+    @Override
+    public void stop() {
+        // writes the end of the trace
+        hud.close();
+        if (instance != null) {
+            try {
+                instance.close();
+            } catch (IOException e) {
+                System.out.println(e);
+            }
+        }
+    }
+
+    /**
+     * Opens the first of the files given on the command line, its siblings are
+     * reached with the arrows, or plays it if it is a directory
+     */
+    void openFiles(List<File> files) {
+        if (files.isEmpty()) {
+            return;
+        }
+        File file = files.get(0).getAbsoluteFile();
+        if (file.isDirectory()) {
+            playSequence(file);
+        } else if (file.isFile()) {
+            openPanoramaFile(file);
+        } else {
+            System.out.printf("File not found: %s\n", file);
+        }
+    }
+
+    /**
+     * Shows the sample panorama once its faces are loaded in the background,
+     * unless another panorama was opened in the meantime
+     */
+    void loadSample() {
+        Thread loader = new Thread(() -> {
+            Image[] images = loadSampleFaces();
+            if (images == null) {
+                // not built by Maven: convert the sample
+                try (InputStream in = GUI360JFx.class.getResourceAsStream(SAMPLE)) {
+                    images = toFXImages(EquirectangularToCubic.processImage(ImageIO.read(in)));
+                } catch (IOException e) {
+                    System.out.println(e);
+                    return;
+                }
+            }
+            Image[] sampleImages = images;
+            Platform.runLater(() -> {
+                if (skyboxImagesFx == null) {
+                    showSkybox(sampleImages);
+                }
+            });
+        }, "360JFx sample loader");
+        loader.setDaemon(true);
+        loader.start();
+    }
+
+    /**
+     * Returns the faces of the sample generated at build time, null if they are missing
+     */
+    static Image[] loadSampleFaces() {
+        Image[] images = new Image[6];
+        for (int i = 0; i < images.length; i++) {
+            try (InputStream in = GUI360JFx.class.getResourceAsStream(String.format(SAMPLE_FACES, i))) {
+                if (in == null) {
+                    return null;
+                }
+                images[i] = new Image(in);
+            } catch (IOException e) {
+                return null;
+            }
+            if (images[i].isError()) {
+                return null;
+            }
+        }
+        return images;
+    }
+
+    /**
+     * Measures the time from the start of the JVM to the first frame showing a
+     * panorama: the frame is on screen when the pulse after it starts.
+     * The time is printed, appended to the CSV file set by the property
+     * 360jfx.startupLog if any, and the application exits after it when
+     * 360jfx.exitAfterFirstFrame is true (startup benchmarks, AppCDS training run).
+     */
+    private void trackFirstFrame() {
+        firstFrameTracked = true;
+        new AnimationTimer() {
+            int pulses;
+
+            @Override
+            public void handle(long now) {
+                if (++pulses < 2) {
+                    return;
+                }
+                stop();
+                long firstFrameMillis = ManagementFactory.getRuntimeMXBean().getUptime();
+                // "sharing" when the classes were loaded from a CDS archive
+                boolean sharing = System.getProperty("java.vm.info", "").contains("sharing");
+                System.out.printf("Window shown after %d ms, first frame after %d ms%s\n", windowShownMillis,
+                        firstFrameMillis, sharing ? " (class data sharing)" : "");
+                String log = System.getProperty("360jfx.startupLog");
+                if (log != null) {
+                    boolean header = !new File(log).exists();
+                    try (PrintWriter out = new PrintWriter(new FileWriter(log, true))) {
+                        if (header) {
+                            out.println("timestamp,java_version,class_data_sharing,window_shown_ms,first_frame_ms");
+                        }
+                        out.println(System.currentTimeMillis() + "," + System.getProperty("java.version") + "," +
+                                sharing + "," + windowShownMillis + "," + firstFrameMillis);
+                    } catch (IOException e) {
+                        System.out.println(e);
+                    }
+                }
+                if (Boolean.getBoolean("360jfx.exitAfterFirstFrame")) {
+                    Platform.exit();
+                }
+            }
+        }.start();
+    }
+
+    Double returnInsideRange(Double value, Double min, Double max) {
+        return Math.min(Math.max(value, min), max);
+    }
+
+    public void openPanoramaFile(File file) {
+        if (file == null) {
+            return;
+        }
+        stopSequence();
+        navigator.setCurrent(file);
+        thumbnails.show(navigator.getFiles(), navigator.getCurrent());
+        try {
+            if (projection >= 0 && CubemapInput.detect(file) != null) {
+                stopProjection("360JFx - projections need an equirectangular panorama");
+            } else if (projection >= 0) {
+                loadProjection(file);
+            }
+            System.out.printf("Processing image file: %s\n", file);
+            long startTime = System.nanoTime();
+            Image[] images = prefetcher.take(file);
+            if (images != null) {
+                showSkybox(images);
+                hud.opened(String.format("%s (prefetched, shown in %d ms)", file.getName(),
+                        (System.nanoTime() - startTime) / 1000000L), null, 0);
+            } else if (!openPanoramaImage(file)) {
+                return;
+            }
+            prefetcher.retain(file, skyboxImagesFx, Arrays.asList(navigator.getNext(), navigator.getPrevious())
+                    .stream().filter(f -> f != null).collect(Collectors.toList()));
+        } catch (IOException e) {
+            System.out.println(e);
+        }
+    }
+
+    /**
+     * Converts and shows an equirectangular image, returns false if it cannot be converted
+     */
+    public boolean openPanoramaImage(BufferedImage image)
+    {
+        BufferedImage[] skyboxImages;
+        try {
+            skyboxImages = EquirectangularToCubic.processImage(image);
+        } catch (IOException ioEx)
+        {
+            showOpenError(ioEx);
+            return false;
+        }
+        showConvertedSkybox("image", skyboxImages);
+        return true;
+    }
+
+    /**
+     * Converts and shows an equirectangular image file, returns false if it cannot be converted.
+     * The conversion fits in the memory budget set by the property 360jfx.memoryBudgetMB
+     * (half of the heap by default), lowering the resolution of the faces if needed.
+     * Cube maps are shown as stored, without conversion.
+     */
+    public boolean openPanoramaImage(File file)
+    {
+        BufferedImage[] skyboxImages;
+        MemoryBudget budget = null;
+        try {
+            if (CubemapInput.detect(file) != null) {
+                // the faces are sliced without projection, see ConversionEngine.convert(File)
+                skyboxImages = EquirectangularToCubic.processImage(file);
+            } else {
+                // the faces are kept as JavaFX images, 4 bytes per pixel
+                budget = MemoryBudget.plan(file, memoryBudget, 4);
+                skyboxImages = EquirectangularToCubic.processImage(file, budget);
+            }
+        } catch (IOException ioEx)
+        {
+            showOpenError(ioEx);
+            return false;
+        }
+        showConvertedSkybox(file.getName(), skyboxImages);
+        stage.setTitle(budget != null && budget.isDegraded() ? "360JFx - " + file.getName() + " (reduced: " +
+                String.join(", ", budget.getDegradations()) + ")" : "360JFx");
+        return true;
+    }
+
+    /**
+     * Shows faces converted on this thread, with the time of each stage in the performance overlay
+     */
+    private void showConvertedSkybox(String name, BufferedImage[] skyboxImages)
+    {
+        ConversionTimings timings = ConversionEngine.getShared().getLastTimings();
+        long startTime = System.nanoTime();
+        Image[] images = toFXImages(skyboxImages);
+        long fxNanos = System.nanoTime() - startTime;
+        showSkybox(images);
+        hud.opened(name, timings, fxNanos);
+    }
+
+    private void showOpenError(IOException ioEx)
+    {
+        showError("Cannot open panorama", ioEx);
+    }
+
+    private void showError(String title, Throwable error)
+    {
+        Alert alert = new Alert(Alert.AlertType.ERROR);
+        alert.setTitle(title);
+        alert.setHeaderText(null);
+        alert.setContentText(error.getMessage() != null ? error.getMessage() : error.toString());
+        alert.showAndWait();
+    }
+
+    /**
+     * Exports the current view at print resolution in the background: the width is
+     * chosen among EXPORT_WIDTHS, the height follows the aspect ratio of the window,
+     * the format (PNG, TIFF or JPEG) the extension of the file.
+     */
+    void exportView()
+    {
+        ChoiceDialog<Integer> sizeDialog = new ChoiceDialog<>(EXPORT_WIDTHS[0], EXPORT_WIDTHS);
+        sizeDialog.setTitle("Export view");
+        sizeDialog.setHeaderText(null);
+        sizeDialog.setContentText("Width in pixels:");
+        Optional<Integer> width = sizeDialog.showAndWait();
+        if (!width.isPresent()) {
+            return;
+        }
+        FileChooser fileChooser = new FileChooser();
+        fileChooser.setTitle("Export view");
+        fileChooser.setInitialFileName("view.png");
+        fileChooser.getExtensionFilters().addAll(
+                new FileChooser.ExtensionFilter("PNG", "*.png"),
+                new FileChooser.ExtensionFilter("TIFF", "*.tif", "*.tiff"),
+                new FileChooser.ExtensionFilter("JPG (whole image in memory)", "*.jpg", "*.jpeg"));
+        File output = fileChooser.showSaveDialog(stage);
+        if (output == null) {
+            return;
+        }
+        int exportWidth = width.get();
+        int exportHeight = (int) Math.round(exportWidth * view3D.getHeight() / view3D.getWidth());
+        // the camera FOV is vertical; angley turns towards face 1 (yaw 90), anglex towards the nadir
+        double hfov = 2 * Math.toDegrees(Math.atan(Math.tan(Math.toRadians(FOV.get()) / 2) *
+                view3D.getWidth() / view3D.getHeight()));
+        double yaw = angley.get();
+        double pitch = -anglex.get();
+        File panorama = navigator.getCurrent();
+        stage.setTitle("360JFx - exporting " + output.getName());
+        Thread exporter = new Thread(() -> {
+            try {
+                BufferedImage image = panorama != null ? EquirectangularToCubic.loadImage(panorama) :
+                        ImageIO.read(GUI360JFx.class.getResourceAsStream(SAMPLE));
+                EquiSource source = EquiSource.fromImage(image, EquiSource.Storage.PACKED_RGB);
+                if (panorama != null) {
+                    // leveled as the faces shown
+                    source.setOrientation(ConversionEngine.getShared().orientationOf(panorama));
+                }
+                ConversionEngine.getShared().exportView(source, yaw, pitch, hfov, exportWidth, exportHeight, output);
+                Platform.runLater(() -> stage.setTitle("360JFx - exported " + output.getName()));
+            } catch (IOException | RuntimeException | OutOfMemoryError e) {
+                Platform.runLater(() -> {
+                    stage.setTitle("360JFx");
+                    showError("Cannot export view", e);
+                });
+            }
+        }, "360JFx export");
+        exporter.start();
+    }
+
+    /**
+     * Switches to the next projection, little planet, fisheye and Mercator drawn
+     * over the skybox from the equirectangular image, then back to the skybox.
+     * Cube maps and sequences, without an equirectangular image, only have the skybox.
+     */
+    void cycleProjection()
+    {
+        if (projection == PROJECTIONS.length - 1) {
+            stopProjection("360JFx");
+            return;
+        }
+        File panorama = navigator.getCurrent();
+        try {
+            if (player != null || panorama != null && CubemapInput.detect(panorama) != null) {
+                stage.setTitle("360JFx - projections need an equirectangular panorama");
+                return;
+            }
+        } catch (IOException e) {
+            showError("Cannot open panorama", e);
+            return;
+        }
+        if (projection < 0) {
+            loadProjection(panorama);
+        }
+        projection++;
+        stage.setTitle("360JFx - " + PROJECTION_NAMES[projection]);
+        updateProjection();
+    }
+
+    private void loadProjection(File panorama)
+    {
+        projectionView.load(panorama, error -> {
+            stopProjection("360JFx");
+            showError("Cannot open panorama", error);
+        });
+    }
+
+    private void stopProjection(String title)
+    {
+        projection = -1;
+        projectionView.clear();
+        stage.setTitle(title);
+    }
+
+    /**
+     * Requests the view of the current projection from the angles and zoom of the
+     * skybox: the little planet looks at the nadir, dragging turns the planet
+     */
+    void updateProjection()
+    {
+        int width = (int) view3D.getWidth();
+        int height = (int) view3D.getHeight();
+        if (projection < 0 || width <= 0 || height <= 0) {
+            return;
+        }
+        Projection p = PROJECTIONS[projection];
+        double maxFov = p.isValidFov(p.getMaxFov()) ? p.getMaxFov() : p.getMaxFov() - 10;
+        double hfov = Math.min(PROJECTION_FOVS[projection] * FOV.get() / 60, maxFov);
+        double pitch = -anglex.get() - (p == Projection.STEREOGRAPHIC ? 90 : 0);
+        projectionView.show(new ViewSpec(angley.get(), pitch, 0, hfov, width, height,
+                ViewSpec.Interpolation.BILINEAR, p));
+    }
+
+    /**
+     * Converts the faces to JavaFX images, returning each BufferedImage to the
+     * buffer pool once it is converted
+     */
+    static Image[] toFXImages(BufferedImage[] images)
+    {
+        Image[] imagesFx = new Image[images.length];
+
+        for (int i = 0; i < images.length; i++)
+        {
+            imagesFx[i] = SwingFXUtils.toFXImage(images[i], null);
+            EquirectangularToCubic.releaseImages(images[i]);
+            images[i] = null;
+        }
+        return imagesFx;
+    }
+
+    /**
+     * Replaces the faces of the sky, keeping the current view angles and FOV
+     */
+    void showSkybox(Image[] images)
+    {
+        skyboxImagesFx = images;
+        hud.skyboxShown(images);
+        sky = new Skybox(skyboxImagesFx[4],
+                skyboxImagesFx[5],
+                skyboxImagesFx[3],
+                skyboxImagesFx[1],
+                skyboxImagesFx[0],
+                skyboxImagesFx[2],
+                1000, camera);
+        while (atlas.getChildren().size() > 0) atlas.getChildren().remove(0);
+        atlas.getChildren().add(sky);
+        if (!firstFrameTracked) {
+            trackFirstFrame();
+        }
+    }
+
+    /**
+     * Plays the numbered equirectangular images of a directory as a timelapse.
+     * The frame rate is set by the property 360jfx.fps (10 by default).
+     */
+    public void playSequence(File directory) {
+        stopSequence();
+        if (projection >= 0) {
+            stopProjection("360JFx - projections are not available for sequences");
+        }
+        prefetcher.clear();
+        List<File> frames = SequencePlayer.listSequence(directory);
+        if (frames.isEmpty()) {
+            System.out.printf("No images in directory: %s\n", directory);
+            return;
+        }
+        ConversionEngine engine = ConversionEngine.getShared();
+        if (engine.getMappingCache() == null) {
+            // all the frames of a sequence share the same geometry, the tables are dropped by stopSequence
+            engine.setMappingTables(true, false, 512L << 20);
+            sequenceMappingTables = true;
+        }
+        double frameRate = Double.parseDouble(System.getProperty("360jfx.fps", "10"));
+        System.out.printf("Playing %d images from %s at %.1f fps\n", frames.size(), directory, frameRate);
+        player = new SequencePlayer(frames, frameRate, engine, images -> {
+            showSkybox(images);
+            stage.setTitle(String.format("360JFx - %s - %.1f fps, %d dropped", directory.getName(),
+                    player.getSustainedFps(), player.getDroppedFrames()));
+        });
+        player.start();
+    }
+
+    void stopSequence() {
+        if (player != null) {
+            player.stop();
+            player = null;
+            stage.setTitle("360JFx");
+        }
+        if (sequenceMappingTables) {
+            ConversionEngine.getShared().setMappingTables(false, false, 0);
+            sequenceMappingTables = false;
+        }
+    }
+
+    private static void configureFileChooser(
+            final FileChooser fileChooser) {
+        fileChooser.setTitle("Select Panorama");
+        fileChooser.setInitialDirectory(new File(System.getProperty("user.home"))
+        );
+        fileChooser.getExtensionFilters().addAll(
+                new FileChooser.ExtensionFilter("All Files", "*.*"),
+                new FileChooser.ExtensionFilter("JPG", new ArrayList<String>(Arrays.asList("*.jpg", "*.jpeg","*.JPG","*.JPEG","*.Jpg","*.Jpeg"))),
+                new FileChooser.ExtensionFilter("PNG", new ArrayList<String>(Arrays.asList("*.png", "*.PNG")))
+        );
+    }
+
+    public static void main(String[] args) {
+        // another launch hands its files to the running viewer, the benchmarks need their own
+        if (Boolean.parseBoolean(System.getProperty("360jfx.singleInstance", "true"))
+                && !Boolean.getBoolean("360jfx.exitAfterFirstFrame")) {
+            List<File> files = Arrays.stream(args).filter(arg -> !arg.startsWith("--"))
+                    .map(File::new).collect(Collectors.toList());
+            instance = SingleInstance.claim(new File(System.getProperty("user.home"), ".360jfx"), files);
+            if (instance == null) {
+                System.out.println("Files sent to the running viewer");
+                return;
+            }
+        }
+        launch(args);
+    }
+}
@@ -0,0 +1,72 @@
+/**
+ * 360JFx: multi-platform visualizer of 360 pictures
+ * Copyright (C) 2020  Alessandro Bruno
+ * See the LICENSE file
+*/
+
+package de.alebruno.App360JFx;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Keeps track of the panorama being shown among the images of its directory,
+ * to step to the next and previous one.
+ *
+ * @author Alessandro Bruno
+ */
+public class PanoramaNavigator {
+
+    private List<File> siblings = new ArrayList<>();
+    private int index = -1;
+
+    static boolean isImageFile(File file) {
+        return file.isFile() && file.getName().toLowerCase().matches(".*\\.(jpe?g|png)$");
+    }
+
+    /**
+     * Sets the panorama being shown, listing its directory again if it changed
+     */
+    public void setCurrent(File file) {
+        file = file.getAbsoluteFile();
+        index = siblings.indexOf(file);
+        if (index < 0) {
+            File[] files = file.getParentFile().listFiles(PanoramaNavigator::isImageFile);
+            siblings = files == null ? new ArrayList<>() : new ArrayList<>(Arrays.asList(files));
+            siblings.sort(null);
+            index = siblings.indexOf(file);
+            if (index < 0) {
+                siblings.add(file);
+                index = siblings.size() - 1;
+            }
+        }
+    }
+
+    /**
+     * Returns the images of the directory of the current one, sorted by name
+     */
+    public List<File> getFiles() {
+        return Collections.unmodifiableList(siblings);
+    }
+
+    public File getCurrent() {
+        return index < 0 ? null : siblings.get(index);
+    }
+
+    /**
+     * Returns the image after the current one, wrapping around, or null
+     */
+    public File getNext() {
+        return siblings.size() < 2 ? null : siblings.get((index + 1) % siblings.size());
+    }
+
+    /**
+     * Returns the image before the current one, wrapping around, or null
+     */
+    public File getPrevious() {
+        return siblings.size() < 2 ? null : siblings.get((index - 1 + siblings.size()) % siblings.size());
+    }
+}
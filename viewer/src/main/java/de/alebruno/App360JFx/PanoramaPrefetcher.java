@@ -0,0 +1,212 @@
+/**
+ * 360JFx: multi-platform visualizer of 360 pictures
+ * Copyright (C) 2020  Alessandro Bruno
+ * See the LICENSE file
+*/
+
+package de.alebruno.App360JFx;
+
+import com.Equi2Rect.ConversionEngine;
+import com.Equi2Rect.CubemapInput;
+import com.Equi2Rect.EquirectangularToCubic;
+import com.Equi2Rect.MemoryBudget;
+import javafx.scene.image.Image;
+
+import java.awt.Dimension;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decodes and converts the neighbours of the current panorama in the background,
+ * so that stepping to the next or previous image shows it immediately.
+ * Prefetching runs one panorama at a time on its own engine, whose few low
+ * priority workers do not take the threads or the conversion permits of the
+ * engine opening the panoramas, and only starts while the estimated size of
+ * the cached faces fits in the memory budget. The panoramas are converted
+ * within the same memory budget as a direct open, so that their faces are the
+ * same. Entries that are no longer neighbours of the current panorama are
+ * cancelled and released.
+ *
+ * @author Alessandro Bruno
+ */
+public class PanoramaPrefetcher {
+
+    private final ConversionEngine engine;
+    private final long budgetBytes;
+    private final long conversionBudgetBytes;
+    private final ExecutorService executor;
+    private final Map<File, Entry> entries = new HashMap<>();
+
+    /**
+     * @param foreground The engine opening the panoramas, whose settings are used
+     * @param budgetBytes Memory the prefetched faces may use
+     * @param conversionBudgetBytes Memory budget of the conversion of each panorama, see {@link MemoryBudget}
+     */
+    public PanoramaPrefetcher(ConversionEngine foreground, long budgetBytes, long conversionBudgetBytes) {
+        ForkJoinPool workers = new ForkJoinPool(Math.max(1, Runtime.getRuntime().availableProcessors() / 4),
+                pool -> {
+                    ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                    thread.setName("360JFx prefetch worker " + thread.getPoolIndex());
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    return thread;
+                }, null, false);
+        this.engine = new ConversionEngine(workers, 1);
+        engine.setVerboseMode(false);
+        engine.setBandRows(foreground.getBandRows());
+        engine.setSourceStorage(foreground.getSourceStorage());
+        engine.setMaxInterpolationError(foreground.getMaxInterpolationError());
+        // the faces are given back to the pool of the foreground engine by GUI360JFx.toFXImages
+        engine.setBufferPool(foreground.getBufferPool());
+        this.budgetBytes = budgetBytes;
+        this.conversionBudgetBytes = conversionBudgetBytes;
+        this.executor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "360JFx prefetch");
+                    thread.setDaemon(true);
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    return thread;
+                });
+    }
+
+    /**
+     * Returns the faces of a prefetched panorama, or null if it was not prefetched.
+     * A prefetch still running is cancelled rather than waited for on the JavaFX
+     * thread: the panorama is then converted by the caller at normal priority.
+     */
+    public Image[] take(File file) throws IOException {
+        Future<Image[]> future;
+        synchronized (this) {
+            Entry entry = entries.get(file.getAbsoluteFile());
+            if (entry == null) {
+                return null;
+            }
+            future = entry.future;
+            if (!future.isDone()) {
+                future.cancel(true);
+                entries.remove(file.getAbsoluteFile());
+                return null;
+            }
+        }
+        try {
+            return future.get();
+        } catch (CancellationException e) {
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for " + file);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() :
+                    new IOException("Cannot open " + file + ": " + e.getCause(), e.getCause());
+        }
+    }
+
+    /**
+     * Keeps the faces of the panorama being shown and prefetches its neighbours.
+     * Everything else is cancelled and released.
+     * @param current The panorama being shown
+     * @param currentImages Its faces, kept to step back to it
+     * @param neighbours The panoramas to prefetch
+     */
+    public synchronized void retain(File current, Image[] currentImages, List<File> neighbours) {
+        current = current.getAbsoluteFile();
+        Set<File> keep = new LinkedHashSet<>();
+        keep.add(current);
+        for (File neighbour : neighbours) {
+            keep.add(neighbour.getAbsoluteFile());
+        }
+        Iterator<Map.Entry<File, Entry>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<File, Entry> e = it.next();
+            if (!keep.contains(e.getKey())) {
+                e.getValue().future.cancel(true);
+                it.remove();
+            }
+        }
+        if (currentImages != null) {
+            entries.put(current, new Entry(CompletableFuture.completedFuture(currentImages),
+                    estimateBytes(currentImages)));
+        }
+        for (File neighbour : keep) {
+            if (entries.containsKey(neighbour)) {
+                continue;
+            }
+            long bytes;
+            try {
+                bytes = estimateBytes(EquirectangularToCubic.readImageSize(neighbour));
+            } catch (IOException e) {
+                continue;
+            }
+            if (retainedBytes() + bytes > budgetBytes) {
+                continue;
+            }
+            entries.put(neighbour, new Entry(executor.submit(() -> convert(neighbour)), bytes));
+        }
+    }
+
+    /**
+     * Cancels every prefetch and releases the cached faces
+     */
+    public synchronized void clear() {
+        for (Entry entry : entries.values()) {
+            entry.future.cancel(true);
+        }
+        entries.clear();
+    }
+
+    // as GUI360JFx.openPanoramaImage(File)
+    private Image[] convert(File file) throws IOException {
+        if (CubemapInput.detect(file) != null) {
+            return GUI360JFx.toFXImages(engine.convert(file));
+        }
+        return GUI360JFx.toFXImages(engine.convert(file, MemoryBudget.plan(file, conversionBudgetBytes, 4)));
+    }
+
+    private long retainedBytes() {
+        long bytes = 0;
+        for (Entry entry : entries.values()) {
+            bytes += entry.bytes;
+        }
+        return bytes;
+    }
+
+    // six faces of about width / pi pixels, 4 bytes per pixel
+    static long estimateBytes(Dimension equiSize) {
+        long face = (long) (equiSize.width / Math.PI) + 2;
+        return 6L * 4L * face * face;
+    }
+
+    static long estimateBytes(Image[] faces) {
+        long bytes = 0;
+        for (Image face : faces) {
+            bytes += 4L * (long) face.getWidth() * (long) face.getHeight();
+        }
+        return bytes;
+    }
+
+    private static final class Entry {
+        final Future<Image[]> future;
+        final long bytes;
+
+        Entry(Future<Image[]> future, long bytes) {
+            this.future = future;
+            this.bytes = bytes;
+        }
+    }
+}
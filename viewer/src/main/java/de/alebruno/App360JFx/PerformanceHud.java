@@ -0,0 +1,276 @@
+/**
+ * 360JFx: multi-platform visualizer of 360 pictures
+ * Copyright (C) 2020  Alessandro Bruno
+ * See the LICENSE file
+*/
+
+package de.alebruno.App360JFx;
+
+import com.Equi2Rect.ConversionEngine;
+import com.Equi2Rect.ConversionTimings;
+import com.Equi2Rect.PixelBufferPool;
+import com.sun.management.GarbageCollectionNotificationInfo;
+import javafx.animation.AnimationTimer;
+import javafx.scene.Node;
+import javafx.scene.control.Label;
+import javafx.scene.image.Image;
+
+import javax.management.NotificationEmitter;
+import javax.management.openmbean.CompositeData;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Overlay of the viewer showing where the time goes: pulse interval and fps,
+ * the stages of the last open (decode, extract, projection of each face,
+ * conversion to JavaFX images, first frame with the new textures), size of the
+ * faces and of their textures, reuse of the pixel buffers, heap and garbage collections. The text is updated
+ * four times per second; while the overlay is hidden and no trace is written,
+ * its timer is stopped and it costs nothing.
+ * <p>
+ * With a trace file, one CSV line is appended per pulse and per open, for later
+ * analysis, whether the overlay is shown or not.
+ *
+ * @author Alessandro Bruno
+ */
+public class PerformanceHud {
+
+    private static final int FRAMES = 240;
+    private static final long UPDATE_NANOS = 250_000_000L;
+
+    private final Label label = new Label();
+    private final long[] frameNanos = new long[FRAMES];
+    private int frameCount;
+    private long lastPulse;
+    private long lastUpdate;
+    private final PrintWriter trace;
+    private final String tracePath;
+    private final AtomicLong gcCount = new AtomicLong();
+    private final AtomicLong gcMillis = new AtomicLong();
+    private final AtomicLong gcLastMillis = new AtomicLong();
+    private final AtomicLong gcMaxMillis = new AtomicLong();
+    private boolean gcListening;
+
+    // last open, its first frame is measured at the second pulse after the faces are shown
+    private String openName;
+    private ConversionTimings openTimings;
+    private long openFxNanos;
+    private long shownAt = -1;
+    private int pulsesSinceShown;
+    private long firstFrameNanos = -1;
+    private boolean openPending;
+    private int faceSize;
+    private long textureBytes;
+
+    private final AnimationTimer timer = new AnimationTimer() {
+        @Override
+        public void handle(long now) {
+            pulse(now);
+        }
+    };
+
+    /**
+     * @param tracePath CSV file the trace is appended to, null for none
+     */
+    public PerformanceHud(String tracePath) throws IOException {
+        this.tracePath = tracePath;
+        label.setStyle("-fx-font-family: monospace; -fx-text-fill: white; " +
+                "-fx-background-color: rgba(0, 0, 0, 0.6); -fx-padding: 6;");
+        label.setMouseTransparent(true);
+        label.relocate(8, 8);
+        label.setVisible(false);
+        if (tracePath != null) {
+            boolean header = !new File(tracePath).exists();
+            trace = new PrintWriter(new FileWriter(tracePath, true));
+            if (header) {
+                trace.println("uptime_ms,event,frame_ms,heap_used_mb,gc_count,gc_ms,name,decode_ms,extract_ms," +
+                        "project_ms,fx_ms,first_frame_ms,face_size,texture_mb,pool_hit_rate,pool_mb");
+            }
+            start();
+        } else {
+            trace = null;
+        }
+    }
+
+    public Node getNode() {
+        return label;
+    }
+
+    /**
+     * Shows or hides the overlay
+     */
+    public void toggle() {
+        label.setVisible(!label.isVisible());
+        if (label.isVisible()) {
+            start();
+            update();
+        } else if (trace == null) {
+            timer.stop();
+            lastPulse = 0;
+        }
+    }
+
+    /**
+     * Records faces just shown, their first frame is measured from now
+     */
+    public void skyboxShown(Image[] faces) {
+        shownAt = System.nanoTime();
+        pulsesSinceShown = 0;
+        faceSize = (int) faces[0].getWidth();
+        textureBytes = PanoramaPrefetcher.estimateBytes(faces);
+    }
+
+    /**
+     * Records the stages of the open of a panorama whose faces were just shown
+     * @param name Shown in the overlay and the trace
+     * @param timings Timings of the conversion, null if the faces were prefetched
+     * @param fxNanos Time spent converting the faces to JavaFX images
+     */
+    public void opened(String name, ConversionTimings timings, long fxNanos) {
+        openName = name;
+        openTimings = timings;
+        openFxNanos = fxNanos;
+        firstFrameNanos = -1;
+        openPending = true;
+    }
+
+    private void start() {
+        if (!gcListening) {
+            gcListening = true;
+            listenToGarbageCollections();
+        }
+        timer.start();
+    }
+
+    private void pulse(long now) {
+        long frame = lastPulse == 0 ? -1 : now - lastPulse;
+        lastPulse = now;
+        if (frame >= 0) {
+            frameNanos[frameCount++ % FRAMES] = frame;
+        }
+        if (shownAt >= 0 && ++pulsesSinceShown == 2) {
+            firstFrameNanos = System.nanoTime() - shownAt;
+            shownAt = -1;
+        }
+        if (trace != null && frame >= 0) {
+            Runtime runtime = Runtime.getRuntime();
+            // numbers with a dot whatever the locale
+            trace.printf(Locale.ROOT, "%d,frame,%.3f,%d,%d,%d%n", ManagementFactory.getRuntimeMXBean().getUptime(),
+                    frame / 1e6, (runtime.totalMemory() - runtime.freeMemory()) >> 20, gcCount.get(),
+                    gcMillis.get());
+        }
+        if (trace != null && openPending && firstFrameNanos >= 0) {
+            traceOpen();
+        }
+        if (openPending && firstFrameNanos >= 0) {
+            openPending = false;
+        }
+        if (now - lastUpdate >= UPDATE_NANOS) {
+            lastUpdate = now;
+            if (label.isVisible()) {
+                update();
+            }
+            if (trace != null) {
+                trace.flush();
+            }
+        }
+    }
+
+    private void traceOpen() {
+        ConversionTimings t = openTimings;
+        PixelBufferPool pool = ConversionEngine.getShared().getBufferPool();
+        trace.printf(Locale.ROOT, "%d,open,,,,,%s,%s,%s,%s,%.1f,%.1f,%d,%d,%.3f,%d%n", ManagementFactory.getRuntimeMXBean().getUptime(),
+                openName.replace(',', ' '), t == null ? "" : t.getDecodeNanos() / 1000000L,
+                t == null ? "" : t.getExtractNanos() / 1000000L, t == null ? "" : t.getProjectNanos() / 1000000L,
+                openFxNanos / 1e6, firstFrameNanos / 1e6, faceSize, textureBytes >> 20, pool.getHitRate(),
+                pool.getRetainedBytes() >> 20);
+    }
+
+    private void update() {
+        // fps over the last second of pulses
+        int n = Math.min(frameCount, FRAMES);
+        long total = 0;
+        long max = 0;
+        int frames = 0;
+        for (int i = 1; i <= n && total < 1_000_000_000L; i++) {
+            long frame = frameNanos[(frameCount - i) % FRAMES];
+            total += frame;
+            max = Math.max(max, frame);
+            frames++;
+        }
+        StringBuilder text = new StringBuilder();
+        text.append(frames == 0 ? "fps -" : String.format("fps %.1f  frame %.1f ms, max %.1f ms",
+                frames * 1e9 / total, total / 1e6 / frames, max / 1e6));
+        if (openName != null) {
+            text.append("\nopen ").append(openName);
+            ConversionTimings t = openTimings;
+            if (t != null) {
+                text.append(String.format("\n  decode %d ms, extract %d ms, %s %d ms",
+                        t.getDecodeNanos() / 1000000L, t.getExtractNanos() / 1000000L,
+                        t.isStreaming() ? "decode+project" : "project", t.getProjectNanos() / 1000000L));
+                if (!t.isCubemap()) {
+                    text.append("\n  faces");
+                    for (int i = 0; i < 6; i++) {
+                        text.append(' ').append(t.getFaceNanos(i) / 1000000L);
+                    }
+                    text.append(" ms");
+                }
+            }
+            text.append(String.format("\n  fx images %d ms, first frame %s", openFxNanos / 1000000L,
+                    firstFrameNanos < 0 ? "-" : firstFrameNanos / 1000000L + " ms"));
+        }
+        if (faceSize > 0) {
+            text.append(String.format("\nfaces %d px, textures %d MB", faceSize, textureBytes >> 20));
+        }
+        text.append('\n').append(ConversionEngine.getShared().getBufferPool());
+        Runtime runtime = Runtime.getRuntime();
+        text.append(String.format("\nheap %d / %d MB, GC %d, %d ms total, last %d ms, max %d ms",
+                (runtime.totalMemory() - runtime.freeMemory()) >> 20, runtime.maxMemory() >> 20,
+                gcCount.get(), gcMillis.get(), gcLastMillis.get(), gcMaxMillis.get()));
+        if (tracePath != null) {
+            text.append("\ntrace ").append(tracePath);
+        }
+        label.setText(text.toString());
+    }
+
+    // durations of the collections, reported by the JVM after each one
+    private void listenToGarbageCollections() {
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            if (!(gc instanceof NotificationEmitter)) {
+                continue;
+            }
+            ((NotificationEmitter) gc).addNotificationListener((notification, handback) -> {
+                if (!notification.getType().equals(GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION)) {
+                    return;
+                }
+                GarbageCollectionNotificationInfo info =
+                        GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData());
+                // the cycles of concurrent collectors run alongside the application
+                if (info.getGcAction().contains("cycle")) {
+                    return;
+                }
+                long millis = info.getGcInfo().getDuration();
+                gcCount.incrementAndGet();
+                gcMillis.addAndGet(millis);
+                gcLastMillis.set(millis);
+                gcMaxMillis.accumulateAndGet(millis, Math::max);
+            }, null, null);
+        }
+    }
+
+    /**
+     * Writes the end of the trace
+     */
+    public void close() {
+        timer.stop();
+        if (trace != null) {
+            trace.close();
+        }
+    }
+}
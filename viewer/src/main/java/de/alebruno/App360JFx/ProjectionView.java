@@ -0,0 +1,215 @@
+/**
+ * 360JFx: multi-platform visualizer of 360 pictures
+ * Copyright (C) 2020  Alessandro Bruno
+ * See the LICENSE file
+*/
+
+package de.alebruno.App360JFx;
+
+import com.Equi2Rect.ConversionEngine;
+import com.Equi2Rect.EquiSource;
+import com.Equi2Rect.EquirectangularToCubic;
+import com.Equi2Rect.ViewSpec;
+import javafx.application.Platform;
+import javafx.scene.Node;
+import javafx.scene.image.ImageView;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.WritableImage;
+
+import javax.imageio.ImageIO;
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.function.Consumer;
+
+/**
+ * Image over the 3D view showing the panorama in a projection the skybox
+ * cannot render (little planet, fisheye, Mercator), drawn from the
+ * equirectangular image at the resolution of the window by
+ * {@link ConversionEngine#renderView}. One thread renders the last requested
+ * view, the requests coming while it renders are coalesced: while the user
+ * drags, the views are interpolated bilinearly, and once idle for REFINE_MILLIS
+ * the last one is drawn again with Lanczos2.
+ * <p>
+ * The panorama is decoded again, at most MAX_SOURCE_WIDTH pixels wide, when the
+ * projection is turned on, and released when it is turned off.
+ *
+ * @author Alessandro Bruno
+ */
+public class ProjectionView {
+
+    private static final int MAX_SOURCE_WIDTH = 8192;
+    private static final long REFINE_MILLIS = 150;
+
+    private final ImageView imageView = new ImageView();
+    private final ConversionEngine engine;
+    private final Object lock = new Object();
+    // buffers not shown yet, one rendered while the other is copied to the image
+    private final BlockingQueue<int[]> buffers = new ArrayBlockingQueue<>(2);
+    private WritableImage image;
+    // guarded by lock
+    private EquiSource source;
+    private ViewSpec pending;
+    private ViewSpec last;
+    // incremented when the panorama changes or the projection is turned off, on the JavaFX thread
+    private volatile int generation;
+
+    public ProjectionView(ConversionEngine engine) {
+        this.engine = engine;
+        imageView.setMouseTransparent(true);
+        imageView.setVisible(false);
+        buffers.add(new int[0]);
+        buffers.add(new int[0]);
+        Thread renderer = new Thread(this::renderViews, "360JFx projection");
+        renderer.setDaemon(true);
+        renderer.start();
+    }
+
+    public Node getNode() {
+        return imageView;
+    }
+
+    /**
+     * Loads the panorama shown in the background, the view is drawn once it is
+     * loaded; leveled as the faces shown
+     * @param panorama The equirectangular image file, null for the bundled sample
+     * @param onError Called on the JavaFX thread if the panorama cannot be loaded
+     */
+    public void load(File panorama, Consumer<Throwable> onError) {
+        int loadGeneration = ++generation;
+        imageView.setVisible(false);
+        synchronized (lock) {
+            source = null;
+        }
+        Thread loader = new Thread(() -> {
+            try {
+                BufferedImage decoded;
+                if (panorama != null) {
+                    Dimension size = EquirectangularToCubic.readImageSize(panorama);
+                    decoded = EquirectangularToCubic.loadImage(panorama,
+                            (size.width + MAX_SOURCE_WIDTH - 1) / MAX_SOURCE_WIDTH);
+                } else {
+                    decoded = ImageIO.read(GUI360JFx.class.getResourceAsStream(GUI360JFx.SAMPLE));
+                }
+                EquiSource loaded = EquiSource.fromImage(decoded, EquiSource.Storage.PACKED_RGB);
+                if (panorama != null) {
+                    loaded.setOrientation(engine.orientationOf(panorama));
+                }
+                synchronized (lock) {
+                    if (loadGeneration != generation) {
+                        return;
+                    }
+                    source = loaded;
+                    pending = last;
+                    lock.notifyAll();
+                }
+            } catch (IOException | RuntimeException | OutOfMemoryError e) {
+                Platform.runLater(() -> {
+                    if (loadGeneration == generation) {
+                        onError.accept(e);
+                    }
+                });
+            }
+        }, "360JFx projection loader");
+        loader.setDaemon(true);
+        loader.start();
+    }
+
+    /**
+     * Requests the view to show, drawn as soon as the previous one is done
+     */
+    public void show(ViewSpec view) {
+        synchronized (lock) {
+            last = view;
+            pending = view;
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Hides the view and releases the panorama
+     */
+    public void clear() {
+        generation++;
+        imageView.setVisible(false);
+        imageView.setImage(null);
+        image = null;
+        synchronized (lock) {
+            source = null;
+            pending = null;
+            last = null;
+        }
+    }
+
+    private void renderViews() {
+        // last view interpolated bilinearly, drawn again with Lanczos2 once idle
+        ViewSpec draft = null;
+        while (true) {
+            ViewSpec view;
+            EquiSource viewSource;
+            int viewGeneration;
+            synchronized (lock) {
+                try {
+                    if (pending == null && draft != null) {
+                        lock.wait(REFINE_MILLIS);
+                    }
+                    if (pending == null && draft != null && draft == last) {
+                        view = new ViewSpec(draft.getYaw(), draft.getPitch(), draft.getRoll(), draft.getFov(),
+                                draft.getWidth(), draft.getHeight(), ViewSpec.Interpolation.LANCZOS2,
+                                draft.getProjection());
+                        draft = null;
+                    } else {
+                        while (pending == null || source == null) {
+                            lock.wait();
+                        }
+                        view = pending;
+                        draft = pending;
+                    }
+                    pending = null;
+                    viewSource = source;
+                    viewGeneration = generation;
+                    if (viewSource == null) {
+                        continue;
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            int[] pixels;
+            try {
+                pixels = buffers.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            int width = view.getWidth(), height = view.getHeight();
+            try {
+                if (pixels.length < width * height) {
+                    pixels = new int[width * height];
+                }
+                engine.renderView(viewSource, view, pixels);
+                int[] frame = pixels;
+                Platform.runLater(() -> showFrame(frame, width, height, viewGeneration));
+            } catch (IOException | RuntimeException | OutOfMemoryError e) {
+                buffers.add(pixels);
+                System.out.println("Cannot render view: " + e);
+            }
+        }
+    }
+
+    // copies a rendered view to the image, on the JavaFX thread
+    private void showFrame(int[] pixels, int width, int height, int frameGeneration) {
+        if (frameGeneration == generation) {
+            if (image == null || (int) image.getWidth() != width || (int) image.getHeight() != height) {
+                image = new WritableImage(width, height);
+                imageView.setImage(image);
+            }
+            image.getPixelWriter().setPixels(0, 0, width, height, PixelFormat.getIntArgbInstance(), pixels, 0,
+                    width);
+            imageView.setVisible(true);
+        }
+        buffers.add(pixels);
+    }
+}
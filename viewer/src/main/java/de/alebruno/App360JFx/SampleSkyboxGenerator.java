@@ -0,0 +1,86 @@
+/**
+ * 360JFx: multi-platform visualizer of 360 pictures
+ * Copyright (C) 2020  Alessandro Bruno
+ * See the LICENSE file
+*/
+
+package de.alebruno.App360JFx;
+
+import com.Equi2Rect.ConversionEngine;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Converts the bundled sample panorama into its six cube faces at build time
+ * (process-classes phase, see pom.xml), so that the viewer shows the sample at
+ * startup without decoding and converting it.
+ * <p>
+ * Usage: SampleSkyboxGenerator sample.jpg outputDirectory
+ *
+ * @author Alessandro Bruno
+ */
+public class SampleSkyboxGenerator {
+
+    static final float FACE_QUALITY = 0.92f;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            throw new IllegalArgumentException("Usage: SampleSkyboxGenerator sample.jpg outputDirectory");
+        }
+        System.setProperty("java.awt.headless", "true");
+        File sample = new File(args[0]);
+        File directory = new File(args[1]);
+        if (upToDate(sample, directory)) {
+            return;
+        }
+        directory.mkdirs();
+        BufferedImage image = ImageIO.read(sample);
+        if (image == null) {
+            throw new IOException("Cannot decode " + sample);
+        }
+        BufferedImage[] faces;
+        try (ConversionEngine engine = new ConversionEngine()) {
+            engine.setVerboseMode(false);
+            faces = engine.convert(image);
+        }
+        for (int i = 0; i < faces.length; i++) {
+            writeJpeg(faces[i], faceFile(directory, i));
+        }
+        System.out.printf("Sample faces of %d px written to %s%n", faces[0].getWidth(), directory);
+    }
+
+    static File faceFile(File directory, int face) {
+        return new File(directory, String.format(GUI360JFx.SAMPLE_FACE_NAME, face));
+    }
+
+    private static boolean upToDate(File sample, File directory) {
+        for (int i = 0; i < 6; i++) {
+            File face = faceFile(directory, i);
+            if (!face.exists() || face.lastModified() < sample.lastModified()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void writeJpeg(BufferedImage face, File file) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpg").next();
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        param.setCompressionQuality(FACE_QUALITY);
+        file.delete();
+        try (ImageOutputStream out = ImageIO.createImageOutputStream(file)) {
+            writer.setOutput(out);
+            writer.write(null, new IIOImage(face, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+    }
+}
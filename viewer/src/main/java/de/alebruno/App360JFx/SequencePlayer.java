@@ -0,0 +1,282 @@
+/**
+ *     360JFx: multi-platform visualizer of 360 pictures
+ *     Copyright (C) 2020  Alessandro Bruno
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package de.alebruno.App360JFx;
+
+import com.Equi2Rect.ConversionEngine;
+import com.Equi2Rect.EquirectangularToCubic;
+import javafx.animation.AnimationTimer;
+import javafx.scene.image.Image;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Plays a numbered sequence of equirectangular images (e.g. a timelapse) at a
+ * target frame rate. Decoding, cube conversion and display run as a pipeline:
+ * a decoder thread, a converter thread and a small ring buffer of converted
+ * frames consumed by an AnimationTimer. The stages block once the ring is full,
+ * so that they run at most RING_SIZE frames ahead of the playback clock. When a
+ * stage falls behind it, the frames whose tick has passed are dropped instead of
+ * stalling the pipeline.
+ * The sequence loops until {@link #stop()} is called.
+ *
+ * @author Alessandro Bruno
+ */
+public class SequencePlayer {
+
+    static final int RING_SIZE = 3;
+    private static final long FPS_WINDOW_NANOS = 2_000_000_000L;
+    private static final Pattern FRAME_NUMBER = Pattern.compile("(\\d+)\\D*$");
+
+    private final List<File> frames;
+    private final long frameNanos;
+    private final ConversionEngine engine;
+    private final Consumer<Image[]> display;
+
+    private final ArrayBlockingQueue<DecodedFrame> decoded = new ArrayBlockingQueue<>(1);
+    private final ArrayBlockingQueue<ConvertedFrame> ring = new ArrayBlockingQueue<>(RING_SIZE);
+    private final AtomicLong droppedFrames = new AtomicLong();
+    private final ArrayDeque<Long> displayTimes = new ArrayDeque<>();
+    private final AnimationTimer timer;
+
+    private volatile boolean running;
+    private volatile long startNanos;
+    private volatile long pausedAt = -1;
+    private Thread decodeThread;
+    private Thread convertThread;
+
+    /**
+     * @param frames The images of the sequence, in playback order
+     * @param frameRate Target frame rate in frames per second
+     * @param engine The engine converting the frames
+     * @param display Called on the JavaFX thread with the six faces of each frame to show
+     */
+    public SequencePlayer(List<File> frames, double frameRate, ConversionEngine engine, Consumer<Image[]> display) {
+        if (frames.isEmpty()) {
+            throw new IllegalArgumentException("Empty image sequence");
+        }
+        this.frames = new ArrayList<>(frames);
+        this.frameNanos = (long) (1_000_000_000L / frameRate);
+        this.engine = engine;
+        this.display = display;
+        this.timer = new AnimationTimer() {
+            @Override
+            public void handle(long now) {
+                showDueFrame(now);
+            }
+        };
+    }
+
+    /**
+     * Lists the images of a directory sorted by the number at the end of their name
+     */
+    public static List<File> listSequence(File directory) {
+        File[] files = directory.listFiles((dir, name) -> name.toLowerCase().matches(".*\\.(jpe?g|png)$"));
+        if (files == null) {
+            return new ArrayList<>();
+        }
+        Arrays.sort(files, Comparator.comparingLong(SequencePlayer::frameNumber).thenComparing(File::getName));
+        return new ArrayList<>(Arrays.asList(files));
+    }
+
+    private static long frameNumber(File file) {
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        Matcher matcher = FRAME_NUMBER.matcher(dot > 0 ? name.substring(0, dot) : name);
+        if (matcher.find() && matcher.group(1).length() < 19) {
+            return Long.parseLong(matcher.group(1));
+        }
+        return Long.MAX_VALUE;
+    }
+
+    public void start() {
+        running = true;
+        startNanos = System.nanoTime();
+        decodeThread = new Thread(this::decodeLoop, "360JFx sequence decoder");
+        convertThread = new Thread(this::convertLoop, "360JFx sequence converter");
+        decodeThread.setDaemon(true);
+        convertThread.setDaemon(true);
+        decodeThread.start();
+        convertThread.start();
+        timer.start();
+    }
+
+    public void stop() {
+        running = false;
+        timer.stop();
+        if (decodeThread != null) decodeThread.interrupt();
+        if (convertThread != null) convertThread.interrupt();
+        decoded.clear();
+        ring.clear();
+    }
+
+    public boolean isPaused() {
+        return pausedAt >= 0;
+    }
+
+    /**
+     * Pauses or resumes the playback clock: the pipeline fills up and waits
+     */
+    public void togglePause() {
+        if (isPaused()) {
+            startNanos += System.nanoTime() - pausedAt;
+            pausedAt = -1;
+            timer.start();
+        } else {
+            pausedAt = System.nanoTime();
+            timer.stop();
+        }
+    }
+
+    public int getFrameCount() {
+        return frames.size();
+    }
+
+    /**
+     * Returns the number of frames skipped since the start of the playback
+     */
+    public long getDroppedFrames() {
+        return droppedFrames.get();
+    }
+
+    /**
+     * Returns the frame rate actually displayed over the last two seconds
+     */
+    public double getSustainedFps() {
+        synchronized (displayTimes) {
+            if (displayTimes.size() < 2) {
+                return 0.0;
+            }
+            return (displayTimes.size() - 1) * 1e9 / (displayTimes.getLast() - displayTimes.getFirst());
+        }
+    }
+
+    // number of frame periods elapsed since the start, not counting the pauses
+    private long currentTick() {
+        long paused = pausedAt;
+        long now = paused >= 0 ? paused : System.nanoTime();
+        return (now - startNanos) / frameNanos;
+    }
+
+    private void decodeLoop() {
+        long next = 0;
+        try {
+            while (running) {
+                long due = currentTick();
+                if (next < due) {
+                    // the decoder is late: skip directly to the frame due now
+                    droppedFrames.addAndGet(due - next);
+                    next = due;
+                }
+                File file = frames.get((int) (next % frames.size()));
+                try {
+                    decoded.put(new DecodedFrame(next, EquirectangularToCubic.loadImage(file)));
+                } catch (IOException e) {
+                    System.out.println(e);
+                    droppedFrames.incrementAndGet();
+                }
+                next++;
+            }
+        } catch (InterruptedException e) {
+            // stopped
+        }
+    }
+
+    private void convertLoop() {
+        try {
+            while (running) {
+                DecodedFrame frame = decoded.take();
+                // a frame arriving after its tick is still shown, unless a newer one is ready:
+                // with decodes slower than the frame period every frame arrives late
+                if (frame.tick < currentTick() && decoded.peek() != null) {
+                    droppedFrames.incrementAndGet();
+                    continue;
+                }
+                BufferedImage[] faces;
+                try {
+                    faces = engine.convert(frame.image);
+                } catch (IOException e) {
+                    if (Thread.currentThread().isInterrupted()) return;
+                    System.out.println(e);
+                    droppedFrames.incrementAndGet();
+                    continue;
+                }
+                // waits for the display to take the frames before it
+                ring.put(new ConvertedFrame(frame.tick, GUI360JFx.toFXImages(faces)));
+            }
+        } catch (InterruptedException e) {
+            // stopped
+        }
+    }
+
+    // Called by the AnimationTimer on the JavaFX thread: shows the last frame whose
+    // tick has come, the frames before it were overtaken by the clock
+    private void showDueFrame(long now) {
+        long due = currentTick();
+        ConvertedFrame show = null;
+        ConvertedFrame head;
+        while ((head = ring.peek()) != null && head.tick <= due) {
+            ring.poll();
+            if (show != null) droppedFrames.incrementAndGet();
+            show = head;
+        }
+        if (show == null) {
+            return;
+        }
+        synchronized (displayTimes) {
+            displayTimes.addLast(now);
+            while (now - displayTimes.getFirst() > FPS_WINDOW_NANOS) {
+                displayTimes.removeFirst();
+            }
+        }
+        display.accept(show.faces);
+    }
+
+    private static final class DecodedFrame {
+        final long tick;
+        final BufferedImage image;
+
+        DecodedFrame(long tick, BufferedImage image) {
+            this.tick = tick;
+            this.image = image;
+        }
+    }
+
+    private static final class ConvertedFrame {
+        final long tick;
+        final Image[] faces;
+
+        ConvertedFrame(long tick, Image[] faces) {
+            this.tick = tick;
+            this.faces = faces;
+        }
+    }
+}
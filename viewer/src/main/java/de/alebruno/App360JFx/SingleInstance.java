@@ -0,0 +1,224 @@
+/**
+ * 360JFx: multi-platform visualizer of 360 pictures
+ * Copyright (C) 2020  Alessandro Bruno
+ * See the LICENSE file
+*/
+
+package de.alebruno.App360JFx;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Keeps a single viewer per user: the first one holds a lock file and listens
+ * on a loopback port written next to it with a random token, and the next
+ * launches send their file arguments there and exit instead of starting
+ * another JVM and JavaFX toolkit. The files are then opened by the running
+ * viewer, whose JIT and caches are already warm. The files are accepted as
+ * soon as the lock is taken, and kept until the viewer is ready to open them.
+ *
+ * @author Alessandro Bruno
+ */
+public class SingleInstance implements Closeable {
+
+    static final int TIMEOUT_MILLIS = 2000;
+    static final String ACCEPTED = "OK";
+
+    private final Path portFile;
+    private final FileChannel lockChannel;
+    private final FileLock lock;
+    private final ServerSocket server;
+    private final String token;
+    // files received before listen
+    private final List<List<File>> pending = new ArrayList<>();
+    private Consumer<List<File>> consumer;
+
+    private SingleInstance(Path portFile, FileChannel lockChannel, FileLock lock) throws IOException {
+        this.portFile = portFile;
+        this.lockChannel = lockChannel;
+        this.lock = lock;
+        byte[] random = new byte[16];
+        new SecureRandom().nextBytes(random);
+        StringBuilder hex = new StringBuilder();
+        for (byte b : random) {
+            hex.append(String.format("%02x", b));
+        }
+        token = hex.toString();
+        server = new ServerSocket(0, 16, InetAddress.getLoopbackAddress());
+        // only the user can read the token
+        Path temporary = portFile.resolveSibling(portFile.getFileName() + ".tmp");
+        Files.deleteIfExists(temporary);
+        try {
+            Files.createFile(temporary, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        } catch (UnsupportedOperationException e) {
+            Files.createFile(temporary);
+        }
+        Files.write(temporary, (server.getLocalPort() + "\n" + token + "\n").getBytes(StandardCharsets.UTF_8));
+        Files.move(temporary, portFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        Thread listener = new Thread(this::accept, "360JFx single instance");
+        listener.setDaemon(true);
+        listener.start();
+    }
+
+    /**
+     * Becomes the running viewer of the user, or hands the files over to it.
+     * Returns null if the files were accepted by the running viewer, and this
+     * launch should exit.
+     * The returned instance already accepts the files of the next launches, and
+     * keeps them until {@link #listen(Consumer)} is called; it is an instance that
+     * does not listen at all if the directory of the lock cannot be used.
+     */
+    public static SingleInstance claim(File directory, List<File> files) {
+        try {
+            Files.createDirectories(directory.toPath());
+            Path portFile = directory.toPath().resolve("instance");
+            FileChannel channel = FileChannel.open(directory.toPath().resolve("instance.lock"),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            // the lock decides between simultaneous launches, and is released if the viewer dies
+            FileLock lock = channel.tryLock();
+            if (lock != null) {
+                return new SingleInstance(portFile, channel, lock);
+            }
+            channel.close();
+            // the running viewer may be writing its port
+            long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+            while (true) {
+                try {
+                    send(portFile, files);
+                    return null;
+                } catch (IOException e) {
+                    if (System.currentTimeMillis() > deadline) {
+                        throw e;
+                    }
+                    Thread.sleep(50);
+                }
+            }
+        } catch (IOException | InterruptedException e) {
+            System.out.println("Single instance: " + e + ", starting a new viewer");
+            return new SingleInstance();
+        }
+    }
+
+    // not single instance
+    private SingleInstance() {
+        portFile = null;
+        lockChannel = null;
+        lock = null;
+        server = null;
+        token = null;
+    }
+
+    private static void send(Path portFile, List<File> files) throws IOException {
+        List<String> lines = Files.readAllLines(portFile, StandardCharsets.UTF_8);
+        if (lines.size() < 2) {
+            throw new IOException("incomplete " + portFile);
+        }
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(),
+                    Integer.parseInt(lines.get(0).trim())), TIMEOUT_MILLIS);
+            socket.setSoTimeout(TIMEOUT_MILLIS);
+            Writer out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+            out.write(lines.get(1).trim() + "\n");
+            // the working directory of the running viewer is another one
+            for (File file : files) {
+                out.write(file.getAbsolutePath() + "\n");
+            }
+            out.write("\n");
+            out.flush();
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            if (!ACCEPTED.equals(in.readLine())) {
+                throw new IOException("files refused by the running viewer");
+            }
+        } catch (NumberFormatException e) {
+            throw new IOException("invalid port in " + portFile);
+        }
+    }
+
+    /**
+     * Passes the files sent by the next launches to the consumer, once per launch:
+     * first those received so far, then the others from a background thread
+     */
+    public void listen(Consumer<List<File>> consumer) {
+        // in the order received, before the files of the background thread
+        synchronized (this) {
+            this.consumer = consumer;
+            pending.forEach(consumer);
+            pending.clear();
+        }
+    }
+
+    private void accept() {
+        while (!server.isClosed()) {
+            try (Socket socket = server.accept()) {
+                socket.setSoTimeout(TIMEOUT_MILLIS);
+                List<File> files = receive(socket);
+                if (files == null) {
+                    continue;
+                }
+                Consumer<List<File>> target;
+                synchronized (this) {
+                    target = consumer;
+                    if (target == null) {
+                        pending.add(files);
+                    }
+                }
+                if (target != null) {
+                    target.accept(files);
+                }
+            } catch (IOException e) {
+                if (!server.isClosed()) {
+                    System.out.println("Single instance: " + e);
+                }
+            }
+        }
+    }
+
+    private List<File> receive(Socket socket) throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+        // other local users can connect too
+        if (!token.equals(in.readLine())) {
+            return null;
+        }
+        List<File> files = new ArrayList<>();
+        String line;
+        while ((line = in.readLine()) != null && !line.isEmpty()) {
+            files.add(new File(line));
+        }
+        Writer out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+        out.write(ACCEPTED + "\n");
+        out.flush();
+        return files;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (server == null) {
+            return;
+        }
+        server.close();
+        Files.deleteIfExists(portFile);
+        lock.release();
+        lockChannel.close();
+    }
+}
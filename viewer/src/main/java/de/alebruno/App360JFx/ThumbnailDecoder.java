@@ -0,0 +1,244 @@
+/**
+ * 360JFx: multi-platform visualizer of 360 pictures
+ * Copyright (C) 2020  Alessandro Bruno
+ * See the LICENSE file
+*/
+
+package de.alebruno.App360JFx;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+
+/**
+ * Decodes the thumbnails of panorama files, at most WIDTH x HEIGHT pixels: the
+ * thumbnail embedded in the EXIF or JFIF header when there is one, otherwise the
+ * image decoded with subsampling, so that even very large panoramas are read in
+ * little memory. Decoded thumbnails are kept in a cache directory, keyed by path,
+ * date and size of the file, whose least recently used files are deleted beyond
+ * its size limit.
+ *
+ * @author Alessandro Bruno
+ */
+public class ThumbnailDecoder {
+
+    static final int WIDTH = 192;
+    static final int HEIGHT = WIDTH / 2;
+
+    private final File cacheDirectory;
+    private final long cacheBytes;
+    private long cachedBytes = -1;
+
+    /**
+     * @param cacheDirectory Directory of the cached thumbnails, null for no cache
+     * @param cacheBytes Size limit of the cache directory
+     */
+    public ThumbnailDecoder(File cacheDirectory, long cacheBytes) {
+        this.cacheDirectory = cacheDirectory;
+        this.cacheBytes = cacheBytes;
+    }
+
+    /**
+     * Returns the thumbnail of an image file, from the cache if it was decoded before
+     */
+    public BufferedImage load(File file) throws IOException {
+        File cached = cacheDirectory == null ? null : cacheFile(file);
+        if (cached != null && cached.isFile()) {
+            BufferedImage thumbnail = ImageIO.read(cached);
+            if (thumbnail != null) {
+                cached.setLastModified(System.currentTimeMillis());
+                return thumbnail;
+            }
+        }
+        BufferedImage thumbnail = decode(file);
+        if (cached != null) {
+            try {
+                store(cached, thumbnail);
+            } catch (IOException e) {
+                System.out.println(e);
+            }
+        }
+        return thumbnail;
+    }
+
+    /**
+     * Decodes the thumbnail of an image file, without the cache
+     */
+    static BufferedImage decode(File file) throws IOException {
+        BufferedImage embedded = readExifThumbnail(file);
+        if (embedded != null) {
+            return scale(embedded);
+        }
+        try (ImageInputStream in = ImageIO.createImageInputStream(file)) {
+            Iterator<ImageReader> readers = in == null ? null : ImageIO.getImageReaders(in);
+            if (readers == null || !readers.hasNext()) {
+                throw new IOException("Cannot read image file: " + file);
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in);
+                if (reader.readerSupportsThumbnails() && reader.hasThumbnails(0)
+                        && reader.getThumbnailWidth(0, 0) >= WIDTH / 2) {
+                    return scale(reader.readThumbnail(0, 0));
+                }
+                // decoded at twice the size of the thumbnail at least, then scaled down smoothly
+                int subsampling = Math.max(1, Math.min(reader.getWidth(0) / (2 * WIDTH),
+                        reader.getHeight(0) / (2 * HEIGHT)));
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                return scale(reader.read(0, param));
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * Returns the thumbnail in the EXIF header of a JPEG file (tags 0x201 and 0x202
+     * of the second IFD), or null if there is none
+     */
+    static BufferedImage readExifThumbnail(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readUnsignedShort() != 0xFFD8) {
+                return null;
+            }
+            while (true) {
+                int marker = in.readUnsignedShort();
+                // the header ends at the start of the scan
+                if ((marker & 0xFF00) != 0xFF00 || marker == 0xFFDA) {
+                    return null;
+                }
+                int length = in.readUnsignedShort() - 2;
+                byte[] segment = new byte[Math.max(0, length)];
+                in.readFully(segment);
+                if (marker != 0xFFE1 || length < 14
+                        || !new String(segment, 0, 6, StandardCharsets.ISO_8859_1).equals("Exif\0\0")) {
+                    continue;
+                }
+                ByteBuffer tiff = ByteBuffer.wrap(segment, 6, length - 6).slice();
+                tiff.order(tiff.get(0) == 'I' ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+                int ifd0 = tiff.getInt(4);
+                int ifd1 = tiff.getInt(ifd0 + 2 + 12 * (tiff.getShort(ifd0) & 0xffff));
+                if (ifd1 <= 0) {
+                    return null;
+                }
+                int offset = -1;
+                int size = -1;
+                for (int i = 0; i < (tiff.getShort(ifd1) & 0xffff); i++) {
+                    int entry = ifd1 + 2 + 12 * i;
+                    int tag = tiff.getShort(entry) & 0xffff;
+                    // SHORT or LONG values
+                    int value = tiff.getShort(entry + 2) == 3 ? tiff.getShort(entry + 8) & 0xffff :
+                            tiff.getInt(entry + 8);
+                    if (tag == 0x201) offset = value;
+                    if (tag == 0x202) size = value;
+                }
+                if (offset <= 0 || size <= 0 || offset + size > tiff.limit()) {
+                    return null;
+                }
+                return ImageIO.read(new ByteArrayInputStream(segment, 6 + offset, size));
+            }
+        } catch (EOFException | IndexOutOfBoundsException e) {
+            // truncated or malformed header
+            return null;
+        }
+    }
+
+    /**
+     * Scales an image to fit in WIDTH x HEIGHT, keeping its proportions
+     */
+    static BufferedImage scale(BufferedImage image) {
+        double ratio = Math.min((double) WIDTH / image.getWidth(), (double) HEIGHT / image.getHeight());
+        int width = Math.max(1, (int) Math.round(image.getWidth() * Math.min(1, ratio)));
+        int height = Math.max(1, (int) Math.round(image.getHeight() * Math.min(1, ratio)));
+        BufferedImage thumbnail = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = thumbnail.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+        g.drawImage(image, 0, 0, width, height, null);
+        g.dispose();
+        return thumbnail;
+    }
+
+    private File cacheFile(File file) {
+        File absolute = file.getAbsoluteFile();
+        String key = absolute.getPath() + "\n" + absolute.lastModified() + "\n" + absolute.length();
+        try {
+            StringBuilder name = new StringBuilder();
+            for (byte b : MessageDigest.getInstance("SHA-1").digest(key.getBytes(StandardCharsets.UTF_8))) {
+                name.append(String.format("%02x", b));
+            }
+            return new File(cacheDirectory, name.append(".jpg").toString());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // other viewers sharing the cache never see a partial thumbnail
+    private void store(File cached, BufferedImage thumbnail) throws IOException {
+        Path path = cached.toPath();
+        Files.createDirectories(path.getParent());
+        Path temporary = Files.createTempFile(path.getParent(), ".thumbnail", ".tmp");
+        try {
+            ImageIO.write(thumbnail, "jpg", temporary.toFile());
+            long size = Files.size(temporary);
+            try {
+                Files.move(temporary, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING);
+            }
+            prune(size);
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    // deletes the least recently used thumbnails down to 3/4 of the limit once it is exceeded
+    private synchronized void prune(long added) {
+        File[] files = cacheDirectory.listFiles((directory, name) -> name.endsWith(".jpg"));
+        if (files == null) {
+            return;
+        }
+        if (cachedBytes < 0) {
+            cachedBytes = Arrays.stream(files).mapToLong(File::length).sum();
+        } else {
+            cachedBytes += added;
+        }
+        if (cachedBytes <= cacheBytes) {
+            return;
+        }
+        Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+        for (File file : files) {
+            if (cachedBytes <= cacheBytes * 3 / 4) {
+                break;
+            }
+            long length = file.length();
+            if (file.delete()) {
+                cachedBytes -= length;
+            }
+        }
+    }
+}
@@ -0,0 +1,187 @@
+/**
+ * 360JFx: multi-platform visualizer of 360 pictures
+ * Copyright (C) 2020  Alessandro Bruno
+ * See the LICENSE file
+*/
+
+package de.alebruno.App360JFx;
+
+import javafx.application.Platform;
+import javafx.embed.swing.SwingFXUtils;
+import javafx.geometry.Orientation;
+import javafx.scene.control.ContentDisplay;
+import javafx.scene.control.ListCell;
+import javafx.scene.control.ListView;
+import javafx.scene.image.Image;
+import javafx.scene.image.ImageView;
+import javafx.scene.input.MouseButton;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Filmstrip of the thumbnails of the panoramas of a directory. The list is
+ * virtualized: only the visible cells exist and request their thumbnails, which
+ * are decoded by a few low priority threads, most recent request first. Requests
+ * of cells scrolled out of view are dropped, and at most MAX_PENDING wait, so
+ * scrolling through thousands of files only decodes what is shown.
+ *
+ * @author Alessandro Bruno
+ */
+public class ThumbnailStrip {
+
+    private static final int MAX_PENDING = 64;
+    private static final int MEMORY_ENTRIES = 512;
+
+    private final ThumbnailDecoder decoder;
+    private final ListView<File> view = new ListView<>();
+    // thumbnails shown recently, null for the files that cannot be decoded, used on the JavaFX thread
+    private final Map<File, Image> images = new LinkedHashMap<File, Image>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<File, Image> eldest) {
+            return size() > MEMORY_ENTRIES;
+        }
+    };
+    private final ArrayDeque<File> queue = new ArrayDeque<>();
+    private final Map<File, Consumer<Image>> waiting = new HashMap<>();
+
+    /**
+     * @param decoder Decodes and caches the thumbnails
+     * @param threads Number of decoding threads
+     * @param onChoose Called with the file of a thumbnail clicked
+     */
+    public ThumbnailStrip(ThumbnailDecoder decoder, int threads, Consumer<File> onChoose) {
+        this.decoder = decoder;
+        view.setOrientation(Orientation.HORIZONTAL);
+        view.setFixedCellSize(ThumbnailDecoder.WIDTH + 16);
+        view.setPrefHeight(ThumbnailDecoder.HEIGHT + 56);
+        // the arrow keys step through the panoramas, not the list
+        view.setFocusTraversable(false);
+        view.setCellFactory(list -> new ThumbnailCell(onChoose));
+        for (int i = 0; i < threads; i++) {
+            Thread worker = new Thread(this::decodeThumbnails, "360JFx thumbnails");
+            worker.setDaemon(true);
+            worker.setPriority(Thread.MIN_PRIORITY);
+            worker.start();
+        }
+    }
+
+    public ListView<File> getView() {
+        return view;
+    }
+
+    /**
+     * Lists the files of a directory, selecting and scrolling to the current one
+     */
+    public void show(List<File> files, File current) {
+        if (!view.getItems().equals(files)) {
+            view.getItems().setAll(files);
+        }
+        int index = files.indexOf(current);
+        view.getSelectionModel().clearAndSelect(index);
+        if (index >= 0) {
+            view.scrollTo(Math.max(0, index - 2));
+        }
+    }
+
+    private void request(File file, Consumer<Image> consumer) {
+        synchronized (queue) {
+            waiting.put(file, consumer);
+            queue.remove(file);
+            queue.addFirst(file);
+            if (queue.size() > MAX_PENDING) {
+                waiting.remove(queue.removeLast());
+            }
+            queue.notify();
+        }
+    }
+
+    private void cancel(File file) {
+        synchronized (queue) {
+            if (waiting.remove(file) != null) {
+                queue.remove(file);
+            }
+        }
+    }
+
+    private void decodeThumbnails() {
+        while (true) {
+            File file;
+            Consumer<Image> consumer;
+            synchronized (queue) {
+                while (queue.isEmpty()) {
+                    try {
+                        queue.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                file = queue.removeFirst();
+                consumer = waiting.remove(file);
+            }
+            Image image = null;
+            try {
+                image = SwingFXUtils.toFXImage(decoder.load(file), null);
+            } catch (IOException | RuntimeException e) {
+                System.out.printf("No thumbnail for %s: %s\n", file, e);
+            }
+            Image thumbnail = image;
+            Platform.runLater(() -> {
+                images.put(file, thumbnail);
+                if (consumer != null) {
+                    consumer.accept(thumbnail);
+                }
+            });
+        }
+    }
+
+    private class ThumbnailCell extends ListCell<File> {
+
+        private final ImageView imageView = new ImageView();
+        private File requested;
+
+        ThumbnailCell(Consumer<File> onChoose) {
+            setContentDisplay(ContentDisplay.TOP);
+            setOnMouseClicked(event -> {
+                if (!isEmpty() && event.getButton() == MouseButton.PRIMARY) {
+                    onChoose.accept(getItem());
+                }
+            });
+        }
+
+        @Override
+        protected void updateItem(File file, boolean empty) {
+            super.updateItem(file, empty);
+            if (requested != null && !requested.equals(file)) {
+                // scrolled out of view
+                cancel(requested);
+                requested = null;
+            }
+            if (empty || file == null) {
+                setText(null);
+                setGraphic(null);
+                return;
+            }
+            setText(file.getName());
+            setGraphic(imageView);
+            if (images.containsKey(file)) {
+                imageView.setImage(images.get(file));
+            } else {
+                // requested again in case it was dropped while waiting
+                imageView.setImage(null);
+                requested = file;
+                request(file, image -> {
+                    if (file.equals(getItem())) {
+                        imageView.setImage(image);
+                    }
+                });
+            }
+        }
+    }
+}